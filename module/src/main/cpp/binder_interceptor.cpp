@@ -7,6 +7,9 @@
 #include <binder/Common.h>
 #include <binder/IServiceManager.h>
 #include <sys/ioctl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sched.h>
 #include <unistd.h>
 #include "kernel/binder.h"
 
@@ -112,21 +115,77 @@ void writeInterfaceToken_manual(Parcel& p, const char* interface_name) {
 }
 
 
+static_assert(g_target_properties.size() == PROPERTY_TABLE_SLOTS);
+
+static constexpr int PROPERTY_NOT_SPOOFED = -1;
+static constexpr int PROPERTY_CONTENDED = -2;
+
+static inline void cpu_relax() {
+#if defined(__aarch64__) || defined(__arm__)
+    asm volatile("yield" ::: "memory");
+#elif defined(__x86_64__) || defined(__i386__)
+    __builtin_ia32_pause();
+#endif
+}
+
+// Seqlock read of one slot of the daemon-published table. Returns the length
+// copied into value, PROPERTY_NOT_SPOOFED when the slot is empty, or
+// PROPERTY_CONTENDED when the daemon kept rewriting the table; the caller
+// must then not fall back to the real value.
+static int read_property_table(const PropertyTable *table, size_t index, char *value) {
+    const auto &slot = table->slots[index];
+    for (int attempt = 0; attempt < 64; ++attempt) {
+        if (attempt >= 16) sched_yield();
+        else if (attempt > 0) cpu_relax();
+        uint32_t begin = table->seq.load(std::memory_order_acquire);
+        if (begin & 1) continue; // writer in progress
+        int32_t length = __atomic_load_n(&slot.length, __ATOMIC_RELAXED);
+        if (length >= 0) {
+            if (length > PROP_VALUE_MAX - 1) length = PROP_VALUE_MAX - 1;
+            memcpy(value, slot.value, length);
+        }
+        std::atomic_thread_fence(std::memory_order_acquire);
+        if (table->seq.load(std::memory_order_relaxed) != begin) continue;
+        if (length < 0) return PROPERTY_NOT_SPOOFED;
+        value[length] = '\0';
+        return length;
+    }
+    return PROPERTY_CONTENDED;
+}
+
 // Implement Hook Function
 int new_system_property_get(const char* name, char* value) {
-    bool found = false;
+    ssize_t index = -1;
     if (name != nullptr) {
         std::string_view name_sv(name);
-        for (const auto& prop : g_target_properties) {
-            if (prop == name_sv) {
-                found = true;
+        for (size_t i = 0; i < g_target_properties.size(); ++i) {
+            if (g_target_properties[i] == name_sv) {
+                index = static_cast<ssize_t>(i);
                 break;
             }
         }
     }
 
-    if (found) {
-        LOGI("Targeted property access: %s", name);
+    if (index >= 0) {
+        LOGD("Targeted property access: %s", name);
+        const PropertyTable *table = gBinderInterceptor != nullptr
+                ? gBinderInterceptor->gPropertyTable.load(std::memory_order_acquire) : nullptr;
+        bool contended = false;
+        // with the table busy the daemon may be spoofing this property, so a failed
+        // lookup reads as unset rather than as the real value
+        auto fail = [&]() {
+            if (!contended) return original_system_property_get(name, value);
+            value[0] = '\0';
+            return 0;
+        };
+        if (table != nullptr) {
+            int length = read_property_table(table, index, value);
+            if (length >= 0) return length;
+            if (length == PROPERTY_NOT_SPOOFED) return original_system_property_get(name, value);
+            // contended: ask the daemon over binder instead of leaking the real value
+            LOGW("Property table busy for %s", name);
+            contended = true;
+        }
         if (gBinderInterceptor != nullptr && gBinderInterceptor->gPropertyServiceBinder != nullptr) {
             Parcel data_parcel, reply_parcel;
             
@@ -140,18 +199,18 @@ int new_system_property_get(const char* name, char* value) {
 
             if (status != OK) {
                 LOGE("Transaction failed for property %s: %d", name, status);
-                return original_system_property_get(name, value);
+                return fail();
             }
 
             int32_t exception_code = reply_parcel.readInt32(); // readExceptionCode usually just reads the first int
             if (exception_code != 0) {
                 LOGE("Property service threw exception for %s: %d", name, exception_code);
-                return original_system_property_get(name, value);
+                return fail();
             }
 
             std::string spoofed_value;
             if (readString16_manual(reply_parcel, spoofed_value)) {
-                LOGI("Received spoofed value for %s: '%s'", name, spoofed_value.c_str());
+                LOGD("Received spoofed value for %s: '%s'", name, spoofed_value.c_str());
                 strncpy(value, spoofed_value.c_str(), PROP_VALUE_MAX - 1);
                 value[PROP_VALUE_MAX - 1] = '\0';
                 return strlen(value);
@@ -160,6 +219,7 @@ int new_system_property_get(const char* name, char* value) {
             }
         } else {
             // LOGW("Property service binder not available for %s.", name);
+            return fail();
         }
     }
     return original_system_property_get(name, value);
@@ -408,6 +468,38 @@ BinderInterceptor::onTransact(uint32_t code, const android::Parcel &data, androi
             reply->writeInt32(0); // No error
         }
         return OK;
+    } else if (code == REGISTER_PROPERTY_TABLE) {
+        LOGI("Registering property table");
+        int fd = data.readFileDescriptor();
+        if (fd < 0) {
+            LOGE("Failed to read property table fd from parcel");
+            return BAD_VALUE;
+        }
+        struct stat st{};
+        if (fstat(fd, &st) != 0 || st.st_size < static_cast<off_t>(sizeof(PropertyTable))) {
+            LOGE("Property table fd too small");
+            return BAD_VALUE;
+        }
+        // The parcel owns fd; the mapping stays valid after it is closed.
+        void *addr = mmap(nullptr, sizeof(PropertyTable), PROT_READ, MAP_SHARED, fd, 0);
+        if (addr == MAP_FAILED) {
+            PLOGE("mmap property table");
+            return BAD_VALUE;
+        }
+        auto table = static_cast<const PropertyTable *>(addr);
+        if (table->magic != PROPERTY_TABLE_MAGIC || table->count != PROPERTY_TABLE_SLOTS) {
+            LOGE("Property table header mismatch");
+            munmap(addr, sizeof(PropertyTable));
+            return BAD_VALUE;
+        }
+        auto old = gPropertyTable.exchange(table, std::memory_order_acq_rel);
+        // Old mappings are leaked on purpose: a hooked reader may still hold them.
+        if (old != nullptr) LOGW("Property table replaced");
+        LOGI("Property table registered successfully");
+        if (reply) {
+            reply->writeInt32(0);
+        }
+        return OK;
     }
     return UNKNOWN_TRANSACTION;
 }
@@ -6,15 +6,36 @@
 #include <binder/IBinder.h>
 #include <binder/Binder.h>
 #include <utils/StrongPointer.h>
+#include <atomic>
 #include <map>
 #include <shared_mutex>
+#include <sys/system_properties.h>
 
 // Using android namespace for convenience if many types from it are used
 using namespace android;
 
+// Shared-memory property table published by the daemon (see PropertyValueTable.kt).
+// Slot order must match g_target_properties; a slot with length < 0 is not spoofed.
+static constexpr uint32_t PROPERTY_TABLE_MAGIC = 0x50525454; // "PRTT"
+static constexpr size_t PROPERTY_TABLE_SLOTS = 8;
+
+struct PropertyTableSlot {
+    int32_t length;
+    char value[PROP_VALUE_MAX];
+};
+
+struct PropertyTable {
+    uint32_t magic;
+    std::atomic<uint32_t> seq; // seqlock: odd while the daemon is writing
+    uint32_t count;
+    uint32_t reserved;
+    PropertyTableSlot slots[PROPERTY_TABLE_SLOTS];
+};
+
 class BinderInterceptor : public BBinder {
 public:
     sp<IBinder> gPropertyServiceBinder = nullptr;
+    std::atomic<const PropertyTable *> gPropertyTable = nullptr;
 
     bool handleIntercept(sp<BBinder> target, uint32_t code, const Parcel &data, Parcel *reply,
                          uint32_t flags, status_t &result);
@@ -27,7 +48,8 @@ private:
     enum {
         REGISTER_INTERCEPTOR = 1,
         UNREGISTER_INTERCEPTOR = 2,
-        REGISTER_PROPERTY_SERVICE = 3
+        REGISTER_PROPERTY_SERVICE = 3,
+        REGISTER_PROPERTY_TABLE = 4
     };
     enum { // These were likely intended to be scoped to functions or private
         PRE_TRANSACT = 1,
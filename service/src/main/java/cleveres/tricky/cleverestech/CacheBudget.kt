@@ -0,0 +1,163 @@
+package cleveres.tricky.cleverestech
+
+import java.io.File
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * One byte budget shared by the daemon's caches.
+ *
+ * Every cache registers a [Member] that estimates its footprint. On each rebalance a cache
+ * keeps a guaranteed floor of the budget and the rest is split in proportion to the hits it
+ * served per byte held since the last round, so memory drifts to the caches that earn it.
+ * Caches over their allowance are trimmed from their least recently used end; their own
+ * entry limits still apply on top.
+ *
+ * The daemon's caches all register with the companion instance; tests build their own.
+ */
+open class CacheBudget internal constructor(budgetBytes: Long) {
+    // 8 MiB until /proc/meminfo says otherwise
+    companion object : CacheBudget(8L * 1024 * 1024) {
+        private const val TAG = "CacheBudget"
+        private const val MIN_BUDGET = 2L * 1024 * 1024
+        private const val MAX_BUDGET = 16L * 1024 * 1024
+        private const val REBALANCE_SECONDS = 15L
+        // each member keeps at least budget / (FLOOR_DIVISOR * members)
+        private const val FLOOR_DIVISOR = 4
+
+        init {
+            setBudget(defaultBudget())
+        }
+
+        // about a thousandth of RAM, so low-memory devices get a smaller budget
+        private fun defaultBudget(): Long = runCatching {
+            File("/proc/meminfo").useLines { lines ->
+                lines.firstOrNull { it.startsWith("MemTotal:") }
+                    ?.split(Regex("\\s+"))?.getOrNull(1)?.toLongOrNull()
+            }?.let { (it * 1024 / 1000).coerceIn(MIN_BUDGET, MAX_BUDGET) }
+        }.getOrNull() ?: budgetBytes
+    }
+
+    interface Member {
+        val name: String
+        /** Estimated bytes held. */
+        fun usedBytes(): Long
+        fun entries(): Int
+        /** Hits since creation; the budget only looks at the difference between rounds. */
+        fun hits(): Long
+        /** Evicts least recently used entries until at most [bytes] are held. */
+        fun trimTo(bytes: Long)
+    }
+
+    /** A member whose entries are all assumed to cost [bytesPerEntry]. */
+    class EntryCountMember(
+        override val name: String,
+        private val bytesPerEntry: Int,
+        private val stats: () -> KeyCache.Stats,
+        private val trim: (Int) -> Unit
+    ) : Member {
+        override fun usedBytes() = stats().size.toLong() * bytesPerEntry
+        override fun entries() = stats().size
+        override fun hits() = stats().hits
+        override fun trimTo(bytes: Long) = trim((bytes / bytesPerEntry).toInt())
+    }
+
+    class Usage(val name: String, val usedBytes: Long, val allowanceBytes: Long, val entries: Int, val score: Double)
+
+    private class Slot(val member: Member) {
+        var lastHits = member.hits()
+        var score = 0.0
+        var allowance = 0L
+    }
+
+    private val slots = CopyOnWriteArrayList<Slot>()
+    private val started = AtomicBoolean()
+
+    @Volatile
+    var budgetBytes = budgetBytes
+        private set
+
+    // lowered by PressureMonitor while the system is short of memory
+    @Volatile
+    var pressureScale = 1.0
+        private set
+
+    val effectiveBudget: Long
+        get() = (budgetBytes * pressureScale).toLong()
+
+    fun register(member: Member) {
+        slots.add(Slot(member))
+        Logger.d { "$TAG: registered ${member.name}" }
+    }
+
+    fun setBudget(bytes: Long) {
+        budgetBytes = bytes.coerceAtLeast(0)
+        rebalance()
+    }
+
+    fun start() {
+        if (!started.compareAndSet(false, true)) return
+        Executors.newSingleThreadScheduledExecutor {
+            Thread(it, "CacheBudget").apply { isDaemon = true }
+        }.scheduleWithFixedDelay({
+            runCatching { rebalance() }.onFailure { Logger.e("$TAG: rebalance failed", it) }
+        }, REBALANCE_SECONDS, REBALANCE_SECONDS, TimeUnit.SECONDS)
+        Logger.i("$TAG: ${budgetBytes / 1024} KiB for ${slots.size} caches")
+    }
+
+    val usedBytes: Long
+        get() = slots.sumOf { it.member.usedBytes() }
+
+    /**
+     * Scales the budget by [scale]. When that leaves the caches over budget they are emptied
+     * one by one in [order], unnamed caches last, before the allowances are recomputed.
+     */
+    @Synchronized
+    fun setPressureScale(scale: Double, order: List<String> = emptyList()) {
+        pressureScale = scale.coerceIn(0.0, 1.0)
+        val target = effectiveBudget
+        val ordered = slots.sortedBy { order.indexOf(it.member.name).let { i -> if (i < 0) order.size else i } }
+        for (slot in ordered) {
+            val excess = usedBytes - target
+            if (excess <= 0) break
+            val used = slot.member.usedBytes()
+            slot.member.trimTo((used - excess).coerceAtLeast(0))
+            Logger.d { "$TAG: shed ${slot.member.name} from $used to ${slot.member.usedBytes()} bytes" }
+        }
+        rebalance()
+    }
+
+    fun usage(): List<Usage> = slots.map {
+        Usage(it.member.name, it.member.usedBytes(), it.allowance, it.member.entries(), it.score)
+    }
+
+    /** Recomputes the allowances from the hits of the last round and trims caches above theirs. */
+    @Synchronized
+    fun rebalance() {
+        val current = slots.toList()
+        if (current.isEmpty()) return
+        val budget = effectiveBudget
+        for (slot in current) {
+            val hits = slot.member.hits()
+            val delta = (hits - slot.lastHits).coerceAtLeast(0)
+            slot.lastHits = hits
+            // hits per KiB held, smoothed so one quiet round does not empty a cache
+            val perKb = delta * 1024.0 / slot.member.usedBytes().coerceAtLeast(1024)
+            slot.score = (slot.score + perKb) / 2
+        }
+        val floor = budget / (FLOOR_DIVISOR * current.size)
+        val shared = budget - floor * current.size
+        val total = current.sumOf { it.score }
+        for (slot in current) {
+            val share = if (total > 0) shared * (slot.score / total) else shared.toDouble() / current.size
+            slot.allowance = floor + share.toLong()
+            val used = slot.member.usedBytes()
+            if (used > slot.allowance) {
+                slot.member.trimTo(slot.allowance)
+                Logger.d { "$TAG: trimmed ${slot.member.name} from $used to ${slot.member.usedBytes()} bytes" }
+            }
+        }
+    }
+}
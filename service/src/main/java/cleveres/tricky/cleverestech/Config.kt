@@ -5,9 +5,11 @@ import android.os.FileObserver
 import android.os.ServiceManager
 import android.system.Os
 import cleveres.tricky.cleverestech.keystore.CertHack
+import cleveres.tricky.cleverestech.keystore.KeyboxValidator
 import java.io.File
 import java.util.Collections
 import java.util.LinkedHashMap
+import java.util.concurrent.atomic.LongAdder
 
 class PackageTrie {
     private class Node {
@@ -135,6 +137,16 @@ object Config {
         Logger.e("failed to update keybox", it)
     }
 
+    private fun updateRevocationList(f: File?) = runCatching {
+        if (f == null) {
+            KeyboxValidator.updateRevocationList(null)
+        } else {
+            f.bufferedReader().use { KeyboxValidator.updateRevocationList(it) }
+        }
+    }.onFailure {
+        Logger.e("failed to update revocation list", it)
+    }
+
     private fun updateGlobalMode(f: File?) {
         isGlobalMode = f?.exists() == true
         Logger.i("Global mode is ${if (isGlobalMode) "enabled" else "disabled"}")
@@ -153,6 +165,11 @@ object Config {
     @Volatile
     private var buildVars: Map<String, String> = emptyMap()
 
+    // bumped whenever buildVars is replaced, lets derived caches tell they are stale
+    @Volatile
+    var buildVarsEpoch = 0
+        private set
+
     private val templates = mapOf(
         "pixel8pro" to mapOf(
             "MANUFACTURER" to "Google",
@@ -267,6 +284,8 @@ object Config {
             }
         }
         buildVars = newVars
+        buildVarsEpoch++
+        PropertyValueTable.publish(newVars)
         Logger.i { "update build vars: $buildVars" }
     }.onFailure {
         Logger.e("failed to update build vars", it)
@@ -279,7 +298,7 @@ object Config {
     fun getPatchLevel(callingUid: Int): Int {
         val defaultLevel = patchLevel
         val patchStr = if (securityPatch.isNotEmpty()) {
-            val pkgName = getPm()?.getPackagesForUid(callingUid)?.firstOrNull()
+            val pkgName = getPackages(callingUid).firstOrNull()
             if (pkgName != null) {
                 securityPatch[pkgName] ?: defaultSecurityPatch
             } else {
@@ -350,6 +369,10 @@ object Config {
     private const val MODULE_HASH_FILE = "module_hash"
     private const val SECURITY_PATCH_FILE = "security_patch.txt"
     private const val REMOTE_KEYS_FILE = "remote_keys.xml"
+    private const val KEYBOX_DIR = "keyboxes"
+    private const val KEYBOX_ASSIGNMENTS_FILE = "keybox_assignments.txt"
+    private const val KEYBOX_INDEX_FILE = "keybox_index"
+    private const val REVOCATION_STATUS_FILE = "revocation_status.json"
     private val root = File(CONFIG_PATH)
 
     object ConfigObserver : FileObserver(root, CLOSE_WRITE or DELETE or MOVED_FROM or MOVED_TO) {
@@ -363,9 +386,16 @@ object Config {
             when (path) {
                 TARGET_FILE -> updateTargetPackages(f)
                 KEYBOX_FILE -> updateKeyBox(f)
+                REVOCATION_STATUS_FILE -> {
+                    updateRevocationList(f)
+                    updateKeyBox(File(root, KEYBOX_FILE).takeIf { it.exists() })
+                    KeyboxLibrary.invalidateDecoded()
+                }
                 SPOOF_BUILD_VARS_FILE -> updateBuildVars(f)
                 SECURITY_PATCH_FILE -> updateSecurityPatch(f)
                 REMOTE_KEYS_FILE -> RemoteKeyManager.update(f)
+                KEYBOX_ASSIGNMENTS_FILE -> KeyboxLibrary.updateAssignments(f)
+                KEYBOX_DIR -> KeyboxLibrary.rescan()
                 GLOBAL_MODE_FILE -> {
                     updateGlobalMode(f)
                     updateTargetPackages(File(root, TARGET_FILE))
@@ -383,6 +413,12 @@ object Config {
         }
     }
 
+    object KeyboxDirObserver : FileObserver(File(root, KEYBOX_DIR), CLOSE_WRITE or DELETE or MOVED_FROM or MOVED_TO) {
+        override fun onEvent(event: Int, path: String?) {
+            if (path?.endsWith(".xml") == true) KeyboxLibrary.rescan()
+        }
+    }
+
     fun initialize() {
         root.mkdirs()
         try {
@@ -397,6 +433,11 @@ object Config {
         updateModuleHash(File(root, MODULE_HASH_FILE))
         updateSecurityPatch(File(root, SECURITY_PATCH_FILE))
         RemoteKeyManager.update(File(root, REMOTE_KEYS_FILE))
+        updateRevocationList(File(root, REVOCATION_STATUS_FILE).takeIf { it.exists() })
+        val keyboxDir = File(root, KEYBOX_DIR)
+        keyboxDir.mkdirs()
+        KeyboxLibrary.updateAssignments(File(root, KEYBOX_ASSIGNMENTS_FILE).takeIf { it.exists() })
+        KeyboxLibrary.updateDirectory(keyboxDir, File(root, KEYBOX_INDEX_FILE))
         if (!isGlobalMode) {
             val scope = File(root, TARGET_FILE)
             if (scope.exists()) {
@@ -412,6 +453,7 @@ object Config {
             updateKeyBox(keybox)
         }
         ConfigObserver.startWatching()
+        KeyboxDirObserver.startWatching()
         keyboxPoller?.stop()
         keyboxPoller = FilePoller(File(root, KEYBOX_FILE), 5000) {
             Logger.i("Detected keybox change via polling")
@@ -442,13 +484,33 @@ object Config {
             }
         }
     )
+    private val packageCacheHits = LongAdder()
+    // a few short package names per uid plus map overhead
+    private const val PACKAGE_ENTRY_BYTES = 256
+
+    init {
+        CacheBudget.register(CacheBudget.EntryCountMember("packages", PACKAGE_ENTRY_BYTES, {
+            KeyCache.Stats(packageCacheHits.sum(), 0, 0, packageCache.size, packageCache.size.toLong())
+        }) { max ->
+            synchronized(packageCache) {
+                val it = packageCache.keys.iterator()
+                while (packageCache.size > max && it.hasNext()) {
+                    it.next()
+                    it.remove()
+                }
+            }
+        })
+    }
 
     /**
      * Retrieves the list of packages for a given UID, using a cache to avoid frequent IPC calls.
      * Returns an empty array if the UID has no associated packages or if PackageManager is unavailable.
      */
     fun getPackages(uid: Int): Array<String> {
-        packageCache[uid]?.let { return it }
+        packageCache[uid]?.let {
+            packageCacheHits.increment()
+            return it
+        }
         val pm = getPm() ?: return emptyArray()
         val ps = pm.getPackagesForUid(uid) ?: emptyArray()
         packageCache[uid] = ps
@@ -1,19 +1,147 @@
 package cleveres.tricky.cleverestech
 
-import java.util.Collections
-import java.util.LinkedHashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.LongAdder
 
-internal class KeyCache<K, V>(private val maxEntries: Int) {
-    private val map = Collections.synchronizedMap(object : LinkedHashMap<K, V>(maxEntries, 0.75f, true) {
-        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, V>?): Boolean {
-            return size > maxEntries
+/**
+ * Bounded cache with lock-free reads and CLOCK eviction.
+ *
+ * A hit is a [ConcurrentHashMap] lookup plus setting a reference bit, so binder threads never
+ * contend on a monitor; only writes that overflow the cache take the eviction lock. Entries
+ * sit in a FIFO ring: the hand gives a referenced entry a second chance by clearing its bit,
+ * and evicts the first unreferenced one, which approximates LRU in amortized constant time.
+ * Capacity is measured by [weigher] (one per entry by default) and entries older than
+ * [ttlMillis] are treated as absent when it is positive.
+ * [onRemoval] sees every entry that leaves the cache, whether evicted, expired, replaced or removed.
+ */
+internal class KeyCache<K : Any, V : Any>(
+    private val maxWeight: Int,
+    ttlMillis: Long = 0,
+    private val weigher: (K, V) -> Int = { _, _ -> 1 },
+    private val ticker: () -> Long = System::nanoTime,
+    private val onRemoval: ((K, V) -> Unit)? = null
+) {
+    data class Stats(val hits: Long, val misses: Long, val evictions: Long, val size: Int, val weight: Long)
+
+    private class Node<K, V>(val key: K, val value: V, val weight: Int, val writtenAt: Long) {
+        @Volatile
+        var referenced = false
+        val live = AtomicBoolean(true)
+    }
+
+    private val ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis)
+    private val map = ConcurrentHashMap<K, Node<K, V>>()
+    // the clock ring; removed and replaced nodes stay until the hand or a sweep reaches them
+    private val ring = ConcurrentLinkedQueue<Node<K, V>>()
+    private val staleInRing = AtomicInteger()
+    private val weight = AtomicLong()
+    private val evictionLock = Any()
+    private val hits = LongAdder()
+    private val misses = LongAdder()
+    private val evictions = LongAdder()
+
+    operator fun get(key: K): V? {
+        val node = map[key]
+        if (node == null || isExpired(node)) {
+            if (node != null && map.remove(key, node)) unlink(node, true)
+            misses.increment()
+            return null
         }
-    })
+        // only write when the bit changes, so hot entries do not bounce their cache line
+        if (!node.referenced) node.referenced = true
+        hits.increment()
+        return node.value
+    }
 
-    operator fun get(key: K): V? = map[key]
     operator fun set(key: K, value: V) {
-        map[key] = value
+        val node = Node(key, value, weigher(key, value), if (ttlNanos > 0) ticker() else 0L)
+        weight.addAndGet(node.weight.toLong())
+        map.put(key, node)?.let { unlink(it, false) }
+        // evict before the new node joins the ring, so it is never its own victim
+        if (weight.get() > maxWeight) {
+            synchronized(evictionLock) {
+                while (weight.get() > maxWeight) {
+                    if (!evictOne()) break
+                }
+            }
+        }
+        ring.add(node)
+        if (staleInRing.get() > map.size + SWEEP_SLACK) sweep()
+    }
+
+    fun remove(key: K): V? {
+        val node = map.remove(key) ?: return null
+        unlink(node, false)
+        return node.value
+    }
+
+    fun clear() {
+        for (node in map.values) {
+            if (map.remove(node.key, node)) unlink(node, false)
+        }
     }
 
-    fun values(): Collection<V> = map.values
+    /** Live values at the time of the call; the list is a copy and safe to iterate. */
+    fun values(): List<V> = map.values.filter { !isExpired(it) }.map { it.value }
+
+    val size: Int get() = map.size
+
+    fun stats() = Stats(hits.sum(), misses.sum(), evictions.sum(), map.size, weight.get())
+
+    /** Drops the entry the clock hand settles on, returns false if the cache was empty. */
+    fun removeEldest(): Boolean = synchronized(evictionLock) { evictOne() }
+
+    /** Evicts entries until at most [maxEntries] remain. */
+    fun trimTo(maxEntries: Int) = synchronized(evictionLock) {
+        while (map.size > maxEntries) {
+            if (!evictOne()) break
+        }
+    }
+
+    private fun isExpired(node: Node<K, V>) = ttlNanos > 0 && ticker() - node.writtenAt > ttlNanos
+
+    // polled: the clock hand already took the node off the ring
+    private fun unlink(node: Node<K, V>, evicted: Boolean, polled: Boolean = false) {
+        if (!node.live.compareAndSet(true, false)) return
+        weight.addAndGet(-node.weight.toLong())
+        if (evicted) evictions.increment()
+        if (!polled) staleInRing.incrementAndGet()
+        onRemoval?.invoke(node.key, node.value)
+    }
+
+    // caller holds evictionLock; at most two passes over the ring, one to clear the bits
+    private fun evictOne(): Boolean {
+        while (true) {
+            val node = ring.poll() ?: return false
+            if (!node.live.get()) {
+                staleInRing.decrementAndGet()
+                continue
+            }
+            if (node.referenced && !isExpired(node)) {
+                node.referenced = false
+                ring.add(node)
+                continue
+            }
+            if (map.remove(node.key, node)) {
+                unlink(node, true, polled = true)
+                return true
+            }
+        }
+    }
+
+    // drops removed nodes once they outnumber the live ones, keeping the ring bounded
+    private fun sweep() = synchronized(evictionLock) {
+        var dropped = 0
+        ring.removeIf { node -> !node.live.get().also { live -> if (!live) dropped++ } }
+        staleInRing.addAndGet(-dropped)
+    }
+
+    private companion object {
+        const val SWEEP_SLACK = 64
+    }
 }
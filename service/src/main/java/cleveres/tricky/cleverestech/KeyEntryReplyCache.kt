@@ -0,0 +1,118 @@
+package cleveres.tricky.cleverestech
+
+import android.os.Parcel
+import android.system.keystore2.Domain
+import android.system.keystore2.KeyDescriptor
+import cleveres.tricky.cleverestech.keystore.BlobStore
+import cleveres.tricky.cleverestech.keystore.CertHack
+import cleveres.tricky.cleverestech.keystore.KeyEntryReplyRewriter
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Final hacked getKeyEntry replies, served from onPreTransact so repeated reads
+ * of an unchanged key never reach keystore2 or the TEE.
+ *
+ * Each entry keeps the reply without its certificate fields, its own leaf, and the chain tail
+ * interned in [BlobStore.CHAINS], so keys signed by the same keybox hold that chain once.
+ * A hit splices the two back in.
+ *
+ * Entries are stored under the key id keystore2 reports in KeyMetadata.key, so an alias lookup
+ * and a Domain.KEY_ID lookup of the same key share one entry and one invalidation. Changes
+ * that never pass through us, such as an uninstall wiping the uid's keys, are only covered by
+ * the short TTL.
+ */
+object KeyEntryReplyCache {
+    /** A key as the caller named it. */
+    data class Key(val uid: Int, val domain: Int, val nspace: Long, val alias: String?)
+
+    private data class Id(val uid: Int, val keyId: Long)
+
+    private class Entry(
+        val template: KeyEntryReplyRewriter.Template,
+        val certificate: ByteArray,
+        val chain: ByteArray?,
+        val keyboxEpoch: Int,
+        val patchLevel: Int,
+        val generation: Long
+    )
+
+    // frame and leaf of one reply; the chain tail is shared and counted by BlobStore
+    private const val REPLY_BYTES = 2048
+    // backstop for changes to a key that never pass through us
+    private const val REPLY_TTL_MS = 5 * 1000L
+    // a getKeyEntry that has not come back by then is not cached
+    private const val PENDING_TTL_MS = 30 * 1000L
+    private const val STRIPES = 64
+
+    private val replies = KeyCache<Id, Entry>(256, REPLY_TTL_MS, onRemoval = { _, e -> BlobStore.CHAINS.release(e.chain) })
+    // key id behind each alias seen in a cached reply
+    private val aliases = KeyCache<Key, Long>(256, REPLY_TTL_MS)
+    // bumped by invalidate for every key of the uid, since an alias and its key id must agree;
+    // striped so the table stays bounded, a collision only costs a miss
+    private val generations = AtomicLongArray(STRIPES)
+    // generation each in-flight getKeyEntry saw before keystore2 ran it
+    private val pending = KeyCache<Key, Long>(256, PENDING_TTL_MS)
+
+    init {
+        CacheBudget.register(CacheBudget.EntryCountMember("key_entry_replies", REPLY_BYTES, replies::stats, replies::trimTo))
+    }
+
+    fun keyOf(uid: Int, descriptor: KeyDescriptor) =
+        Key(uid, descriptor.domain, descriptor.nspace, descriptor.alias)
+
+    private fun stripe(uid: Int) = (uid and Int.MAX_VALUE) % STRIPES
+
+    private fun generation(uid: Int) = generations[stripe(uid)]
+
+    private fun idOf(key: Key): Id? =
+        if (key.domain == Domain.KEY_ID) Id(key.uid, key.nspace) else aliases[key]?.let { Id(key.uid, it) }
+
+    /** Returns a fresh copy of the cached reply, or null if absent or stale. */
+    fun get(key: Key): Parcel? {
+        val id = idOf(key) ?: return null
+        val entry = replies[id] ?: return null
+        if (entry.keyboxEpoch != CertHack.getKeyboxEpoch() ||
+            entry.patchLevel != Config.getPatchLevel(key.uid) ||
+            entry.generation != generation(key.uid)
+        ) {
+            replies.remove(id)
+            return null
+        }
+        return KeyEntryReplyRewriter.fill(entry.template, entry.certificate, entry.chain)
+    }
+
+    /** Records the generation of [key] before the call reaches keystore2; [put] only keeps replies that have one. */
+    fun begin(key: Key) {
+        val gen = generation(key.uid)
+        synchronized(pending) {
+            // overlapping calls keep the oldest stamp, so any of their replies must predate an invalidate
+            val seen = pending[key]
+            if (seen == null || gen < seen) pending[key] = gen
+        }
+    }
+
+    /**
+     * Stores [reply] located by [fields] with [certificate] and [chain] as its certificate
+     * fields; the caller keeps ownership of the parcel. The reply is dropped when [key] was
+     * invalidated after [begin], since it may describe a deleted key, and when keystore2 did
+     * not name the key by id.
+     */
+    fun put(key: Key, reply: Parcel, fields: KeyEntryReplyRewriter.Fields, certificate: ByteArray, chain: ByteArray?) {
+        val seen = synchronized(pending) { pending.remove(key) } ?: return
+        if (seen != generation(key.uid) || fields.keyId < 0) return
+        val id = Id(key.uid, fields.keyId)
+        val template = KeyEntryReplyRewriter.template(reply, fields)
+        if (key.domain != Domain.KEY_ID) aliases[key] = fields.keyId
+        replies[id] = Entry(
+            template, certificate, BlobStore.CHAINS.intern(chain),
+            CertHack.getKeyboxEpoch(), Config.getPatchLevel(key.uid), seen
+        )
+    }
+
+    fun invalidate(key: Key) {
+        generations.incrementAndGet(stripe(key.uid))
+        // evicted templates are left to the finalizer, a concurrent hit may still be filling them
+        idOf(key)?.let { replies.remove(it) }
+        aliases.remove(key)
+    }
+}
@@ -0,0 +1,362 @@
+package cleveres.tricky.cleverestech
+
+import cleveres.tricky.cleverestech.keystore.CertHack
+import cleveres.tricky.cleverestech.keystore.KeyboxLoader
+import cleveres.tricky.cleverestech.keystore.KeyboxValidator
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.RandomAccessFile
+import java.security.MessageDigest
+import java.security.cert.CertificateFactory
+import java.security.cert.X509Certificate
+import java.util.Date
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * A directory of keybox files that can be assigned per package.
+ *
+ * Only metadata stays resident: the algorithm, leaf fingerprint and expiry of every key. The
+ * metadata is persisted in an index file, so files whose size and mtime are unchanged are not
+ * read again on restart. The index also records where each key sits in its file, so a key is
+ * decoded by reading just its element. Keys are decoded in the background as soon as a package is
+ * resolved to its file, and kept in a small LRU, so memory does not grow with the size of the library.
+ */
+object KeyboxLibrary {
+    private const val TAG = "KeyboxLibrary"
+    private const val DECODED_CACHE_SIZE = 16
+    // parsed key pair and chain of one keybox
+    private const val DECODED_ENTRY_BYTES = 8192
+    private val KEY_OPEN = "<Key".toByteArray()
+    private val KEY_CLOSE = "</Key>".toByteArray()
+
+    class Entry(
+        val file: String,
+        val index: Int,
+        val algorithm: String,
+        val fingerprint: ByteArray,
+        val notAfter: Long,
+        // byte range of the <Key> element, offset -1 when unknown
+        val offset: Long,
+        val length: Int
+    )
+
+    private class FileInfo(val length: Long, val lastModified: Long, val entries: List<Entry>)
+
+    @Volatile
+    private var dir: File? = null
+    private var indexFile: File? = null
+    @Volatile
+    private var files: Map<String, FileInfo> = emptyMap()
+    @Volatile
+    private var assignments: Map<String, String> = emptyMap()
+    @Volatile
+    private var defaultFile: String? = null
+
+    private val decoded = KeyCache<Entry, CertHack.KeyBox>(DECODED_CACHE_SIZE)
+    // entries that failed validation, skipped until the files or the revocation list change
+    private val rejected = ConcurrentHashMap<Entry, KeyboxValidator.Result>()
+    private val warming = ConcurrentHashMap.newKeySet<Entry>()
+    private val scanPending = AtomicBoolean()
+    private val executor = Executors.newSingleThreadExecutor {
+        Thread(it, "KeyboxLibrary").apply { isDaemon = true }
+    }
+
+    // files parsed by the last scan, the rest came from the index
+    internal var filesRead = 0
+        private set
+
+    init {
+        CacheBudget.register(
+            CacheBudget.EntryCountMember("keybox_library", DECODED_ENTRY_BYTES, decoded::stats, decoded::trimTo)
+        )
+    }
+
+    val size: Int
+        get() = files.values.sumOf { it.entries.size }
+
+    fun entries(): List<Entry> = files.values.flatMap { it.entries }
+
+    val isEmpty: Boolean
+        get() = files.isEmpty()
+
+    /** Points the library at [d] and rescans it in the background; null disables it. */
+    fun updateDirectory(d: File?, index: File?) {
+        configure(d, index)
+        rescan()
+    }
+
+    internal fun configure(d: File?, index: File?) {
+        dir = d
+        indexFile = index
+    }
+
+    fun rescan() {
+        if (!scanPending.compareAndSet(false, true)) return
+        executor.execute {
+            scanPending.set(false)
+            scan()
+        }
+    }
+
+    @Synchronized
+    internal fun scan() = runCatching {
+        val d = dir
+        val list = d?.listFiles { f -> f.isFile && f.name.endsWith(".xml") }
+        if (list == null) {
+            files = emptyMap()
+            invalidateDecoded()
+            return@runCatching
+        }
+        val known = if (files.isEmpty()) readIndex() else files
+        val next = HashMap<String, FileInfo>(list.size)
+        var read = 0
+        for (f in list) {
+            val length = f.length()
+            val lastModified = f.lastModified()
+            val old = known[f.name]
+            if (old != null && old.length == length && old.lastModified == lastModified) {
+                next[f.name] = old
+                continue
+            }
+            read++
+            runCatching { indexFile(f) }
+                .onSuccess { next[f.name] = FileInfo(length, lastModified, it) }
+                .onFailure { Logger.e("$TAG: failed to index ${f.name}: ${it.javaClass.name}") }
+        }
+        filesRead = read
+        val changed = next.keys != files.keys || next.any { (name, info) -> files[name] !== info }
+        files = next
+        if (changed) {
+            invalidateDecoded()
+            writeIndex(next)
+        }
+        Logger.i("$TAG: ${next.size} files, $size keys, $read parsed")
+    }.onFailure {
+        Logger.e("$TAG: failed to scan", it)
+    }
+
+    /** Releases decoded keyboxes under memory pressure; they are decoded again on next use. */
+    fun dropDecoded() = decoded.clear()
+
+    /** Drops decoded keyboxes and validation verdicts, e.g. after the revocation list changed. */
+    fun invalidateDecoded() {
+        decoded.clear()
+        rejected.clear()
+        CertHack.keyboxesChanged()
+    }
+
+    // package=file lines, a line with only a file name sets the default
+    fun updateAssignments(f: File?) = runCatching {
+        val next = HashMap<String, String>()
+        var newDefault: String? = null
+        f?.useLines { lines ->
+            lines.forEach { line ->
+                if (line.isNotBlank() && !line.startsWith("#")) {
+                    val parts = line.split("=", limit = 2)
+                    if (parts.size == 2) {
+                        next[parts[0].trim()] = parts[1].trim()
+                    } else {
+                        newDefault = parts[0].trim()
+                    }
+                }
+            }
+        }
+        assignments = next
+        defaultFile = newDefault
+        CertHack.keyboxesChanged()
+        Logger.i { "$TAG: update assignments: default=$defaultFile, per-app=${assignments.size}" }
+    }.onFailure {
+        Logger.e("$TAG: failed to update assignments", it)
+    }
+
+    /**
+     * The library file assigned to the package of [uid], or null to use keybox.xml.
+     * Packages are only resolved when some of them are assigned their own file.
+     */
+    fun select(uid: Int): String? {
+        val current = files
+        if (current.isEmpty()) return null
+        val name = assignments.takeIf { it.isNotEmpty() }?.let { a ->
+            runCatching { Config.getPackages(uid) }.getOrNull()?.firstNotNullOfOrNull { a[it] }
+        } ?: defaultFile ?: return null
+        val info = current[name] ?: return null
+        warm(info)
+        return name
+    }
+
+    // decodes the keys of a selected file off the binder thread, ahead of the get that needs them
+    private fun warm(info: FileInfo) {
+        // later keys of an algorithm replace earlier ones, as in get
+        for (entry in info.entries.associateBy { it.algorithm }.values) {
+            if (decoded[entry] != null || rejected.containsKey(entry) || !warming.add(entry)) continue
+            executor.execute {
+                runCatching { get(entry.file, entry.algorithm) }
+                warming.remove(entry)
+            }
+        }
+    }
+
+    /** Validation results of keys that were decoded and turned out unusable, by file name. */
+    fun rejectedResults(): List<Pair<String, KeyboxValidator.Result>> =
+        rejected.entries.map { it.key.file to it.value }.sortedBy { it.first }
+
+    /** The keybox for [algorithm] in [file], decoding it on first use. */
+    fun get(file: String, algorithm: String): CertHack.KeyBox? {
+        val d = dir ?: return null
+        val entry = files[file]?.entries?.lastOrNull { it.algorithm == algorithm } ?: return null
+        decoded[entry]?.let { return it }
+        if (rejected.containsKey(entry)) return null
+        val keyBox = runCatching { decode(File(d, file), entry) }
+            .onFailure { Logger.e("$TAG: failed to decode $file: ${it.javaClass.name}") }
+            .getOrNull() ?: return null
+        val result = KeyboxValidator.check(algorithm, keyBox, Date())
+        if (!result.ok()) {
+            rejected[entry] = result
+            Logger.e("$TAG: $file ($algorithm) is unusable: ${result.problems().joinToString("; ")}")
+            return null
+        }
+        decoded[entry] = keyBox
+        return keyBox
+    }
+
+    private fun decode(f: File, entry: Entry): CertHack.KeyBox? {
+        if (entry.offset >= 0) {
+            runCatching { readKey(f, entry) }.getOrNull()?.let { return KeyboxLoader.decode(it) }
+            Logger.d { "$TAG: ${f.name} key ${entry.index} moved, reading the whole file" }
+        }
+        var raw: KeyboxLoader.RawKeybox? = null
+        f.bufferedReader().use { r ->
+            KeyboxLoader.stream(r) { if (it.index == entry.index) raw = it }
+        }
+        return raw?.let { KeyboxLoader.decode(it) }
+    }
+
+    // the key at the indexed byte range, or null if the file no longer has it there
+    private fun readKey(f: File, entry: Entry): KeyboxLoader.RawKeybox? {
+        val bytes = ByteArray(entry.length)
+        RandomAccessFile(f, "r").use {
+            it.seek(entry.offset)
+            it.readFully(bytes)
+        }
+        val raw = KeyboxLoader.parseKey(String(bytes, Charsets.UTF_8))
+        val leaf = raw?.certificates?.firstOrNull() ?: return null
+        return raw.takeIf { MessageDigest.getInstance("SHA-256").digest(leaf).contentEquals(entry.fingerprint) }
+    }
+
+    private fun indexFile(f: File): List<Entry> {
+        val factory = CertificateFactory.getInstance("X.509")
+        val entries = ArrayList<Entry>()
+        val bytes = f.readBytes()
+        val spans = keySpans(bytes)
+        bytes.inputStream().bufferedReader().use { r ->
+            KeyboxLoader.stream(r) { raw ->
+                val leaf = raw.certificates.firstOrNull() ?: return@stream
+                val cert = factory.generateCertificate(ByteArrayInputStream(leaf)) as X509Certificate
+                val span = spans.getOrNull(raw.index)
+                entries.add(
+                    Entry(
+                        f.name, raw.index, raw.keyAlgorithm(),
+                        MessageDigest.getInstance("SHA-256").digest(leaf),
+                        cert.notAfter.time,
+                        span?.first?.toLong() ?: -1L, span?.let { it.last - it.first + 1 } ?: 0
+                    )
+                )
+            }
+        }
+        return entries
+    }
+
+    /**
+     * Byte ranges of the <Key> elements in document order, matching [KeyboxLoader.RawKeybox.index]
+     * for the first keybox. A comment or CDATA that mentions the tag shifts them, which [readKey]
+     * detects through the fingerprint.
+     */
+    private fun keySpans(bytes: ByteArray): List<IntRange> {
+        val spans = ArrayList<IntRange>()
+        var from = 0
+        while (true) {
+            var start = indexOf(bytes, KEY_OPEN, from)
+            while (start >= 0 && start + KEY_OPEN.size < bytes.size && !isTagEnd(bytes[start + KEY_OPEN.size])) {
+                start = indexOf(bytes, KEY_OPEN, start + 1)
+            }
+            if (start < 0) break
+            val end = indexOf(bytes, KEY_CLOSE, start)
+            if (end < 0) break
+            from = end + KEY_CLOSE.size
+            spans.add(start until from)
+        }
+        return spans
+    }
+
+    private fun isTagEnd(b: Byte) = b == ' '.code.toByte() || b == '>'.code.toByte() ||
+        b == '\t'.code.toByte() || b == '\n'.code.toByte() || b == '\r'.code.toByte()
+
+    private fun indexOf(bytes: ByteArray, pattern: ByteArray, from: Int): Int {
+        outer@ for (i in from..bytes.size - pattern.size) {
+            for (j in pattern.indices) if (bytes[i + j] != pattern[j]) continue@outer
+            return i
+        }
+        return -1
+    }
+
+    // F<TAB>name<TAB>length<TAB>mtime, followed by
+    // K<TAB>index<TAB>algorithm<TAB>fingerprint<TAB>notAfter<TAB>offset<TAB>length per key;
+    // indexes written before offsets were recorded decode by reading the whole file
+    @OptIn(ExperimentalStdlibApi::class)
+    private fun readIndex(): Map<String, FileInfo> {
+        val f = indexFile?.takeIf { it.exists() } ?: return emptyMap()
+        return runCatching {
+            val result = HashMap<String, FileInfo>()
+            var name: String? = null
+            var length = 0L
+            var lastModified = 0L
+            var entries = ArrayList<Entry>()
+            fun flush() {
+                name?.let { result[it] = FileInfo(length, lastModified, entries) }
+            }
+            f.useLines { lines ->
+                lines.forEach { line ->
+                    val parts = line.split('\t')
+                    when (parts[0]) {
+                        "F" -> {
+                            flush()
+                            name = parts[1]
+                            length = parts[2].toLong()
+                            lastModified = parts[3].toLong()
+                            entries = ArrayList()
+                        }
+                        "K" -> entries.add(
+                            Entry(
+                                name!!, parts[1].toInt(), parts[2], parts[3].hexToByteArray(), parts[4].toLong(),
+                                parts.getOrNull(5)?.toLong() ?: -1L, parts.getOrNull(6)?.toInt() ?: 0
+                            )
+                        )
+                    }
+                }
+            }
+            flush()
+            result
+        }.onFailure {
+            Logger.e("$TAG: ignoring corrupt index", it)
+        }.getOrDefault(emptyMap())
+    }
+
+    @OptIn(ExperimentalStdlibApi::class)
+    private fun writeIndex(map: Map<String, FileInfo>) = runCatching {
+        val f = indexFile ?: return@runCatching
+        val tmp = File(f.parentFile, f.name + ".tmp")
+        tmp.bufferedWriter().use { w ->
+            for ((name, info) in map) {
+                w.write("F\t$name\t${info.length}\t${info.lastModified}\n")
+                for (e in info.entries) {
+                    w.write("K\t${e.index}\t${e.algorithm}\t${e.fingerprint.toHexString()}\t${e.notAfter}\t${e.offset}\t${e.length}\n")
+                }
+            }
+        }
+        if (!tmp.renameTo(f)) tmp.delete()
+    }.onFailure {
+        Logger.e("$TAG: failed to write index", it)
+    }
+}
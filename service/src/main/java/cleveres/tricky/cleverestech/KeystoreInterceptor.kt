@@ -8,9 +8,10 @@ import android.os.Parcel
 import android.os.ServiceManager
 import android.system.keystore2.IKeystoreService
 import android.system.keystore2.KeyDescriptor
-import android.system.keystore2.KeyEntryResponse
 import cleveres.tricky.cleverestech.binder.BinderInterceptor
+import cleveres.tricky.cleverestech.binder.ParcelView
 import cleveres.tricky.cleverestech.keystore.CertHack
+import cleveres.tricky.cleverestech.keystore.KeyEntryReplyRewriter
 import cleveres.tricky.cleverestech.keystore.Utils
 import kotlin.system.exitProcess
 
@@ -18,6 +19,10 @@ import kotlin.system.exitProcess
 object KeystoreInterceptor : BinderInterceptor() {
     private val getKeyEntryTransaction =
         getTransactCode(IKeystoreService.Stub::class.java, "getKeyEntry") // 2
+    private val deleteKeyTransaction =
+        getTransactCode(IKeystoreService.Stub::class.java, "deleteKey")
+    private val updateSubcomponentTransaction =
+        getTransactCode(IKeystoreService.Stub::class.java, "updateSubcomponent")
 
     private lateinit var keystore: IBinder
 
@@ -34,7 +39,7 @@ object KeystoreInterceptor : BinderInterceptor() {
         data: Parcel
     ): Result {
         if (code == getKeyEntryTransaction) {
-            if (CertHack.canHack()) {
+            if (CertHack.canHack(callingUid)) {
                 Logger.d { "intercept pre  $target uid=$callingUid pid=$callingPid dataSz=${data.dataSize()}" }
                 if (Config.needGenerate(callingUid))
                     kotlin.runCatching {
@@ -50,43 +55,89 @@ object KeystoreInterceptor : BinderInterceptor() {
                         p.writeTypedObject(response, 0)
                         return OverrideReply(0, p)
                     }
-                else if (Config.needHack(callingUid)) return Continue
+                else if (Config.needHack(callingUid)) {
+                    kotlin.runCatching {
+                        data.enforceInterface(IKeystoreService.DESCRIPTOR)
+                        val descriptor =
+                            data.readTypedObject(KeyDescriptor.CREATOR) ?: return@runCatching
+                        val key = KeyEntryReplyCache.keyOf(callingUid, descriptor)
+                        val cached = KeyEntryReplyCache.get(key)
+                        if (cached == null) {
+                            KeyEntryReplyCache.begin(key)
+                            return@runCatching
+                        }
+                        Logger.d { "serve cached key entry uid=$callingUid alias=${descriptor.alias}" }
+                        return OverrideReply(0, cached)
+                    }
+                    return Continue
+                }
                 return Skip
             }
+        } else if (code == deleteKeyTransaction) {
+            kotlin.runCatching {
+                data.enforceInterface(IKeystoreService.DESCRIPTOR)
+                val descriptor = data.readTypedObject(KeyDescriptor.CREATOR) ?: return@runCatching
+                KeyEntryReplyCache.invalidate(KeyEntryReplyCache.keyOf(callingUid, descriptor))
+                descriptor.alias?.let { SecurityLevelInterceptor.removeKey(callingUid, it) }
+            }
+        } else if (code == updateSubcomponentTransaction) {
+            // new certificates for the key, the cached reply still carries the old ones
+            kotlin.runCatching {
+                data.enforceInterface(IKeystoreService.DESCRIPTOR)
+                val descriptor = data.readTypedObject(KeyDescriptor.CREATOR) ?: return@runCatching
+                KeyEntryReplyCache.invalidate(KeyEntryReplyCache.keyOf(callingUid, descriptor))
+            }
         }
         return Skip
     }
 
+    override fun postTransactNeeds(code: Int): Int =
+        if (code == getKeyEntryTransaction) NEED_DATA or NEED_REPLY else NEED_NONE
+
     override fun onPostTransact(
         target: IBinder,
         code: Int,
         flags: Int,
         callingUid: Int,
         callingPid: Int,
-        data: Parcel,
-        reply: Parcel?,
+        data: ParcelView,
+        reply: ParcelView?,
         resultCode: Int
     ): Result {
         if (target != keystore || code != getKeyEntryTransaction || reply == null) return Skip
+        return onGetKeyEntryPost(target, callingUid, callingPid, data.get(), reply.get())
+    }
+
+    private fun onGetKeyEntryPost(
+        target: IBinder,
+        callingUid: Int,
+        callingPid: Int,
+        data: Parcel,
+        reply: Parcel
+    ): Result {
         if (kotlin.runCatching { reply.readException() }.exceptionOrNull() != null) return Skip
-        val p = Parcel.obtain()
-        Logger.d { "intercept post $target uid=$callingUid pid=$callingPid dataSz=${data.dataSize()} replySz=${reply.dataSize()}" }
+        Logger.d { "intercept post $target uid=$callingUid pid=$callingPid replySz=${reply.dataSize()}" }
         try {
-            val response = reply.readTypedObject(KeyEntryResponse.CREATOR)
-            val chain = Utils.getCertificateChain(response)
+            val fields = KeyEntryReplyRewriter.locate(reply) ?: return Skip
+            val chain = Utils.getCertificateChain(fields.certificate, fields.certificateChain)
             if (chain != null) {
                 val newChain = CertHack.hackCertificateChain(chain, callingUid)
-                Utils.putCertificateChain(response, newChain)
+                if (newChain === chain) return Skip
+                // Only the two certificate fields are re-encoded, the rest is copied as bytes
+                val leaf = Utils.encodeCertificate(newChain[0])
+                val tail = Utils.encodeCertificateChainTail(newChain)
+                val p = KeyEntryReplyRewriter.splice(reply, fields, leaf, tail)
                 Logger.i("hacked cert of uid=$callingUid")
-                p.writeNoException()
-                p.writeTypedObject(response, 0)
+                kotlin.runCatching {
+                    data.enforceInterface(IKeystoreService.DESCRIPTOR)
+                    data.readTypedObject(KeyDescriptor.CREATOR)?.let {
+                        KeyEntryReplyCache.put(KeyEntryReplyCache.keyOf(callingUid, it), reply, fields, leaf, tail)
+                    }
+                }.onFailure { Logger.e("failed to cache key entry reply", it) }
                 return OverrideReply(0, p)
-            } else {
-                p.recycle()
             }
         } catch (t: Throwable) {
             Logger.e("failed to hack certificate chain of uid=$callingUid pid=$callingPid!", t)
-            p.recycle()
         }
         return Skip
     }
@@ -172,6 +223,8 @@ object KeystoreInterceptor : BinderInterceptor() {
         // Register PropertyHiderService with the native layer
         val propertyHiderService = PropertyHiderService()
         registerPropertyService(bd, propertyHiderService) // Assumes registerPropertyService is in BinderInterceptor companion
+        // Values are then served from shared memory; the binder service stays as fallback
+        PropertyValueTable.getSharedMemory()?.let { registerPropertyTable(bd, it) }
 
         keystore = b
         Logger.i("register for Keystore $keystore!")
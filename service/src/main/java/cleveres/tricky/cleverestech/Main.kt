@@ -38,6 +38,8 @@ fun main(args: Array<String>) {
             continue
         }
         Config.initialize()
+        CacheBudget.start()
+        PressureMonitor.start()
         while (true) {
             Thread.sleep(1000000)
         }
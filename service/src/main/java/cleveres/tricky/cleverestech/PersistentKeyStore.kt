@@ -0,0 +1,335 @@
+package cleveres.tricky.cleverestech
+
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.File
+import java.io.RandomAccessFile
+import java.security.SecureRandom
+import java.util.concurrent.Executors
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Disk-backed (uid, alias) -> value store for generated keys.
+ *
+ * Entries are AES-GCM encrypted frames in an append-only log; an in-memory index maps
+ * each key to the offset of its latest frame and only [cacheSize] decoded values stay in heap,
+ * at most [perUidCacheSize] of them per uid.
+ * Overwrites and removals leave dead frames behind, which a background compaction drops
+ * once they outweigh the live ones. If the log cannot be opened the store degrades to the LRU alone.
+ */
+class PersistentKeyStore<V : Any>(
+    private val file: File?,
+    secret: ByteArray,
+    private val codec: Codec<V>,
+    cacheSize: Int = 128,
+    perUidCacheSize: Int = 32
+) {
+    interface Codec<V : Any> {
+        fun encode(value: V): ByteArray
+        /** Returns null when the bytes can no longer be decoded, e.g. after an OS upgrade. */
+        fun decode(bytes: ByteArray): V?
+        /** Called once a decoded value leaves the in-memory cache. */
+        fun onEvicted(value: V) {}
+    }
+
+    data class Key(val uid: Int, val alias: String)
+
+    private class Slot(val offset: Long, val length: Int)
+
+    companion object {
+        private const val MAGIC = 0x43544b53 // "CTKS"
+        private const val VERSION = 1
+        private const val HEADER_SIZE = 8L
+        private const val IV_SIZE = 12
+        private const val TAG_BITS = 128
+        private const val TYPE_PUT = 1
+        private const val TYPE_DELETE = 2
+        private const val MIN_COMPACT_BYTES = 64 * 1024L
+
+        private val compactor = Executors.newSingleThreadExecutor {
+            Thread(it, "KeyStoreCompactor").apply { isDaemon = true }
+        }
+    }
+
+    private val keySpec = SecretKeySpec(secret, "AES")
+    private val random = SecureRandom()
+    private val decoded = UidPartitionedCache<String, V>(perUidCacheSize, cacheSize) { _, v -> codec.onEvicted(v) }
+    private val index = HashMap<Key, Slot>()
+    private var log: RandomAccessFile? = null
+    private var liveBytes = 0L
+    private var deadBytes = 0L
+    @Volatile
+    private var compactionPending = false
+    private val compactionLock = Any()
+
+    init {
+        if (file != null) {
+            runCatching { open(file) }.onFailure {
+                Logger.e("failed to open key store ${file.name}, keeping keys in memory only", it)
+                log?.close()
+                log = null
+                index.clear()
+            }
+        }
+    }
+
+    val size: Int
+        @Synchronized get() = if (log != null) index.size else decoded.size
+
+    /** Counters of the decoded values kept in heap. */
+    fun cacheStats(): KeyCache.Stats = decoded.stats()
+
+    /** Drops decoded values down to [maxEntries]; they are read back from the log on demand. */
+    fun trimCache(maxEntries: Int) {
+        // without a log the cache is the only copy
+        if (log == null) return
+        decoded.trimTo(maxEntries)
+    }
+
+    operator fun get(key: Key): V? {
+        decoded[key.uid, key.alias]?.let { return it }
+        val bytes = synchronized(this) {
+            val slot = index[key] ?: return null
+            readFrame(slot)
+        } ?: return null
+        val record = DataInputStream(bytes.inputStream())
+        record.readByte()
+        record.readInt()
+        record.readUTF()
+        val value = codec.decode(ByteArray(record.readInt()).also { record.readFully(it) })
+            ?: return null
+        decoded[key.uid, key.alias] = value
+        return value
+    }
+
+    operator fun set(key: Key, value: V) {
+        decoded[key.uid, key.alias] = value
+        append(key, TYPE_PUT, codec.encode(value))
+    }
+
+    fun remove(key: Key) {
+        decoded.remove(key.uid, key.alias)
+        synchronized(this) {
+            if (!index.containsKey(key)) return
+        }
+        append(key, TYPE_DELETE, null)
+    }
+
+    @Synchronized
+    private fun append(key: Key, type: Int, payload: ByteArray?) {
+        val raf = log ?: return
+        runCatching {
+            val plain = ByteArrayOutputStream()
+            DataOutputStream(plain).use {
+                it.writeByte(type)
+                it.writeInt(key.uid)
+                it.writeUTF(key.alias)
+                if (payload != null) {
+                    it.writeInt(payload.size)
+                    it.write(payload)
+                }
+            }
+            val frame = encrypt(plain.toByteArray())
+            val offset = raf.length()
+            raf.seek(offset)
+            raf.writeInt(frame.size)
+            raf.write(frame)
+            val frameBytes = 4L + frame.size
+            index.remove(key)?.let {
+                liveBytes -= 4L + it.length
+                deadBytes += 4L + it.length
+            }
+            if (type == TYPE_PUT) {
+                index[key] = Slot(offset, frame.size)
+                liveBytes += frameBytes
+            } else {
+                deadBytes += frameBytes
+            }
+            maybeCompact()
+        }.onFailure {
+            Logger.e("failed to append to key store", it)
+        }
+    }
+
+    private fun open(f: File) {
+        f.parentFile?.mkdirs()
+        val raf = RandomAccessFile(f, "rw")
+        log = raf
+        f.setReadable(false, false)
+        f.setReadable(true, true)
+        if (raf.length() < HEADER_SIZE) {
+            raf.setLength(0)
+            raf.writeInt(MAGIC)
+            raf.writeInt(VERSION)
+            return
+        }
+        raf.seek(0)
+        if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+            Logger.e("key store ${f.name} has an unknown format, starting over")
+            raf.setLength(0)
+            raf.writeInt(MAGIC)
+            raf.writeInt(VERSION)
+            return
+        }
+        var offset = HEADER_SIZE
+        val end = raf.length()
+        while (offset + 4 <= end) {
+            raf.seek(offset)
+            val length = raf.readInt()
+            if (length <= IV_SIZE || offset + 4 + length > end) break
+            val frame = ByteArray(length).also { raf.readFully(it) }
+            val record = runCatching {
+                val plain = DataInputStream(decrypt(frame).inputStream())
+                plain.readByte().toInt() to Key(plain.readInt(), plain.readUTF())
+            }.getOrNull()
+            if (record == null) {
+                // the length fits, so only this frame is bad; the next compaction drops it
+                Logger.e("key store ${f.name} skipping unreadable frame at $offset")
+                deadBytes += 4L + length
+                offset += 4L + length
+                continue
+            }
+            val (type, key) = record
+            index.remove(key)?.let {
+                liveBytes -= 4L + it.length
+                deadBytes += 4L + it.length
+            }
+            if (type == TYPE_PUT) {
+                index[key] = Slot(offset, length)
+                liveBytes += 4L + length
+            } else {
+                deadBytes += 4L + length
+            }
+            offset += 4L + length
+        }
+        if (offset < end) {
+            // torn write from a previous crash, drop the tail
+            Logger.e("key store ${f.name} truncated at $offset of $end")
+            raf.setLength(offset)
+        }
+        Logger.i("key store ${f.name} loaded ${index.size} keys")
+        maybeCompact()
+    }
+
+    private fun readFrame(slot: Slot): ByteArray? {
+        val raf = log ?: return null
+        return runCatching {
+            raf.seek(slot.offset + 4)
+            decrypt(ByteArray(slot.length).also { raf.readFully(it) })
+        }.onFailure {
+            Logger.e("failed to read key store frame", it)
+        }.getOrNull()
+    }
+
+    private fun maybeCompact() {
+        if (compactionPending || deadBytes < MIN_COMPACT_BYTES || deadBytes < liveBytes) return
+        compactionPending = true
+        compactor.execute {
+            try {
+                compact()
+            } finally {
+                compactionPending = false
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with live frames only; frames are copied without re-encryption.
+     * The bulk copy runs without the store lock, so reads and appends go on meanwhile; frames
+     * appended in that time are carried over under the lock just before the files are swapped.
+     */
+    internal fun compact() {
+        synchronized(compactionLock) {
+            compactLocked()
+        }
+    }
+
+    private fun compactLocked() {
+        val f = file ?: return
+        val tmp = File(f.path + ".compact")
+        val (snapshot, snapshotEnd) = synchronized(this) {
+            val raf = log ?: return
+            HashMap(index) to raf.length()
+        }
+        runCatching {
+            RandomAccessFile(tmp, "rw").use { out ->
+                out.setLength(0)
+                out.writeInt(MAGIC)
+                out.writeInt(VERSION)
+                val copied = HashMap<Key, Slot>(snapshot.size)
+                RandomAccessFile(f, "r").use { src ->
+                    for ((key, slot) in snapshot) {
+                        val frame = ByteArray(slot.length)
+                        src.seek(slot.offset + 4)
+                        src.readFully(frame)
+                        copied[key] = Slot(out.filePointer, slot.length)
+                        out.writeInt(slot.length)
+                        out.write(frame)
+                    }
+                }
+                synchronized(this) {
+                    val raf = log ?: throw IllegalStateException("key store closed")
+                    // everything appended during the copy goes over as is, dead frames included
+                    val tailStart = out.filePointer
+                    copyRange(raf, snapshotEnd, raf.length(), out)
+                    out.fd.sync()
+                    val next = HashMap<Key, Slot>(index.size)
+                    var live = 0L
+                    for ((key, slot) in index) {
+                        next[key] = if (slot.offset >= snapshotEnd) {
+                            Slot(slot.offset - snapshotEnd + tailStart, slot.length)
+                        } else {
+                            copied[key] ?: throw IllegalStateException("index changed during compaction")
+                        }
+                        live += 4L + slot.length
+                    }
+                    raf.close()
+                    if (!tmp.renameTo(f)) throw IllegalStateException("rename failed")
+                    log = RandomAccessFile(f, "rw")
+                    index.clear()
+                    index.putAll(next)
+                    liveBytes = live
+                    deadBytes = out.length() - HEADER_SIZE - live
+                    Logger.i("key store ${f.name} compacted to ${index.size} keys")
+                }
+            }
+        }.onFailure {
+            Logger.e("failed to compact key store", it)
+            tmp.delete()
+            synchronized(this) {
+                if (log?.channel?.isOpen != true) {
+                    log = runCatching { RandomAccessFile(f, "rw") }.getOrNull()
+                }
+            }
+        }
+    }
+
+    private fun copyRange(src: RandomAccessFile, from: Long, to: Long, out: RandomAccessFile) {
+        val buffer = ByteArray(64 * 1024)
+        src.seek(from)
+        var left = to - from
+        while (left > 0) {
+            val n = src.read(buffer, 0, minOf(buffer.size.toLong(), left).toInt())
+            if (n < 0) throw EOFException("key store shrank during compaction")
+            out.write(buffer, 0, n)
+            left -= n
+        }
+    }
+
+    private fun encrypt(plain: ByteArray): ByteArray {
+        val iv = ByteArray(IV_SIZE).also { random.nextBytes(it) }
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.ENCRYPT_MODE, keySpec, GCMParameterSpec(TAG_BITS, iv))
+        return iv + cipher.doFinal(plain)
+    }
+
+    private fun decrypt(frame: ByteArray): ByteArray {
+        val cipher = Cipher.getInstance("AES/GCM/NoPadding")
+        cipher.init(Cipher.DECRYPT_MODE, keySpec, GCMParameterSpec(TAG_BITS, frame, 0, IV_SIZE))
+        return cipher.doFinal(frame, IV_SIZE, frame.size - IV_SIZE)
+    }
+}
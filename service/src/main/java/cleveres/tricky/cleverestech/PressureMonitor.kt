@@ -0,0 +1,207 @@
+package cleveres.tricky.cleverestech
+
+import android.system.Os
+import android.system.OsConstants
+import android.system.StructPollfd
+import cleveres.tricky.cleverestech.rkp.RkpKeyPool
+import java.io.Closeable
+import java.io.File
+import java.io.FileDescriptor
+import java.io.IOException
+import kotlin.concurrent.thread
+
+/**
+ * Sheds cache memory while the system is under memory pressure, from Linux PSI.
+ *
+ * Triggers on /proc/pressure/memory wake the monitor on "some" and "full" stalls. A stall
+ * scales its [CacheBudget] down, emptying caches in [SHED_ORDER] (cheapest to rebuild first) and
+ * shrinking the RKP key pool; entering a full stall also drops decoded keyboxes and remote
+ * keys back to their PEM form. Once no stall has fired for [QUIET_MS] the budget grows back one
+ * [GROW_STEP] per step. Kernels or contexts without trigger support fall back to polling
+ * the avg10 figures of the same file.
+ */
+open class PressureMonitor internal constructor(
+    private val budget: CacheBudget,
+    private val depthScale: (Double) -> Unit = { RkpKeyPool.setDepthScale(it) },
+    private val dropDecoded: () -> Unit = {
+        KeyboxLibrary.dropDecoded()
+        RemoteKeyManager.dropDecoded()
+    }
+) {
+    /** The daemon's monitor, driving the global [CacheBudget]; tests build their own. */
+    companion object : PressureMonitor(CacheBudget) {
+        private const val TAG = "PressureMonitor"
+        private const val PSI_MEMORY = "/proc/pressure/memory"
+
+        // stall thresholds per one second window, in microseconds
+        private const val WINDOW_US = 1_000_000
+        private const val SOME_STALL_US = 150_000
+        private const val FULL_STALL_US = 50_000
+        // percentages used when only the averages can be read
+        private const val SOME_AVG10 = 15.0
+        private const val FULL_AVG10 = 5.0
+        private const val AVERAGE_POLL_MS = 2_000L
+
+        private const val SOME_SCALE = 0.5
+        private const val FULL_SCALE = 0.125
+        private const val GROW_STEP = 0.125
+        internal const val QUIET_MS = 30_000L
+        private const val STEP_MS = 10_000L
+
+        /** Budget members emptied first under pressure; the RKP handles cannot be rebuilt and go last. */
+        val SHED_ORDER = listOf(
+            "key_entry_replies", "hacked_chains", "keybox_library", "generated_keys", "packages", "rkp_key_pairs"
+        )
+    }
+
+    enum class Level { NONE, SOME, FULL }
+
+    interface Source : Closeable {
+        /** Waits up to [timeoutMs] for a stall; NONE when none fired. Throws once the source is gone. */
+        fun await(timeoutMs: Long): Level
+    }
+
+    /** Kernel PSI triggers, one descriptor per stall kind, waited on with poll(2). */
+    class TriggerSource(path: String) : Source {
+        private val some = openTrigger(path, "some $SOME_STALL_US $WINDOW_US")
+        private val full = try {
+            openTrigger(path, "full $FULL_STALL_US $WINDOW_US")
+        } catch (e: Exception) {
+            Os.close(some)
+            throw e
+        }
+
+        private fun openTrigger(path: String, spec: String): FileDescriptor {
+            val fd = Os.open(path, OsConstants.O_RDWR or OsConstants.O_NONBLOCK, 0)
+            try {
+                val bytes = (spec + "\u0000").toByteArray()
+                Os.write(fd, bytes, 0, bytes.size)
+            } catch (e: Exception) {
+                Os.close(fd)
+                throw e
+            }
+            return fd
+        }
+
+        override fun await(timeoutMs: Long): Level {
+            val fds = arrayOf(some, full).map {
+                StructPollfd().apply {
+                    fd = it
+                    events = OsConstants.POLLPRI.toShort()
+                }
+            }.toTypedArray()
+            if (Os.poll(fds, timeoutMs.toInt()) <= 0) return Level.NONE
+            for (p in fds) {
+                if (p.revents.toInt() and OsConstants.POLLERR != 0) throw IOException("PSI trigger closed")
+            }
+            return when {
+                fds[1].revents.toInt() and OsConstants.POLLPRI != 0 -> Level.FULL
+                fds[0].revents.toInt() and OsConstants.POLLPRI != 0 -> Level.SOME
+                else -> Level.NONE
+            }
+        }
+
+        override fun close() {
+            Os.close(some)
+            Os.close(full)
+        }
+    }
+
+    /** Reads the avg10 figures of a PSI file every [intervalMs]; works on any file in that format. */
+    class AverageSource(private val file: File, private val intervalMs: Long = AVERAGE_POLL_MS) : Source {
+        override fun await(timeoutMs: Long): Level {
+            Thread.sleep(minOf(intervalMs, timeoutMs))
+            var some = 0.0
+            var full = 0.0
+            file.forEachLine { line ->
+                val avg10 = line.split(' ').firstOrNull { it.startsWith("avg10=") }
+                    ?.substringAfter('=')?.toDoubleOrNull() ?: return@forEachLine
+                when {
+                    line.startsWith("some ") -> some = avg10
+                    line.startsWith("full ") -> full = avg10
+                }
+            }
+            return when {
+                full >= FULL_AVG10 -> Level.FULL
+                some >= SOME_AVG10 -> Level.SOME
+                else -> Level.NONE
+            }
+        }
+
+        override fun close() {}
+    }
+
+    @Volatile
+    var scale = 1.0
+        private set
+    private var lastPressureAt = 0L
+    private var lastGrowAt = 0L
+    // level of the previous event, so decoded keys are dropped once per full stall
+    private var lastLevel = Level.NONE
+    @Volatile
+    private var started = false
+
+    fun start() {
+        if (started) return
+        started = true
+        thread(isDaemon = true, name = TAG) {
+            val source = openSource(PSI_MEMORY) ?: return@thread
+            source.use { run(it) }
+        }
+    }
+
+    private fun openSource(path: String): Source? {
+        if (!File(path).exists()) {
+            Logger.i("$TAG: $path not available, memory pressure is not monitored")
+            return null
+        }
+        return runCatching<Source> { TriggerSource(path) }.getOrElse {
+            Logger.i("$TAG: PSI triggers unavailable (${it.message}), polling averages")
+            AverageSource(File(path))
+        }
+    }
+
+    /** Feeds stalls from [source] into the monitor until it fails. */
+    internal fun run(source: Source, clock: () -> Long = { System.nanoTime() / 1_000_000 }) {
+        while (true) {
+            val level = try {
+                source.await(STEP_MS)
+            } catch (e: InterruptedException) {
+                return
+            } catch (e: Exception) {
+                Logger.e("$TAG: pressure source failed, stopping", e)
+                return
+            }
+            if (level == Level.NONE) onQuiet(clock()) else onPressure(level, clock())
+        }
+    }
+
+    @Synchronized
+    internal fun onPressure(level: Level, now: Long) {
+        lastPressureAt = now
+        val target = if (level == Level.FULL) FULL_SCALE else SOME_SCALE
+        // a sustained stall fires every window; dropping again would only redo the decodes
+        if (level == Level.FULL && lastLevel != Level.FULL) dropDecoded()
+        lastLevel = level
+        if (target >= scale) return
+        Logger.i("$TAG: $level memory stall, cache budget at ${(target * 100).toInt()}%")
+        apply(target)
+    }
+
+    @Synchronized
+    internal fun onQuiet(now: Long) {
+        lastLevel = Level.NONE
+        if (scale >= 1.0) return
+        if (now - lastPressureAt < QUIET_MS || now - lastGrowAt < QUIET_MS) return
+        lastGrowAt = now
+        val next = minOf(1.0, scale + GROW_STEP)
+        Logger.i("$TAG: pressure cleared, cache budget at ${(next * 100).toInt()}%")
+        apply(next)
+    }
+
+    private fun apply(next: Double) {
+        scale = next
+        budget.setPressureScale(next, SHED_ORDER)
+        depthScale(next)
+    }
+}
@@ -0,0 +1,131 @@
+package cleveres.tricky.cleverestech
+
+import android.os.Build
+import android.os.SharedMemory
+import androidx.annotation.RequiresApi
+import java.lang.invoke.MethodHandles
+import java.lang.invoke.VarHandle
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Shared-memory table of spoofed property values read by the native
+ * __system_property_get hook without any binder round trip.
+ *
+ * Layout (native byte order, must match PropertyTable in binder_interceptor.h):
+ * magic u32, seq u32, count u32, reserved u32, then [count] slots of
+ * { length i32, value[PROP_VALUE_MAX] }. A negative length means "not spoofed".
+ * Writers bump seq to odd before touching slots and back to even afterwards.
+ */
+object PropertyValueTable {
+    // Must match g_target_properties in binder_interceptor.cpp
+    val TARGET_PROPERTIES = listOf(
+        "ro.boot.verifiedbootstate",
+        "ro.boot.flash.locked",
+        "ro.boot.veritymode",
+        "ro.boot.vbmeta.device_state",
+        "ro.boot.warranty_bit",
+        "ro.secure",
+        "ro.debuggable",
+        "ro.oem_unlock_supported"
+    )
+
+    private const val MAGIC = 0x50525454
+    private const val PROP_VALUE_MAX = 92
+    private const val HEADER_SIZE = 16
+    private const val SEQ_OFFSET = 4
+    private const val SLOT_SIZE = 4 + PROP_VALUE_MAX
+    val SIZE = HEADER_SIZE + TARGET_PROPERTIES.size * SLOT_SIZE
+
+    private var memory: SharedMemory? = null
+    private var buffer: ByteBuffer? = null
+    private var seq = 0
+
+    /** Stores seq so the native reader never sees slot writes outside an odd/even pair. */
+    private interface SeqStore {
+        /** Odd store, ordered before every slot write that follows. */
+        fun open(b: ByteBuffer, seq: Int)
+        /** Even store, ordered after every slot write before it. */
+        fun close(b: ByteBuffer, seq: Int)
+    }
+
+    @RequiresApi(Build.VERSION_CODES.TIRAMISU)
+    private object VarHandleSeqStore : SeqStore {
+        private val handle = MethodHandles.byteBufferViewVarHandle(IntArray::class.java, ByteOrder.nativeOrder())
+
+        override fun open(b: ByteBuffer, seq: Int) {
+            handle.setRelease(b, SEQ_OFFSET, seq)
+            VarHandle.storeStoreFence()
+        }
+
+        override fun close(b: ByteBuffer, seq: Int) = handle.setRelease(b, SEQ_OFFSET, seq)
+    }
+
+    // ART has no VarHandle before API 33; libcore's Unsafe has had the fences since O
+    private object UnsafeSeqStore : SeqStore {
+        private val unsafe = Class.forName("sun.misc.Unsafe").getDeclaredField("theUnsafe")
+            .apply { isAccessible = true }.get(null)
+        private val fullFence = unsafe.javaClass.getMethod("fullFence")
+
+        override fun open(b: ByteBuffer, seq: Int) {
+            b.putInt(SEQ_OFFSET, seq)
+            fullFence.invoke(unsafe)
+        }
+
+        override fun close(b: ByteBuffer, seq: Int) {
+            fullFence.invoke(unsafe)
+            b.putInt(SEQ_OFFSET, seq)
+        }
+    }
+
+    private val seqStore: SeqStore by lazy {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) VarHandleSeqStore else UnsafeSeqStore
+    }
+
+    @Synchronized
+    fun getSharedMemory(): SharedMemory? {
+        if (memory == null) {
+            runCatching {
+                val m = SharedMemory.create("cleverestricky_props", SIZE)
+                val b = m.mapReadWrite().order(ByteOrder.nativeOrder())
+                b.putInt(0, MAGIC)
+                b.putInt(SEQ_OFFSET, 0)
+                b.putInt(8, TARGET_PROPERTIES.size)
+                b.putInt(12, 0)
+                for (i in TARGET_PROPERTIES.indices) b.putInt(HEADER_SIZE + i * SLOT_SIZE, -1)
+                memory = m
+                buffer = b
+            }.onFailure {
+                Logger.e("failed to create property table", it)
+            }
+        }
+        return memory
+    }
+
+    /**
+     * Publishes the resolved value of every target property from [vars].
+     * Values longer than PROP_VALUE_MAX - 1 bytes are truncated like the binder path did.
+     */
+    @Synchronized
+    fun publish(vars: Map<String, String>) {
+        val b = buffer ?: return
+        seq++
+        seqStore.open(b, seq)
+        TARGET_PROPERTIES.forEachIndexed { i, name ->
+            val base = HEADER_SIZE + i * SLOT_SIZE
+            val value = vars[name]
+            if (value == null) {
+                b.putInt(base, -1)
+            } else {
+                val bytes = value.toByteArray(Charsets.UTF_8)
+                val len = minOf(bytes.size, PROP_VALUE_MAX - 1)
+                for (j in 0 until len) b.put(base + 4 + j, bytes[j])
+                b.put(base + 4 + len, 0)
+                b.putInt(base, len)
+            }
+        }
+        seq++
+        seqStore.close(b, seq)
+        Logger.d { "published property table seq=$seq" }
+    }
+}
@@ -3,13 +3,13 @@ package cleveres.tricky.cleverestech
 import android.hardware.security.rkp.RpcHardwareInfo
 import java.util.Base64
 import cleveres.tricky.cleverestech.keystore.XMLParser
+import cleveres.tricky.cleverestech.rkp.CoseValidator
 import org.bouncycastle.openssl.PEMKeyPair
 import org.bouncycastle.openssl.PEMParser
 import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter
 import java.io.File
 import java.io.StringReader
 import java.security.KeyPair
-import kotlin.random.Random
 
 object RemoteKeyManager {
     private const val TAG = "RemoteKeyManager"
@@ -20,84 +20,71 @@ object RemoteKeyManager {
         val deviceInfo: ByteArray? // Pre-calculated CBOR DeviceInfo
     )
 
-    private var keys: List<RkpKey> = emptyList()
+    @Volatile
+    private var pool: RemoteKeyPool? = null
     private var hardwareInfoOverride: RpcHardwareInfo? = null
 
     fun update(f: File?) = runCatching {
         if (f == null || !f.exists()) {
             Logger.i("$TAG: remote_keys.xml not found")
-            keys = emptyList()
+            pool = null
             hardwareInfoOverride = null
             return@runCatching
         }
 
         f.bufferedReader().use { reader ->
-            val parser = XMLParser(reader)
-            val loadedKeys = mutableListOf<RkpKey>()
+            val root = XMLParser(reader).find(XMLParser.compile("RemoteKeyProvisioning"))
+            val records = mutableListOf<RemoteKeyPool.Record>()
 
-            // Parse Keys
-            val keysCount = parser.getChildCount("RemoteKeyProvisioning.Keys", "Key")
-            for (i in 0 until keysCount) {
+            // Keys are only indexed here, their PEM is decoded on first use
+            root?.child("Keys")?.children("Key")?.forEachIndexed { i, key ->
                 try {
-                    val keyPath = "RemoteKeyProvisioning.Keys.Key[$i]"
-                    // Read PrivateKey
-                    val keyText = parser.obtainPath("$keyPath.PrivateKey").get("text")
-                    if (keyText != null) {
-                        val keyPair = parsePemKeyPair(keyText)
-
-                        // Read optional overrides
-                        var macedKey: ByteArray? = null
-                        try {
-                            val macedText = parser.obtainPath("$keyPath.PublicKeyCose").get("text")
-                            if (!macedText.isNullOrBlank()) {
-                                macedKey = Base64.getDecoder().decode(macedText.trim())
-                            }
-                        } catch (e: Exception) { /* Ignore optional */ }
-
-                        var deviceInfo: ByteArray? = null
-                        try {
-                            val infoText = parser.obtainPath("$keyPath.DeviceInfo").get("text")
-                            if (!infoText.isNullOrBlank()) {
-                                deviceInfo = Base64.getDecoder().decode(infoText.trim())
-                            }
-                        } catch (e: Exception) { /* Ignore optional */ }
-
-                        if (keyPair != null) {
-                            loadedKeys.add(RkpKey(keyPair, macedKey, deviceInfo))
-                        }
+                    val keyText = key.childText("PrivateKey")?.takeIf { it.isNotBlank() } ?: return@forEachIndexed
+                    val macedKey = key.childText("PublicKeyCose")?.let {
+                        runCatching { Base64.getDecoder().decode(it.trim()) }.getOrNull()
                     }
+                    // malformed blobs are dropped here rather than served at request time
+                    val deviceInfo = key.childText("DeviceInfo")?.let {
+                        runCatching { Base64.getDecoder().decode(it.trim()) }.getOrNull()
+                    }?.takeIf { isValidDeviceInfo(i, it) }
+                    records.add(RemoteKeyPool.Record(i, keyText.trim(), macedKey, deviceInfo))
                 } catch (e: Exception) {
                     Logger.e("$TAG: Failed to parse key $i: ${e.message}")
                 }
             }
 
-            keys = loadedKeys
-            Logger.i("$TAG: Loaded ${keys.size} remote keys")
+            pool = RemoteKeyPool(records, ::parsePemKeyPair)
+            Logger.i("$TAG: Loaded ${records.size} remote keys")
 
-            // Parse HardwareInfo override
-            try {
-                val hwPath = "RemoteKeyProvisioning.HardwareInfo"
-                // Check version to confirm section exists
-                val versionStr = parser.obtainPath("$hwPath.VersionNumber").get("text")
-                if (versionStr != null) {
-                    val info = RpcHardwareInfo()
-                    info.versionNumber = versionStr.toInt()
-                    info.rpcAuthorName = try { parser.obtainPath("$hwPath.RpcAuthorName").get("text") } catch(e:Exception) { "Google" }
-                    info.supportedEekCurve = try { parser.obtainPath("$hwPath.SupportedEekCurve").get("text")?.toInt() ?: 2 } catch(e:Exception) { 2 }
-                    info.uniqueId = "generic"
-                    info.supportedNumKeysInCsr = try { parser.obtainPath("$hwPath.SupportedNumKeysInCsr").get("text")?.toInt() ?: 20 } catch(e:Exception) { 20 }
-                    hardwareInfoOverride = info
-                    Logger.i("$TAG: Loaded HardwareInfo override")
-                }
-            } catch (e: Exception) {
-                // Ignore if missing
-                hardwareInfoOverride = null
+            // Parse HardwareInfo override, the version confirms the section exists
+            val hw = root?.child("HardwareInfo")
+            val version = hw?.childInt("VersionNumber")
+            hardwareInfoOverride = if (hw != null && version != null) {
+                RpcHardwareInfo().apply {
+                    versionNumber = version
+                    rpcAuthorName = hw.childText("RpcAuthorName") ?: "Google"
+                    supportedEekCurve = hw.childInt("SupportedEekCurve") ?: 2
+                    uniqueId = "generic"
+                    supportedNumKeysInCsr = hw.childInt("SupportedNumKeysInCsr") ?: 20
+                }.also { Logger.i("$TAG: Loaded HardwareInfo override") }
+            } else {
+                null
             }
         }
     }.onFailure {
         Logger.e("$TAG: Failed to update remote keys", it)
     }
 
+    private fun isValidDeviceInfo(index: Int, deviceInfo: ByteArray): Boolean {
+        return try {
+            CoseValidator.validateDeviceInfo(deviceInfo)
+            true
+        } catch (e: IllegalStateException) {
+            Logger.e("$TAG: DeviceInfo of key $index is malformed (${e.message}), ignoring it")
+            false
+        }
+    }
+
     private fun parsePemKeyPair(pem: String): KeyPair? {
         return try {
             PEMParser(StringReader(pem.trim())).use { parser ->
@@ -114,10 +101,19 @@ object RemoteKeyManager {
         }
     }
 
-    fun getKeyPair(): RkpKey? {
-        if (keys.isEmpty()) return null
-        // Random rotation for smart evasion
-        return keys[Random.nextInt(keys.size)]
+    /** Releases decoded remote keys under memory pressure. */
+    fun dropDecoded() {
+        pool?.dropDecoded()
+    }
+
+    /** The least used remote key, spreading requests evenly across the set. */
+    fun getKeyPair(): RkpKey? = pool?.next()
+
+    /** DeviceInfo shipped with the remote key whose COSE_Mac0 is [macedKey], if any. */
+    fun findDeviceInfo(macedKey: ByteArray): ByteArray? {
+        val p = pool ?: return null
+        val parsed = runCatching { CoseValidator.parseMacedPublicKey(macedKey) }.getOrNull() ?: return null
+        return p.findByPublicKey(parsed.x, parsed.y)?.deviceInfo
     }
 
     fun getHardwareInfo(): RpcHardwareInfo? {
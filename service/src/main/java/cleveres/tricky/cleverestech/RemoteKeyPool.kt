@@ -0,0 +1,128 @@
+package cleveres.tricky.cleverestech
+
+import cleveres.tricky.cleverestech.rkp.CoseValidator
+import java.nio.ByteBuffer
+import java.security.KeyPair
+import java.security.MessageDigest
+import java.util.PriorityQueue
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Remote RKP keys, kept as undecoded PEM until first use.
+ *
+ * Only [decodedCacheSize] key pairs are decoded at a time. They form the rotation: each call hands
+ * out the least used decoded key, and once per pass over the rotation its most used key is
+ * swapped for the least used idle one. A thousand-key file then costs one decode per pass instead
+ * of one per call, while usage still evens out over all keys. Records are indexed by SHA-256 of their raw public point (x || y) so a COSE_Key seen in a
+ * certificate request maps back to its record in O(1). Keys that ship a PublicKeyCose are
+ * indexed at load; the others once they are first decoded.
+ */
+internal class RemoteKeyPool(
+    records: List<Record>,
+    private val decoder: (String) -> KeyPair?,
+    private val decodedCacheSize: Int = 64
+) {
+    class Record(val index: Int, val pem: String, macedPublicKey: ByteArray?, val deviceInfo: ByteArray?) {
+        @Volatile
+        var macedPublicKey = macedPublicKey
+            internal set
+        internal var uses = 0L
+        internal var verified = false
+    }
+
+    private val byPublicKey = ConcurrentHashMap<ByteBuffer, Record>()
+    // one spare slot for the key being admitted before the retired one leaves
+    private val decoded = KeyCache<Int, KeyPair>(decodedCacheSize + 1)
+    private val byUses = compareBy<Record>({ it.uses }, { it.index })
+    private val rotation = PriorityQueue(maxOf(1, decodedCacheSize), byUses)
+    private val idle = PriorityQueue(maxOf(1, records.size), byUses)
+    private var sinceSwap = 0
+
+    init {
+        for (record in records) {
+            record.macedPublicKey?.let { maced ->
+                runCatching { CoseValidator.parseMacedPublicKey(maced) }
+                    .onSuccess { byPublicKey[digestOf(it.x, it.y)] = record }
+                    .onFailure {
+                        Logger.e("RemoteKeyPool: PublicKeyCose of key ${record.index} is malformed (${it.message}), ignoring it")
+                        record.macedPublicKey = null
+                    }
+            }
+            idle.add(record)
+        }
+    }
+
+    val size: Int
+        @Synchronized get() = rotation.size + idle.size
+
+    /** Forgets decoded key pairs; the PEM records stay and are decoded again on use. */
+    fun dropDecoded() = decoded.clear()
+
+    /** Hands out the least used key of the rotation; undecodable keys are dropped from the pool. */
+    @Synchronized
+    fun next(): RemoteKeyManager.RkpKey? {
+        if (rotation.size < decodedCacheSize || sinceSwap >= decodedCacheSize) admit()
+        while (true) {
+            val record = rotation.poll() ?: return null
+            val keyPair = decode(record)
+            if (keyPair == null) {
+                Logger.e("RemoteKeyPool: dropping undecodable key ${record.index}")
+                continue
+            }
+            record.uses++
+            sinceSwap++
+            rotation.add(record)
+            return RemoteKeyManager.RkpKey(keyPair, record.macedPublicKey, record.deviceInfo)
+        }
+    }
+
+    /** Moves the least used idle key into the rotation, retiring its most used key if it is full. */
+    private fun admit() {
+        while (true) {
+            val record = idle.poll() ?: return
+            if (decode(record) == null) {
+                Logger.e("RemoteKeyPool: dropping undecodable key ${record.index}")
+                continue
+            }
+            if (rotation.size >= decodedCacheSize) {
+                rotation.maxWithOrNull(byUses)?.let {
+                    rotation.remove(it)
+                    decoded.remove(it.index)
+                    idle.add(it)
+                }
+            }
+            rotation.add(record)
+            sinceSwap = 0
+            return
+        }
+    }
+
+    /** Finds the record whose public point is (x, y). */
+    fun findByPublicKey(x: ByteArray, y: ByteArray): Record? = byPublicKey[digestOf(x, y)]
+
+    private fun decode(record: Record): KeyPair? {
+        decoded[record.index]?.let { return it }
+        val keyPair = decoder(record.pem) ?: return null
+        if (!record.verified) {
+            record.verified = true
+            CoseValidator.publicPoint(keyPair.public)?.let { (x, y) -> byPublicKey[digestOf(x, y)] = record }
+            record.macedPublicKey?.let { maced ->
+                val parsed = CoseValidator.parseMacedPublicKey(maced)
+                if (!CoseValidator.matchesPublicKey(parsed, keyPair.public)) {
+                    Logger.e("RemoteKeyPool: PublicKeyCose of key ${record.index} does not match its private key, ignoring it")
+                    byPublicKey.remove(digestOf(parsed.x, parsed.y), record)
+                    record.macedPublicKey = null
+                }
+            }
+        }
+        decoded[record.index] = keyPair
+        return keyPair
+    }
+
+    private fun digestOf(x: ByteArray, y: ByteArray): ByteBuffer {
+        val md = MessageDigest.getInstance("SHA-256")
+        md.update(x)
+        md.update(y)
+        return ByteBuffer.wrap(md.digest())
+    }
+}
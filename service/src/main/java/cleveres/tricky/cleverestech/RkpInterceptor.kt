@@ -4,14 +4,17 @@ import android.hardware.security.rkp.DeviceInfo
 import android.hardware.security.rkp.IRemotelyProvisionedComponent
 import android.hardware.security.rkp.MacedPublicKey
 import android.hardware.security.rkp.ProtectedData
-import android.hardware.security.rkp.RpcHardwareInfo
 import android.os.IBinder
 import android.os.Parcel
 import cleveres.tricky.cleverestech.binder.BinderInterceptor
 import cleveres.tricky.cleverestech.keystore.CertHack
+import cleveres.tricky.cleverestech.rkp.RkpKeyPool
+import cleveres.tricky.cleverestech.rkp.RkpTemplates
 import java.security.KeyPair
-import java.security.KeyPairGenerator
-import java.security.spec.ECGenParameterSpec
+import java.security.MessageDigest
+import java.nio.ByteBuffer
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * Handles RKP (Remote Key Provisioning) interception.
@@ -33,9 +36,26 @@ class RkpInterceptor(
         private val generateCertificateRequestV2Transaction = 
             getTransactCode(IRemotelyProvisionedComponent.Stub::class.java, "generateCertificateRequestV2")
         
-        // we cache generated keys so they can be reused in cert requests
-        private val keyPairCache = KeyCache<Int, KeyPairInfo>(100)
-        private var keyPairCounter = 0
+        // we cache generated keys so they can be reused in cert requests; not partitioned by uid,
+        // since all RKP traffic comes from the provisioner and a per-uid quota would only shrink it
+        private val keyPairCache = KeyCache<Int, KeyPairInfo>(KEY_PAIR_CACHE_SIZE, onRemoval = { _, info ->
+            macedKeyIndex.remove(digestOf(info.macedPublicKey), info)
+        })
+        // SHA-256 of the COSE_Mac0 bytes -> cached entry, follows keyPairCache insertions and removals
+        private val macedKeyIndex = ConcurrentHashMap<ByteBuffer, KeyPairInfo>()
+        private val keyPairCounter = AtomicInteger()
+        // an EC key pair, its COSE_Mac0, handle and index entry
+        private const val KEY_PAIR_BYTES = 2048
+        private const val KEY_PAIR_CACHE_SIZE = 100
+
+        init {
+            CacheBudget.register(
+                CacheBudget.EntryCountMember("rkp_key_pairs", KEY_PAIR_BYTES, keyPairCache::stats, keyPairCache::trimTo)
+            )
+        }
+
+        private fun digestOf(macedKey: ByteArray): ByteBuffer =
+            ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(macedKey))
         
         data class KeyPairInfo(
             val keyPair: KeyPair,
@@ -76,31 +96,13 @@ class RkpInterceptor(
         return Skip
     }
 
-    override fun onPostTransact(
-        target: IBinder,
-        code: Int,
-        flags: Int,
-        callingUid: Int,
-        callingPid: Int,
-        data: Parcel,
-        reply: Parcel?,
-        resultCode: Int
-    ): Result {
-        // nothing to do after the transaction
-        return Skip
-    }
+    // nothing to do after the transaction, so never copy its parcels
+    override fun postTransactNeeds(code: Int): Int = NEED_NONE
 
     // returns fake hardware info that matches what Google expects
     private fun interceptGetHardwareInfo(): Result {
         kotlin.runCatching {
-            val override = RemoteKeyManager.getHardwareInfo()
-            val info = override ?: RpcHardwareInfo().apply {
-                versionNumber = 3 // android 14+ uses version 3
-                rpcAuthorName = "Google"
-                supportedEekCurve = 2 // P-256 curve
-                uniqueId = Config.getBuildVar("DEVICE") ?: "generic"
-                supportedNumKeysInCsr = 20
-            }
+            val info = RemoteKeyManager.getHardwareInfo() ?: RkpTemplates.get().hardwareInfo
 
             val p = Parcel.obtain()
             p.writeNoException()
@@ -129,23 +131,28 @@ class RkpInterceptor(
                 deviceInfo = rkpKey.deviceInfo
                 Logger.i("Using remote key for uid=$uid")
             } else {
-                // create new P-256 key
-                val keyPairGen = KeyPairGenerator.getInstance("EC")
-                keyPairGen.initialize(ECGenParameterSpec("secp256r1"))
-                keyPair = keyPairGen.generateKeyPair()
-                macedKey = createMacedPublicKey(keyPair)
+                // P-256 key with its MAC precomputed in the background, built inline if the pool is dry
+                val pooled = RkpKeyPool.take() ?: RkpKeyPool.create()
+                if (pooled == null) {
+                    Logger.e("failed to create RKP key pair for uid=$uid")
+                    return Skip
+                }
+                keyPair = pooled.keyPair
+                macedKey = pooled.macedPublicKey
                 deviceInfo = null
             }
             
             // store handle for later use in cert requests
-            val handleIndex = keyPairCounter++
+            val handleIndex = keyPairCounter.getAndIncrement()
             val privateKeyHandle = ByteArray(32)
             privateKeyHandle[0] = (handleIndex shr 24).toByte()
             privateKeyHandle[1] = (handleIndex shr 16).toByte()
             privateKeyHandle[2] = (handleIndex shr 8).toByte()
             privateKeyHandle[3] = handleIndex.toByte()
             
-            keyPairCache[handleIndex] = KeyPairInfo(keyPair, macedKey, privateKeyHandle, deviceInfo)
+            val info = KeyPairInfo(keyPair, macedKey, privateKeyHandle, deviceInfo)
+            macedKeyIndex[digestOf(macedKey)] = info
+            keyPairCache[handleIndex] = info
             
             Logger.i("generated RKP key pair handle=$handleIndex for uid=$uid")
             
@@ -196,7 +203,7 @@ class RkpInterceptor(
                 p.writeByteArray(response)
                 val deviceInfo = DeviceInfo(deviceInfoBytes)
                 p.writeTypedObject(deviceInfo, 0)
-                val protectedData = ProtectedData(createProtectedData())
+                val protectedData = ProtectedData(RkpTemplates.get().protectedData)
                 p.writeTypedObject(protectedData, 0)
             }
             
@@ -230,11 +237,9 @@ class RkpInterceptor(
         if (keysToSign != null) {
             for (k in keysToSign) {
                 if (k.macedKey == null) continue
-                // KeyCache values() added in previous step
-                val cached = keyPairCache.values().find {
-                    java.util.Arrays.equals(it.macedPublicKey, k.macedKey)
-                }
+                val cached = macedKeyIndex[digestOf(k.macedKey)]
                 if (cached?.deviceInfo != null) return cached.deviceInfo
+                RemoteKeyManager.findDeviceInfo(k.macedKey)?.let { return it }
             }
         }
         return createDeviceInfo()
@@ -253,34 +258,6 @@ class RkpInterceptor(
         ) ?: ByteArray(0)
     }
 
-    private fun createDeviceInfo(): ByteArray {
-        val brand = Config.getBuildVar("BRAND") ?: "google"
-        val manufacturer = Config.getBuildVar("MANUFACTURER") ?: "Google"
-        val product = Config.getBuildVar("PRODUCT") ?: "generic"
-        val model = Config.getBuildVar("MODEL") ?: "Pixel"
-        val device = Config.getBuildVar("DEVICE") ?: "generic"
-        
-        return CertHack.createDeviceInfoCbor(brand, manufacturer, product, model, device)
-            ?: ByteArray(0)
-    }
-
-    private fun createProtectedData(): ByteArray {
-        // COSE_Encrypt = [protected, unprotected, ciphertext, recipients]
-        try {
-            val protectedMap = java.util.HashMap<Int, Any>()
-            protectedMap[1] = 3 // A256GCM
-            val protHeader = cleveres.tricky.cleverestech.util.CborEncoder.encode(protectedMap)
-            
-            val coseEncrypt = java.util.ArrayList<Any>()
-            coseEncrypt.add(protHeader)
-            coseEncrypt.add(java.util.HashMap<Any, Any>()) // unprotected
-            coseEncrypt.add(ByteArray(16)) // dummy ciphertext
-            coseEncrypt.add(java.util.ArrayList<Any>()) // recipients
-            
-            return cleveres.tricky.cleverestech.util.CborEncoder.encode(coseEncrypt)
-        } catch (e: Throwable) {
-            Logger.e("failed to create protected data", e)
-            return ByteArray(0)
-        }
-    }
+    // encoded once per build-var epoch
+    private fun createDeviceInfo(): ByteArray = RkpTemplates.get().deviceInfo
 }
@@ -11,11 +11,27 @@ import android.system.keystore2.KeyDescriptor
 import android.system.keystore2.KeyEntryResponse
 import android.system.keystore2.KeyMetadata
 import cleveres.tricky.cleverestech.binder.BinderInterceptor
+import cleveres.tricky.cleverestech.binder.ParcelView
+import cleveres.tricky.cleverestech.keystore.BlobStore
 import cleveres.tricky.cleverestech.keystore.CertHack
 import cleveres.tricky.cleverestech.keystore.CertHack.KeyGenParameters
+import cleveres.tricky.cleverestech.keystore.KeyEntryReplyRewriter
 import cleveres.tricky.cleverestech.keystore.Utils
+import org.bouncycastle.jce.provider.BouncyCastleProvider
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.security.KeyFactory
 import java.security.KeyPair
+import java.security.SecureRandom
 import java.security.cert.Certificate
+import java.security.spec.PKCS8EncodedKeySpec
+import java.security.spec.X509EncodedKeySpec
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 class SecurityLevelInterceptor(
     private val original: IKeystoreSecurityLevel,
     private val level: Int
@@ -23,13 +39,143 @@ class SecurityLevelInterceptor(
     companion object {
         private val generateKeyTransaction =
             getTransactCode(IKeystoreSecurityLevel.Stub::class.java, "generateKey")
-        private val keys = KeyCache<Key, Info>(1000)
+        private val importKeyTransaction =
+            getTransactCode(IKeystoreSecurityLevel.Stub::class.java, "importKey")
+        private val importWrappedKeyTransaction =
+            getTransactCode(IKeystoreSecurityLevel.Stub::class.java, "importWrappedKey")
+        private const val KEY_STORE_PATH = "/data/adb/cleverestricky/generated_keys"
+        private const val KEY_STORE_SECRET_PATH = "/data/adb/cleverestricky/generated_keys_secret"
+
+        // decoded responses need a live iSecurityLevel binder, looked up by level
+        private val securityLevels = ConcurrentHashMap<Int, IKeystoreSecurityLevel>()
+
+        // a key pair, a leaf and the authorizations; the chain suffix is shared
+        private const val KEY_ENTRY_BYTES = 4096
+
+        private val keys by lazy {
+            PersistentKeyStore(File(KEY_STORE_PATH), loadOrCreateSecret(), InfoCodec).also {
+                CacheBudget.register(CacheBudget.EntryCountMember("generated_keys", KEY_ENTRY_BYTES, it::cacheStats, it::trimCache))
+            }
+        }
+
+        private const val PRECOMPUTE_QUEUE_SIZE = 4
+
+        // warms CertHack's chain cache off the binder thread after hack-mode key generation;
+        // a generateKey burst drops jobs past the small queue instead of piling up parsed chains
+        private val precomputeExecutor = ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS, ArrayBlockingQueue(PRECOMPUTE_QUEUE_SIZE),
+            { Thread(it, "ChainPrecompute").apply { isDaemon = true } },
+            ThreadPoolExecutor.DiscardPolicy()
+        )
+
+        private fun authorization(level: Int, tag: Int, value: KeyParameterValue) = Authorization().apply {
+            keyParameter = KeyParameter()
+            keyParameter.tag = tag
+            keyParameter.value = value
+            securityLevel = level
+        }
 
         fun getKeyResponse(uid: Int, alias: String): KeyEntryResponse? =
-            keys[Key(uid, alias)]?.response
+            keys[PersistentKeyStore.Key(uid, alias)]?.response
+
+        fun removeKey(uid: Int, alias: String) {
+            keys.remove(PersistentKeyStore.Key(uid, alias))
+        }
+
+        private fun loadOrCreateSecret(): ByteArray {
+            val file = File(KEY_STORE_SECRET_PATH)
+            kotlin.runCatching {
+                if (file.exists()) {
+                    val secret = file.readBytes()
+                    if (secret.size == 32) return secret
+                    Logger.e("key store secret has a bad size, regenerating")
+                }
+            }.onFailure {
+                Logger.e("failed to read key store secret", it)
+            }
+            val secret = ByteArray(32).also { SecureRandom().nextBytes(it) }
+            kotlin.runCatching {
+                file.parentFile?.mkdirs()
+                file.writeBytes(secret)
+                file.setReadable(false, false)
+                file.setReadable(true, true)
+                // entries sealed under an older secret can no longer be read
+                File(KEY_STORE_PATH).delete()
+            }.onFailure {
+                Logger.e("failed to persist key store secret", it)
+            }
+            return secret
+        }
+    }
+
+    private object InfoCodec : PersistentKeyStore.Codec<Info> {
+        private val provider by lazy { BouncyCastleProvider() }
+
+        override fun encode(value: Info): ByteArray {
+            val p = Parcel.obtain()
+            val metadata = try {
+                p.writeTypedObject(value.response.metadata, 0)
+                p.marshall()
+            } finally {
+                p.recycle()
+            }
+            val out = ByteArrayOutputStream()
+            DataOutputStream(out).use {
+                // marshalled parcels are only stable within one platform release
+                it.writeInt(android.os.Build.VERSION.SDK_INT)
+                it.writeInt(value.response.metadata.keySecurityLevel)
+                it.writeUTF(value.keyPair.private.algorithm)
+                val pub = value.keyPair.public.encoded
+                it.writeInt(pub.size)
+                it.write(pub)
+                val priv = value.keyPair.private.encoded
+                it.writeInt(priv.size)
+                it.write(priv)
+                it.writeInt(metadata.size)
+                it.write(metadata)
+            }
+            return out.toByteArray()
+        }
+
+        override fun decode(bytes: ByteArray): Info? = kotlin.runCatching {
+            val input = DataInputStream(bytes.inputStream())
+            if (input.readInt() != android.os.Build.VERSION.SDK_INT) return null
+            val securityLevel = securityLevels[input.readInt()] ?: return null
+            val factory = KeyFactory.getInstance(input.readUTF(), provider)
+            val pub = ByteArray(input.readInt()).also { input.readFully(it) }
+            val priv = ByteArray(input.readInt()).also { input.readFully(it) }
+            val keyPair = KeyPair(
+                factory.generatePublic(X509EncodedKeySpec(pub)),
+                factory.generatePrivate(PKCS8EncodedKeySpec(priv))
+            )
+            val raw = ByteArray(input.readInt()).also { input.readFully(it) }
+            val p = Parcel.obtain()
+            val metadata = try {
+                p.unmarshall(raw, 0, raw.size)
+                p.setDataPosition(0)
+                p.readTypedObject(KeyMetadata.CREATOR)
+            } finally {
+                p.recycle()
+            } ?: return null
+            // equal chain suffixes of stored keys share one array
+            metadata.certificateChain = BlobStore.CHAINS.intern(metadata.certificateChain)
+            val response = KeyEntryResponse()
+            response.metadata = metadata
+            response.iSecurityLevel = securityLevel
+            Info(keyPair, response)
+        }.onFailure {
+            Logger.e("failed to decode stored key", it)
+        }.getOrNull()
+
+        override fun onEvicted(value: Info) {
+            BlobStore.CHAINS.release(value.response.metadata.certificateChain)
+        }
+    }
+
+    init {
+        securityLevels[level] = original
     }
 
-    data class Key(val uid: Int, val alias: String)
     data class Info(val keyPair: KeyPair, val response: KeyEntryResponse)
 
     override fun onPreTransact(
@@ -47,17 +193,16 @@ class SecurityLevelInterceptor(
                 val keyDescriptor =
                     data.readTypedObject(KeyDescriptor.CREATOR) ?: return@runCatching
                 val attestationKeyDescriptor = data.readTypedObject(KeyDescriptor.CREATOR)
-                val params = data.createTypedArray(KeyParameter.CREATOR)!!
+                val kgp = KeyGenParameters.readFrom(data)
                 // val aFlags = data.readInt()
                 // val entropy = data.createByteArray()
-                val kgp = KeyGenParameters(params)
                 if (kgp.attestationChallenge != null) {
                     var issuerKeyPair: KeyPair? = null
                     var issuerChain: List<Certificate>? = null
 
                     if (attestationKeyDescriptor != null) {
                         Logger.i("intercept attestation key request alias=${attestationKeyDescriptor.alias}")
-                        val keyInfo = keys[Key(callingUid, attestationKeyDescriptor.alias)]
+                        val keyInfo = keys[PersistentKeyStore.Key(callingUid, attestationKeyDescriptor.alias)]
                         if (keyInfo != null) {
                             issuerKeyPair = keyInfo.keyPair
                             issuerChain = Utils.getCertificateChain(keyInfo.response)?.toList()
@@ -69,7 +214,7 @@ class SecurityLevelInterceptor(
                     val pair = CertHack.generateKeyPair(callingUid, keyDescriptor, kgp, issuerKeyPair, issuerChain)
                         ?: return@runCatching
                     val response = buildResponse(pair.second, kgp, keyDescriptor, callingUid)
-                    keys[Key(callingUid, keyDescriptor.alias)] = Info(pair.first, response)
+                    keys[PersistentKeyStore.Key(callingUid, keyDescriptor.alias)] = Info(pair.first, response)
                     val p = Parcel.obtain()
                     p.writeNoException()
                     p.writeTypedObject(response.metadata, 0)
@@ -78,10 +223,72 @@ class SecurityLevelInterceptor(
             }.onFailure {
                 Logger.e("parse key gen request", it)
             }
+        } else if (code == generateKeyTransaction && Config.needHack(callingUid)) {
+            // the alias is about to point at a new key, drop any cached getKeyEntry reply
+            kotlin.runCatching {
+                data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
+                data.readTypedObject(KeyDescriptor.CREATOR)?.let {
+                    KeyEntryReplyCache.invalidate(KeyEntryReplyCache.keyOf(callingUid, it))
+                }
+            }
+            // let the real key through and precompute its hacked chain in onPostTransact
+            if (CertHack.canHack(callingUid)) return Continue
+        } else if (code == importKeyTransaction || code == importWrappedKeyTransaction) {
+            // an imported key replaces whatever the alias held before
+            kotlin.runCatching {
+                data.enforceInterface(IKeystoreSecurityLevel.DESCRIPTOR)
+                data.readTypedObject(KeyDescriptor.CREATOR)?.let {
+                    KeyEntryReplyCache.invalidate(KeyEntryReplyCache.keyOf(callingUid, it))
+                }
+            }
+        }
+        return Skip
+    }
+
+    override fun postTransactNeeds(code: Int): Int =
+        if (code == generateKeyTransaction) NEED_REPLY else NEED_NONE
+
+    override fun onPostTransact(
+        target: IBinder,
+        code: Int,
+        flags: Int,
+        callingUid: Int,
+        callingPid: Int,
+        data: ParcelView,
+        reply: ParcelView?,
+        resultCode: Int
+    ): Result {
+        if (code != generateKeyTransaction || reply == null) return Skip
+        kotlin.runCatching {
+            val p = reply.get()
+            if (kotlin.runCatching { p.readException() }.exceptionOrNull() != null) return Skip
+            val fields = KeyEntryReplyRewriter.locateMetadata(p) ?: return Skip
+            val chain = Utils.getCertificateChain(fields.certificate, fields.certificateChain)
+                ?: return Skip
+            if (CertHack.isCertificateChainCached(chain[0], callingUid)) return Skip
+            precomputeExecutor.execute {
+                CertHack.hackCertificateChain(chain, callingUid)
+                Logger.d { "precomputed hacked chain for uid=$callingUid" }
+            }
+        }.onFailure {
+            Logger.e("failed to schedule chain precompute for uid=$callingUid", it)
         }
+        // the generateKey reply itself is left untouched
         return Skip
     }
 
+    // origin, OS version and patch levels are the same for every key generated at this level;
+    // the patch values are fixed for the life of the process, so the array is built once and shared
+    private val invariantAuthorizations: Array<Authorization> by lazy {
+        arrayOf(
+            authorization(level, Tag.ORIGIN, KeyParameterValue.origin(0 /* KeyOrigin.GENERATED */)),
+            authorization(level, Tag.OS_VERSION, KeyParameterValue.integer(osVersion)),
+            authorization(level, Tag.OS_PATCHLEVEL, KeyParameterValue.integer(patchLevel)),
+            authorization(level, Tag.VENDOR_PATCHLEVEL, KeyParameterValue.integer(patchLevelLong)),
+            authorization(level, Tag.BOOT_PATCHLEVEL, KeyParameterValue.integer(patchLevelLong))
+        )
+    }
+
     private fun buildResponse(
         chain: List<Certificate>,
         params: KeyGenParameters,
@@ -92,19 +299,21 @@ class SecurityLevelInterceptor(
         val metadata = KeyMetadata()
         metadata.keySecurityLevel = level
         Utils.putCertificateChain(metadata, chain.toTypedArray<Certificate>())
+        // usually the keybox chain itself, shared with every other key it signed
+        metadata.certificateChain = BlobStore.CHAINS.intern(metadata.certificateChain)
         val d = KeyDescriptor()
         d.domain = descriptor.domain
         d.nspace = descriptor.nspace
         metadata.key = d
-        val authorizations = ArrayList<Authorization>(params.purpose.size + params.digest.size + 6)
+        val invariant = invariantAuthorizations
+        val count = params.purpose.size + params.digest.size + params.blockMode.size +
+            params.padding.size + params.mgfDigest.size + (if (params.isNoAuthRequired) 4 else 3) +
+            invariant.size + 2
+        val authorizations = arrayOfNulls<Authorization>(count)
+        var n = 0
 
         fun addAuth(tag: Int, value: KeyParameterValue) {
-            val a = Authorization()
-            a.keyParameter = KeyParameter()
-            a.keyParameter.tag = tag
-            a.keyParameter.value = value
-            a.securityLevel = level
-            authorizations.add(a)
+            authorizations[n++] = authorization(level, tag, value)
         }
 
         val purposeSize = params.purpose.size
@@ -138,15 +347,13 @@ class SecurityLevelInterceptor(
         if (params.isNoAuthRequired) {
             addAuth(Tag.NO_AUTH_REQUIRED, KeyParameterValue.boolValue(true))
         }
-        addAuth(Tag.ORIGIN, KeyParameterValue.origin(0 /* KeyOrigin.GENERATED */))
-        addAuth(Tag.OS_VERSION, KeyParameterValue.integer(osVersion))
-        addAuth(Tag.OS_PATCHLEVEL, KeyParameterValue.integer(patchLevel))
-        addAuth(Tag.VENDOR_PATCHLEVEL, KeyParameterValue.integer(patchLevelLong))
-        addAuth(Tag.BOOT_PATCHLEVEL, KeyParameterValue.integer(patchLevelLong))
+        System.arraycopy(invariant, 0, authorizations, n, invariant.size)
+        n += invariant.size
         addAuth(Tag.CREATION_DATETIME, KeyParameterValue.dateTime(System.currentTimeMillis()))
         addAuth(Tag.USER_ID, KeyParameterValue.integer(callingUid / 100000))
 
-        metadata.authorizations = authorizations.toTypedArray<Authorization>()
+        @Suppress("UNCHECKED_CAST")
+        metadata.authorizations = authorizations as Array<Authorization>
         response.metadata = metadata
         response.iSecurityLevel = original
         return response
@@ -0,0 +1,93 @@
+package cleveres.tricky.cleverestech
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * LRU cache split into one [KeyCache] per uid, each with its own lock.
+ *
+ * A uid never holds more than [perUidCapacity] entries, so an app generating keys in a loop
+ * only evicts its own. When all shards together exceed [globalCapacity] the largest shard
+ * gives up its eldest entry.
+ */
+internal class UidPartitionedCache<K : Any, V : Any>(
+    private val perUidCapacity: Int,
+    private val globalCapacity: Int,
+    private val onRemoval: ((K, V) -> Unit)? = null
+) {
+    private val shards = ConcurrentHashMap<Int, KeyCache<K, V>>()
+    // entries over all shards, so the global check does not visit every uid
+    private val count = AtomicInteger()
+    // counters of shards dropped once empty, so totals never go backwards
+    private val retiredHits = AtomicLong()
+    private val retiredMisses = AtomicLong()
+    private val retiredEvictions = AtomicLong()
+
+    private val removal: (K, V) -> Unit = { k, v ->
+        count.decrementAndGet()
+        onRemoval?.invoke(k, v)
+    }
+
+    operator fun get(uid: Int, key: K): V? = shards[uid]?.get(key)
+
+    operator fun set(uid: Int, key: K, value: V) {
+        // inside compute so an empty shard cannot be dropped under a concurrent insert
+        shards.compute(uid) { _, shard ->
+            (shard ?: KeyCache(perUidCapacity, onRemoval = removal)).also {
+                count.incrementAndGet()
+                it[key] = value
+            }
+        }
+        trim()
+    }
+
+    fun remove(uid: Int, key: K): V? {
+        val value = shards[uid]?.remove(key) ?: return null
+        dropIfEmpty(uid)
+        return value
+    }
+
+    fun clear() {
+        for (uid in shards.keys) {
+            shards[uid]?.clear()
+            dropIfEmpty(uid)
+        }
+    }
+
+    val size: Int get() = count.get()
+
+    internal val shardCount: Int get() = shards.size
+
+    fun values(): List<V> = shards.values.flatMap { it.values() }
+
+    /** Totals over all shards. */
+    fun stats(): KeyCache.Stats = shards.values.map { it.stats() }.fold(
+        KeyCache.Stats(retiredHits.get(), retiredMisses.get(), retiredEvictions.get(), 0, 0)
+    ) { a, b ->
+        KeyCache.Stats(a.hits + b.hits, a.misses + b.misses, a.evictions + b.evictions, a.size + b.size, a.weight + b.weight)
+    }
+
+    private fun trim() = trimTo(globalCapacity)
+
+    /** Takes the eldest entries of the largest shards until at most [maxEntries] remain. */
+    fun trimTo(maxEntries: Int) {
+        while (count.get() > maxEntries) {
+            val (uid, largest) = shards.entries.maxByOrNull { it.value.size } ?: return
+            val removed = largest.removeEldest()
+            dropIfEmpty(uid)
+            if (!removed) return
+        }
+    }
+
+    private fun dropIfEmpty(uid: Int) {
+        shards.computeIfPresent(uid) { _, shard ->
+            if (shard.size > 0) return@computeIfPresent shard
+            val stats = shard.stats()
+            retiredHits.addAndGet(stats.hits)
+            retiredMisses.addAndGet(stats.misses)
+            retiredEvictions.addAndGet(stats.evictions)
+            null
+        }
+    }
+}
@@ -1,9 +1,13 @@
 package cleveres.tricky.cleverestech
 
+import cleveres.tricky.cleverestech.keystore.BlobStore
 import cleveres.tricky.cleverestech.keystore.CertHack
+import cleveres.tricky.cleverestech.keystore.KeyboxValidator
+import cleveres.tricky.cleverestech.rkp.RkpKeyPool
 import fi.iki.elonen.NanoHTTPD
 import java.io.File
 import java.security.MessageDigest
+import java.util.Locale
 import java.util.UUID
 
 class WebServer(port: Int, private val configDir: File = File("/data/adb/cleverestricky")) : NanoHTTPD("127.0.0.1", port) {
@@ -71,8 +75,13 @@ class WebServer(port: Int, private val configDir: File = File("/data/adb/clevere
             // For simplicity, let's load text files separately or all at once?
             // Let's load them via separate API calls or just embed them in the HTML initial load?
             // Let's return the toggles here.
-            config.append("\"files\": [\"keybox.xml\", \"target.txt\", \"security_patch.txt\", \"spoof_build_vars\"],")
+            config.append("\"files\": [\"keybox.xml\", \"target.txt\", \"security_patch.txt\", \"spoof_build_vars\", \"keybox_assignments.txt\"],")
             config.append("\"keybox_count\": ${CertHack.getKeyboxCount()},")
+            config.append("\"keybox_library_count\": ${KeyboxLibrary.size},")
+            config.append("\"revoked_serials\": ${KeyboxValidator.getRevokedCount()},")
+            config.append("\"rkp_pool_depth\": ${RkpKeyPool.depth()},")
+            config.append("\"shared_chains\": ${BlobStore.CHAINS.size()},")
+            config.append("\"shared_chain_bytes_saved\": ${BlobStore.CHAINS.referencedBytes - BlobStore.CHAINS.uniqueBytes},")
             config.append("\"templates\": [")
             Config.getTemplateNames().forEachIndexed { index, name ->
                 if (index > 0) config.append(",")
@@ -83,6 +92,41 @@ class WebServer(port: Int, private val configDir: File = File("/data/adb/clevere
             return newFixedLengthResponse(Response.Status.OK, "application/json", config.toString())
         }
 
+        if (uri == "/api/keybox_status" && method == Method.GET) {
+            val json = StringBuilder("[")
+            val results = KeyboxValidator.getLastResults().values.map { null to it } +
+                KeyboxLibrary.rejectedResults()
+            results.forEachIndexed { index, (file, r) ->
+                if (index > 0) json.append(",")
+                json.append("{\"algorithm\": \"${r.algorithm()}\", \"ok\": ${r.ok()}, ")
+                if (file != null) json.append("\"file\": \"${escapeJson(file)}\", ")
+                json.append("\"problems\": [")
+                r.problems().forEachIndexed { i, p ->
+                    if (i > 0) json.append(",")
+                    json.append("\"${escapeJson(p)}\"")
+                }
+                json.append("]}")
+            }
+            json.append("]")
+            return newFixedLengthResponse(Response.Status.OK, "application/json", json.toString())
+        }
+
+        if (uri == "/api/metrics" && method == Method.GET) {
+            val json = StringBuilder("{")
+            json.append("\"budget_bytes\": ${CacheBudget.budgetBytes},")
+            json.append("\"effective_budget_bytes\": ${CacheBudget.effectiveBudget},")
+            json.append("\"used_bytes\": ${CacheBudget.usedBytes},")
+            json.append("\"caches\": [")
+            CacheBudget.usage().forEachIndexed { index, u ->
+                if (index > 0) json.append(",")
+                json.append("{\"name\": \"${u.name}\", \"used_bytes\": ${u.usedBytes}, ")
+                json.append("\"allowance_bytes\": ${u.allowanceBytes}, \"entries\": ${u.entries}, ")
+                json.append("\"hits_per_kb\": ${"%.3f".format(Locale.ROOT, u.score)}}")
+            }
+            json.append("]}")
+            return newFixedLengthResponse(Response.Status.OK, "application/json", json.toString())
+        }
+
         if (uri == "/api/file" && method == Method.GET) {
             val filename = params["filename"]
             if (filename != null && isValidFilename(filename)) {
@@ -164,8 +208,10 @@ class WebServer(port: Int, private val configDir: File = File("/data/adb/clevere
         return newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not Found")
     }
 
+    private fun escapeJson(s: String) = s.replace("\\", "\\\\").replace("\"", "\\\"")
+
     private fun isValidFilename(name: String): Boolean {
-        return name in setOf("keybox.xml", "target.txt", "security_patch.txt", "spoof_build_vars")
+        return name in setOf("keybox.xml", "target.txt", "security_patch.txt", "spoof_build_vars", "keybox_assignments.txt")
     }
 
     private fun getHtml(): String {
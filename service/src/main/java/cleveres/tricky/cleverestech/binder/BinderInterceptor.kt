@@ -3,6 +3,7 @@ package cleveres.tricky.cleverestech.binder
 import android.os.Binder
 import android.os.IBinder
 import android.os.Parcel
+import android.os.SharedMemory
 import cleveres.tricky.cleverestech.Logger
 
 open class BinderInterceptor : Binder() {
@@ -13,6 +14,11 @@ open class BinderInterceptor : Binder() {
     data class OverrideReply(val code: Int = 0, val reply: Parcel) : Result()
 
     companion object {
+        /** Bits returned by [postTransactNeeds]. */
+        const val NEED_NONE = 0
+        const val NEED_DATA = 1
+        const val NEED_REPLY = 2
+
         fun getBinderBackdoor(b: IBinder): IBinder? {
             val data = Parcel.obtain()
             val reply = Parcel.obtain()
@@ -47,6 +53,7 @@ open class BinderInterceptor : Binder() {
         }
 
         private const val REGISTER_PROPERTY_SERVICE_TRANSACTION_CODE = 3 // Must match C++ enum
+        private const val REGISTER_PROPERTY_TABLE_TRANSACTION_CODE = 4 // Must match C++ enum
 
         fun registerPropertyService(backdoor: IBinder, propertyService: IBinder) {
             val data = Parcel.obtain()
@@ -70,10 +77,48 @@ open class BinderInterceptor : Binder() {
                 reply.recycle()
             }
         }
+
+        fun registerPropertyTable(backdoor: IBinder, table: SharedMemory): Boolean {
+            val data = Parcel.obtain()
+            val reply = Parcel.obtain()
+            try {
+                Logger.d("Registering property table with native layer.")
+                // SharedMemory parcels as a single fd, which the native side maps read-only
+                table.writeToParcel(data, 0)
+                if (!backdoor.transact(REGISTER_PROPERTY_TABLE_TRANSACTION_CODE, data, reply, 0) || reply.readInt() != 0) {
+                    Logger.e("Native layer failed to register property table")
+                    return false
+                }
+                Logger.i("Property table registered successfully with native layer.")
+                return true
+            } catch (e: Exception) {
+                Logger.e("Failed to transact for registerPropertyTable", e)
+                return false
+            } finally {
+                data.recycle()
+                reply.recycle()
+            }
+        }
     }
 
     open fun onPreTransact(target: IBinder, code: Int, flags: Int, callingUid: Int, callingPid: Int, data: Parcel): Result = Skip
     open fun onPostTransact(target: IBinder, code: Int, flags: Int, callingUid: Int, callingPid: Int, data: Parcel, reply: Parcel?, resultCode: Int): Result = Skip
+
+    /**
+     * Declares which post-transact payloads are read for [code]. With [NEED_NONE] the
+     * post callback is not invoked at all; an unrequested payload is passed as an empty view.
+     */
+    open fun postTransactNeeds(code: Int): Int = NEED_DATA or NEED_REPLY
+
+    /**
+     * Lazy variant of [onPostTransact]; the default materializes both views and delegates.
+     * Override this one to avoid copying parcels for calls that end up skipped.
+     * Parcels from [ParcelView.get] are recycled once the result has been written back, so they
+     * must not be kept past this call; one may be returned as the override parcel itself.
+     */
+    open fun onPostTransact(target: IBinder, code: Int, flags: Int, callingUid: Int, callingPid: Int, data: ParcelView, reply: ParcelView?, resultCode: Int): Result =
+        onPostTransact(target, code, flags, callingUid, callingPid, data.get(), reply?.get(), resultCode)
+
     open fun onInterceptorReplaced() {}
 
     override fun onTransact(code: Int, data: Parcel, reply: Parcel?, flags: Int): Boolean {
@@ -94,23 +139,29 @@ open class BinderInterceptor : Binder() {
                 val callingUid = data.readInt()
                 val callingPid = data.readInt()
                 val resultCode = data.readInt()
-                val theData = Parcel.obtain()
-                var theReply: Parcel? = null
-                try {
+                val needs = postTransactNeeds(theCode)
+                if (needs == NEED_NONE) {
+                    Skip
+                } else {
                     val sz = data.readLong().toInt()
-                    theData.appendFrom(data, data.dataPosition(), sz)
-                    theData.setDataPosition(0)
-                    data.setDataPosition(data.dataPosition() + sz)
+                    val dataOffset = data.dataPosition()
+                    data.setDataPosition(dataOffset + sz)
                     val sz2 = data.readLong().toInt()
-                    if (sz2 != 0) {
-                        theReply = Parcel.obtain()
-                        theReply.appendFrom(data, data.dataPosition(), sz2)
-                        theReply.setDataPosition(0)
+                    val theData = ParcelView(data, dataOffset, if ((needs and NEED_DATA) != 0) sz else 0)
+                    val theReply = if (sz2 != 0) {
+                        ParcelView(data, data.dataPosition(), if ((needs and NEED_REPLY) != 0) sz2 else 0)
+                    } else null
+                    // the views are recycled only after the result, which may reference them, is written
+                    try {
+                        val result = onPostTransact(target, theCode, theFlags, callingUid, callingPid, theData, theReply, resultCode)
+                        theData.handOver(result)
+                        theReply?.handOver(result)
+                        writeResult(reply!!, result)
+                    } finally {
+                        theData.recycle()
+                        theReply?.recycle()
                     }
-                    onPostTransact(target, theCode, theFlags, callingUid, callingPid, theData, theReply, resultCode)
-                } finally {
-                    theData.recycle()
-                    theReply?.recycle()
+                    return true
                 }
             }
             3 -> { // INTERCEPTOR_REPLACED
@@ -119,23 +170,27 @@ open class BinderInterceptor : Binder() {
             }
             else -> return super.onTransact(code, data, reply, flags)
         }
+        writeResult(reply!!, result)
+        return true
+    }
+
+    private fun writeResult(reply: Parcel, result: Result) {
         when (result) {
-            Skip -> reply!!.writeInt(1)
-            Continue -> reply!!.writeInt(2)
+            Skip -> reply.writeInt(1)
+            Continue -> reply.writeInt(2)
             is OverrideReply -> {
-                reply!!.writeInt(3)
+                reply.writeInt(3)
                 reply.writeInt(result.code)
                 reply.writeLong(result.reply.dataSize().toLong())
                 reply.appendFrom(result.reply, 0, result.reply.dataSize())
                 result.reply.recycle()
             }
             is OverrideData -> {
-                reply!!.writeInt(4)
+                reply.writeInt(4)
                 reply.writeLong(result.data.dataSize().toLong())
                 reply.appendFrom(result.data, 0, result.data.dataSize())
                 result.data.recycle()
             }
         }
-        return true
     }
 }
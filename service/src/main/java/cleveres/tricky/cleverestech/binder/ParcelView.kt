@@ -0,0 +1,41 @@
+package cleveres.tricky.cleverestech.binder
+
+import android.os.Parcel
+
+/**
+ * An offset-bounded window over the parcel delivered to [BinderInterceptor.onTransact].
+ * Nothing is copied until [get] is called; the view is only valid during the callback, and the
+ * parcel from [get] is recycled after the callback's result has been written back.
+ */
+class ParcelView internal constructor(
+    private val source: Parcel,
+    private val offset: Int,
+    val size: Int
+) {
+    private var materialized: Parcel? = null
+
+    /** Copies the window into a standalone parcel positioned at 0, once. */
+    fun get(): Parcel {
+        materialized?.let { return it }
+        val p = Parcel.obtain()
+        if (size > 0) p.appendFrom(source, offset, size)
+        p.setDataPosition(0)
+        materialized = p
+        return p
+    }
+
+    /** Gives the materialized parcel to [result] when it is the override, so it is recycled once. */
+    internal fun handOver(result: BinderInterceptor.Result) {
+        val p = when (result) {
+            is BinderInterceptor.OverrideReply -> result.reply
+            is BinderInterceptor.OverrideData -> result.data
+            else -> return
+        }
+        if (materialized === p) materialized = null
+    }
+
+    internal fun recycle() {
+        materialized?.recycle()
+        materialized = null
+    }
+}
@@ -0,0 +1,97 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Interns byte arrays by content, so equal certificate chain suffixes are held once however
+ * many cached keys carry them.
+ *
+ * The first array seen for some content becomes the canonical one and every later intern of
+ * equal bytes returns it. Each cache entry that holds a canonical array releases it when it
+ * goes away; the table forgets a blob once its count drops to zero.
+ */
+public final class BlobStore {
+
+    /** Concatenated chain[1..] of cached key entries, mostly keybox intermediates and roots. */
+    public static final BlobStore CHAINS = new BlobStore();
+
+    private static final class Content {
+        final byte[] bytes;
+        final int hash;
+
+        Content(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Content c && hash == c.hash && Arrays.equals(bytes, c.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final byte[] bytes;
+        int refs;
+
+        Entry(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    private final Map<Content, Entry> table = new HashMap<>();
+    private long uniqueBytes;
+    private long referencedBytes;
+
+    /** The canonical array with the contents of {@code blob}, counting one more reference. */
+    public synchronized byte[] intern(byte[] blob) {
+        if (blob == null || blob.length == 0) return blob;
+        Entry e = table.computeIfAbsent(new Content(blob), c -> {
+            uniqueBytes += c.bytes.length;
+            return new Entry(c.bytes);
+        });
+        e.refs++;
+        referencedBytes += e.bytes.length;
+        return e.bytes;
+    }
+
+    /** Drops one reference taken by {@link #intern}; arrays that were never interned are ignored. */
+    public synchronized void release(byte[] blob) {
+        if (blob == null || blob.length == 0) return;
+        Content key = new Content(blob);
+        Entry e = table.get(key);
+        if (e == null || e.bytes != blob) return;
+        referencedBytes -= e.bytes.length;
+        if (--e.refs == 0) {
+            table.remove(key);
+            uniqueBytes -= e.bytes.length;
+        }
+    }
+
+    public synchronized int size() {
+        return table.size();
+    }
+
+    /** Bytes actually held by the table. */
+    public synchronized long getUniqueBytes() {
+        return uniqueBytes;
+    }
+
+    /** Bytes the references would hold without interning. */
+    public synchronized long getReferencedBytes() {
+        return referencedBytes;
+    }
+
+    public synchronized void clear() {
+        table.clear();
+        uniqueBytes = 0;
+        referencedBytes = 0;
+    }
+}
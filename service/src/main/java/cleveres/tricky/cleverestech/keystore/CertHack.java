@@ -1,9 +1,10 @@
 package cleveres.tricky.cleverestech.keystore;
 
 import android.content.pm.PackageManager;
+import android.os.Parcel;
 import android.hardware.security.keymint.Algorithm;
 import android.hardware.security.keymint.EcCurve;
-import android.hardware.security.keymint.KeyParameter;
+import android.hardware.security.keymint.KeyParameterValue;
 import android.hardware.security.keymint.KeyPurpose;
 import android.hardware.security.keymint.Tag;
 import android.security.keystore.KeyProperties;
@@ -31,31 +32,27 @@ import org.bouncycastle.asn1.x509.Extension;
 import org.bouncycastle.asn1.x509.KeyUsage;
 import org.bouncycastle.cert.X509CertificateHolder;
 import org.bouncycastle.cert.X509v3CertificateBuilder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
 import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.openssl.PEMKeyPair;
 import org.bouncycastle.openssl.PEMParser;
-import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
 import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.DefaultAlgorithmNameFinder;
 import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.bouncycastle.util.io.pem.PemReader;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.MessageDigest;
 import java.security.Security;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateParsingException;
-import java.security.cert.X509Certificate;
 import java.security.spec.ECGenParameterSpec;
 import java.security.spec.RSAKeyGenParameterSpec;
 import java.util.ArrayList;
@@ -70,12 +67,14 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
-import javax.security.auth.x500.X500Principal;
 
+import cleveres.tricky.cleverestech.CacheBudget;
 import cleveres.tricky.cleverestech.Config;
+import cleveres.tricky.cleverestech.KeyboxLibrary;
 import cleveres.tricky.cleverestech.Logger;
 import cleveres.tricky.cleverestech.UtilKt;
 import cleveres.tricky.cleverestech.util.CborEncoder;
+import cleveres.tricky.cleverestech.util.CborWriter;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -93,36 +92,46 @@ public final class CertHack {
     private static final Map<String, KeyBox> keyboxes = new HashMap<>();
     private static final int ATTESTATION_PACKAGE_INFO_PACKAGE_NAME_INDEX = 0;
 
-    private static final CertificateFactory certificateFactory;
-
-    static {
-        try {
-            certificateFactory = CertificateFactory.getInstance("X.509");
-        } catch (Throwable t) {
-            Logger.e("", t);
-            throw new RuntimeException(t);
-        }
-    }
-
     private static final int ATTESTATION_PACKAGE_INFO_VERSION_INDEX = 1;
 
-    public static boolean canHack() {
-        return !keyboxes.isEmpty();
+    /** Whether a keybox is available for {@code uid}: keybox.xml, or a library file assigned to it. */
+    public static boolean canHack(int uid) {
+        if (!keyboxes.isEmpty()) return true;
+        KeyboxLibrary library = KeyboxLibrary.INSTANCE;
+        // an empty library answers without looking up the caller's packages
+        return !library.isEmpty() && library.select(uid) != null;
     }
 
     public static int getKeyboxCount() {
         return keyboxes.size();
     }
 
-    private static PEMKeyPair parseKeyPair(String key) throws Throwable {
-        try (PEMParser parser = new PEMParser(new StringReader(UtilKt.trimLine(key)))) {
-            return (PEMKeyPair) parser.readObject();
+    // Bumped on every keybox reload so callers can drop results signed by the old keybox
+    private static volatile int keyboxEpoch = 0;
+
+    public static int getKeyboxEpoch() {
+        return keyboxEpoch;
+    }
+
+    /** Called when the keybox library or its assignments change. */
+    public static void keyboxesChanged() {
+        keyboxEpoch++;
+        clearCertificateCache();
+        clearFailedLeaves();
+    }
+
+    // The library keybox assigned to the caller, falling back to keybox.xml
+    private static KeyBox findKeyBox(@Nullable String libraryFile, String algorithm) {
+        if (libraryFile != null) {
+            KeyBox k = KeyboxLibrary.INSTANCE.get(libraryFile, algorithm);
+            if (k != null) return k;
         }
+        return keyboxes.get(algorithm);
     }
 
-    private static Certificate parseCert(String cert) throws Throwable {
-        try (PemReader reader = new PemReader(new StringReader(UtilKt.trimLine(cert)))) {
-            return certificateFactory.generateCertificate(new ByteArrayInputStream(reader.readPemObject().getContent()));
+    static PEMKeyPair parseKeyPair(String key) throws IOException {
+        try (PEMParser parser = new PEMParser(new StringReader(UtilKt.trimLine(key)))) {
+            return (PEMKeyPair) parser.readObject();
         }
     }
 
@@ -143,8 +152,77 @@ public final class CertHack {
         return data;
     }
 
-    // Cache for hacked certificates: Leaf Encoded Bytes + Patch Level (int) -> Certificate[]
-    private static final Map<CacheKey, Certificate[]> certificateCache = new HashMap<>();
+    // Cache for hacked certificates: Leaf Encoded Bytes + Patch Level (int) + library keybox -> Certificate[]
+    // LRU, bounded in entries here and in bytes by CacheBudget
+    private static final int CERTIFICATE_CACHE_SIZE = 1024;
+    // the keybox suffix is shared, so an entry costs its two leaves plus map and array overhead
+    private static final int CERTIFICATE_ENTRY_OVERHEAD = 256;
+    private static long certificateCacheBytes;
+    private static long certificateCacheHits;
+
+    private static final Map<CacheKey, Certificate[]> certificateCache =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CacheKey, Certificate[]> eldest) {
+                    if (size() <= CERTIFICATE_CACHE_SIZE) return false;
+                    certificateCacheBytes -= entryBytes(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+            };
+
+    static {
+        CacheBudget.Companion.register(new CacheBudget.Member() {
+            @Override
+            public String getName() {
+                return "hacked_chains";
+            }
+
+            @Override
+            public long usedBytes() {
+                synchronized (certificateCache) {
+                    return certificateCacheBytes;
+                }
+            }
+
+            @Override
+            public int entries() {
+                synchronized (certificateCache) {
+                    return certificateCache.size();
+                }
+            }
+
+            @Override
+            public long hits() {
+                synchronized (certificateCache) {
+                    return certificateCacheHits;
+                }
+            }
+
+            @Override
+            public void trimTo(long bytes) {
+                synchronized (certificateCache) {
+                    var it = certificateCache.entrySet().iterator();
+                    while (certificateCacheBytes > bytes && it.hasNext()) {
+                        var e = it.next();
+                        certificateCacheBytes -= entryBytes(e.getKey(), e.getValue());
+                        it.remove();
+                    }
+                }
+            }
+        });
+    }
+
+    private static long entryBytes(CacheKey key, Certificate[] chain) {
+        long leaf = chain.length > 0 && chain[0] instanceof EncodedCert e ? e.encoded().length : 0;
+        return key.leafEncoded.length + leaf + CERTIFICATE_ENTRY_OVERHEAD;
+    }
+
+    private static void clearCertificateCache() {
+        synchronized (certificateCache) {
+            certificateCache.clear();
+            certificateCacheBytes = 0;
+        }
+    }
 
     /**
      * Optimization: Use a custom key object to avoid expensive Base64 encoding
@@ -154,12 +232,14 @@ public final class CertHack {
     private static final class CacheKey {
         private final byte[] leafEncoded;
         private final int patchLevel;
+        private final String keyboxFile;
         private final int hashCode;
 
-        public CacheKey(byte[] leafEncoded, int patchLevel) {
+        public CacheKey(byte[] leafEncoded, int patchLevel, String keyboxFile) {
             this.leafEncoded = leafEncoded;
             this.patchLevel = patchLevel;
-            this.hashCode = 31 * Arrays.hashCode(leafEncoded) + patchLevel;
+            this.keyboxFile = keyboxFile;
+            this.hashCode = 31 * (31 * Arrays.hashCode(leafEncoded) + patchLevel) + Objects.hashCode(keyboxFile);
         }
 
         @Override
@@ -167,7 +247,8 @@ public final class CertHack {
             if (this == o) return true;
             if (o == null || getClass() != o.getClass()) return false;
             CacheKey cacheKey = (CacheKey) o;
-            return patchLevel == cacheKey.patchLevel && Arrays.equals(leafEncoded, cacheKey.leafEncoded);
+            return patchLevel == cacheKey.patchLevel && Objects.equals(keyboxFile, cacheKey.keyboxFile)
+                    && Arrays.equals(leafEncoded, cacheKey.leafEncoded);
         }
 
         @Override
@@ -177,70 +258,124 @@ public final class CertHack {
     }
 
     public static void readFromXml(Reader reader) {
+        keyboxEpoch++;
         keyboxes.clear();
-        certificateCache.clear();
+        clearCertificateCache();
         if (reader == null) {
+            clearFailedLeaves();
+            KeyboxValidator.validate(Map.of());
             Logger.i("clear all keyboxes");
             return;
         }
 
         try {
-            XMLParser xmlParser = new XMLParser(reader);
-            int numberOfKeyboxes = Integer.parseInt(Objects.requireNonNull(xmlParser.obtainPath(
-                    "AndroidAttestation.NumberOfKeyboxes").get("text")));
-            for (int i = 0; i < numberOfKeyboxes; i++) {
-                String keyboxAlgorithm = xmlParser.obtainPath(
-                        "AndroidAttestation.Keybox.Key[" + i + "]").get("algorithm");
-                String privateKey = xmlParser.obtainPath(
-                        "AndroidAttestation.Keybox.Key[" + i + "].PrivateKey").get("text");
-                int numberOfCertificates = Integer.parseInt(Objects.requireNonNull(xmlParser.obtainPath(
-                        "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.NumberOfCertificates").get("text")));
-
-                LinkedList<Certificate> certificateChain = new LinkedList<>();
-                for (int j = 0; j < numberOfCertificates; j++) {
-                    String certPem = xmlParser.obtainPath(
-                            "AndroidAttestation.Keybox.Key[" + i + "].CertificateChain.Certificate[" + j + "]").get("text");
-                    certificateChain.add(parseCert(certPem));
+            Map<String, KeyBox> loaded = KeyboxLoader.load(reader);
+            // revoked, expired or broken chains are never used for signing
+            for (KeyboxValidator.Result r : KeyboxValidator.validate(loaded).values()) {
+                if (!r.ok()) {
+                    Logger.e("keybox " + r.algorithm() + " is unusable: " + String.join("; ", r.problems()));
+                    loaded.remove(r.algorithm());
                 }
-
-                String algo;
-                if (keyboxAlgorithm != null && keyboxAlgorithm.equalsIgnoreCase("ecdsa")) {
-                    algo = KeyProperties.KEY_ALGORITHM_EC;
-                } else {
-                    algo = KeyProperties.KEY_ALGORITHM_RSA;
-                }
-                var pemKp = parseKeyPair(privateKey);
-                var kp = new JcaPEMKeyConverter().getKeyPair(pemKp);
-                keyboxes.put(algo, new KeyBox(kp, certificateChain));
             }
-            Logger.i("update " + numberOfKeyboxes + " keyboxes");
+            keyboxes.putAll(loaded);
+            Logger.i("update " + loaded.size() + " keyboxes");
         } catch (Throwable t) {
             // Do not log the exception details as it might contain sensitive data from the keybox file.
             // Only log the exception type to avoid leaking private keys from XML snippets in the message.
             Logger.e("Error loading xml file (keyboxes cleared): " + t.getClass().getName());
         }
+        // failures recorded while the keyboxes were missing must not outlive the reload
+        clearFailedLeaves();
+    }
+
+    // Leaves that could not be hacked, keyed by leaf digest and selected keybox, so repeated
+    // calls return the original chain at once and the failure is only logged the first time
+    private static final int FAILED_LEAF_CACHE_SIZE = 256;
+    private static final long FAILED_LEAF_TTL_MS = 10 * 60 * 1000L;
+
+    private record FailedLeafKey(ByteBuffer digest, @Nullable String keyboxFile) {
+    }
+
+    private record FailedLeaf(String reason, long expiresAt) {
+    }
+
+    private static final Map<FailedLeafKey, FailedLeaf> failedLeaves =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<FailedLeafKey, FailedLeaf> eldest) {
+                    return size() > FAILED_LEAF_CACHE_SIZE;
+                }
+            };
+
+    private static void clearFailedLeaves() {
+        synchronized (failedLeaves) {
+            failedLeaves.clear();
+        }
+    }
+
+    private static boolean isKnownFailure(FailedLeafKey key) {
+        synchronized (failedLeaves) {
+            FailedLeaf failed = failedLeaves.get(key);
+            if (failed == null) return false;
+            if (failed.expiresAt() > System.currentTimeMillis()) return true;
+            failedLeaves.remove(key);
+            return false;
+        }
+    }
+
+    private static void rememberFailure(FailedLeafKey key, String reason, @Nullable Throwable t) {
+        synchronized (failedLeaves) {
+            failedLeaves.put(key, new FailedLeaf(reason, System.currentTimeMillis() + FAILED_LEAF_TTL_MS));
+        }
+        if (t != null) {
+            Logger.e("Exception in hackCertificateChain, leaving chain as is: " + reason, t);
+        } else {
+            Logger.i("leaving chain as is: " + reason);
+        }
+    }
+
+    /**
+     * Whether {@link #hackCertificateChain} already has the hacked chain for this leaf,
+     * checked without touching the LRU order or any statistics.
+     */
+    public static boolean isCertificateChainCached(Certificate leaf, int uid) throws CertificateEncodingException {
+        CacheKey cacheKey = new CacheKey(EncodedCert.of(leaf).encoded(),
+                Config.INSTANCE.getPatchLevel(uid), KeyboxLibrary.INSTANCE.select(uid));
+        synchronized (certificateCache) {
+            return certificateCache.containsKey(cacheKey);
+        }
     }
 
     public static Certificate[] hackCertificateChain(Certificate[] caList, int uid) {
         if (caList == null) throw new UnsupportedOperationException("caList is null!");
+        FailedLeafKey failedKey = null;
         try {
-            byte[] leafEncoded = caList[0].getEncoded();
+            EncodedCert leaf = EncodedCert.of(caList[0]);
+            byte[] leafEncoded = leaf.encoded();
             int patchLevel = Config.INSTANCE.getPatchLevel(uid);
-            CacheKey cacheKey = new CacheKey(leafEncoded, patchLevel);
+            String keyboxFile = KeyboxLibrary.INSTANCE.select(uid);
+            CacheKey cacheKey = new CacheKey(leafEncoded, patchLevel, keyboxFile);
 
             synchronized (certificateCache) {
-                 if (certificateCache.containsKey(cacheKey)) {
-                     // Logger.d("Cache hit for uid=" + uid);
-                     return certificateCache.get(cacheKey);
-                 }
+                Certificate[] cached = certificateCache.get(cacheKey);
+                if (cached != null) {
+                    certificateCacheHits++;
+                    return cached;
+                }
             }
 
-            X509Certificate leaf = (X509Certificate) certificateFactory.generateCertificate(new ByteArrayInputStream(leafEncoded));
-            byte[] bytes = leaf.getExtensionValue(OID.getId());
-            if (bytes == null) return caList;
+            failedKey = new FailedLeafKey(
+                    ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(leafEncoded)), keyboxFile);
+            if (isKnownFailure(failedKey)) return caList;
 
-            X509CertificateHolder leafHolder = new X509CertificateHolder(leaf.getEncoded());
+            // the rewrite only needs the BouncyCastle view of the leaf
+            X509CertificateHolder leafHolder = leaf.holder();
             Extension ext = leafHolder.getExtension(OID);
+            if (ext == null) {
+                rememberFailure(failedKey, "no attestation extension", null);
+                return caList;
+            }
+
             ASN1Sequence sequence = ASN1Sequence.getInstance(ext.getExtnValue().getOctets());
             ASN1Encodable[] encodables = sequence.toArray();
             ASN1Sequence teeEnforced = (ASN1Sequence) encodables[7];
@@ -284,21 +419,23 @@ public final class CertHack {
             X509v3CertificateBuilder builder;
             ContentSigner signer;
 
-            var k = keyboxes.get(leaf.getPublicKey().getAlgorithm());
-            if (k == null)
-                throw new UnsupportedOperationException("unsupported algorithm " + leaf.getPublicKey().getAlgorithm());
+            String keyAlgorithm = leaf.publicKeyAlgorithm();
+            var k = findKeyBox(keyboxFile, keyAlgorithm);
+            if (k == null) {
+                rememberFailure(failedKey, "no keybox for algorithm " + keyAlgorithm, null);
+                return caList;
+            }
             certificates = new LinkedList<>(k.certificates);
             builder = new X509v3CertificateBuilder(
-                    new X509CertificateHolder(
-                            certificates.get(0).getEncoded()
-                    ).getSubject(),
+                    EncodedCert.of(certificates.get(0)).holder().getSubject(),
                     leafHolder.getSerialNumber(),
                     leafHolder.getNotBefore(),
                     leafHolder.getNotAfter(),
                     leafHolder.getSubject(),
                     leafHolder.getSubjectPublicKeyInfo()
             );
-            signer = new JcaContentSignerBuilder(leaf.getSigAlgName())
+            signer = new JcaContentSignerBuilder(
+                    new DefaultAlgorithmNameFinder().getAlgorithmName(leafHolder.getSignatureAlgorithm()))
                     .build(k.keyPair.getPrivate());
 
             byte[] verifiedBootKey = UtilKt.getBootKey();
@@ -343,16 +480,22 @@ public final class CertHack {
                      builder.addExtension(leafHolder.getExtension(extensionOID));
                 }
             }
-            certificates.addFirst(new JcaX509CertificateConverter().getCertificate(builder.build(signer)));
+            certificates.addFirst(new EncodedCert(builder.build(signer)));
 
             Certificate[] result = certificates.toArray(new Certificate[0]);
             synchronized (certificateCache) {
-                certificateCache.put(cacheKey, result);
+                Certificate[] old = certificateCache.put(cacheKey, result);
+                if (old != null) certificateCacheBytes -= entryBytes(cacheKey, old);
+                certificateCacheBytes += entryBytes(cacheKey, result);
             }
             return result;
 
         } catch (Throwable t) {
-            Logger.e("Exception in hackCertificateChain", t);
+            if (failedKey != null) {
+                rememberFailure(failedKey, t.getClass().getSimpleName(), t);
+            } else {
+                Logger.e("Exception in hackCertificateChain", t);
+            }
         }
         return caList;
     }
@@ -370,15 +513,16 @@ public final class CertHack {
         KeyPair kp = null;
         KeyBox keyBox = null;
         try {
+            String keyboxFile = KeyboxLibrary.INSTANCE.select(uid);
             var algo = params.algorithm;
             if (algo == Algorithm.EC) {
                 Logger.d("GENERATING EC KEYPAIR OF SIZE " + size);
                 kp = buildECKeyPair(params);
-                keyBox = keyboxes.get(KeyProperties.KEY_ALGORITHM_EC);
+                keyBox = findKeyBox(keyboxFile, KeyProperties.KEY_ALGORITHM_EC);
             } else if (algo == Algorithm.RSA) {
                 Logger.d("GENERATING RSA KEYPAIR OF SIZE " + size);
                 kp = buildRSAKeyPair(params);
-                keyBox = keyboxes.get(KeyProperties.KEY_ALGORITHM_RSA);
+                keyBox = findKeyBox(keyboxFile, KeyProperties.KEY_ALGORITHM_RSA);
             }
             if (keyBox == null) {
                 Logger.e("UNSUPPORTED ALGORITHM: " + algo);
@@ -394,9 +538,7 @@ public final class CertHack {
                 signingChain = keyBox.certificates;
             }
 
-            issuer = new X509CertificateHolder(
-                    signingChain.get(0).getEncoded()
-            ).getSubject();
+            issuer = EncodedCert.of(signingChain.get(0)).holder().getSubject();
 
             X509v3CertificateBuilder certBuilder = new JcaX509v3CertificateBuilder(issuer,
                     params.certificateSerial,
@@ -418,7 +560,7 @@ public final class CertHack {
                 contentSigner = new JcaContentSignerBuilder("SHA256withRSA").build(rootKP.getPrivate());
             }
             X509CertificateHolder certHolder = certBuilder.build(contentSigner);
-            var leaf = new JcaX509CertificateConverter().getCertificate(certHolder);
+            var leaf = new EncodedCert(certHolder);
             List<Certificate> chain = new ArrayList<>(signingChain);
             chain.add(0, leaf);
             Logger.d("Successfully generated X500 Cert for alias: " + descriptor.alias);
@@ -437,7 +579,8 @@ public final class CertHack {
         String curveName = params.ecCurveName;
 
         if (params.ecCurve == EcCurve.CURVE_25519) {
-            if (params.purpose.contains(KeyPurpose.SIGN) || params.purpose.contains(KeyPurpose.ATTEST_KEY)) {
+            if (KeyGenParameters.contains(params.purpose, KeyPurpose.SIGN)
+                    || KeyGenParameters.contains(params.purpose, KeyPurpose.ATTEST_KEY)) {
                 algo = "Ed25519";
                 curveName = "Ed25519";
             } else {
@@ -462,10 +605,10 @@ public final class CertHack {
         return kpg.generateKeyPair();
     }
 
-    private static ASN1Encodable[] fromIntList(List<Integer> list) {
-        ASN1Encodable[] result = new ASN1Encodable[list.size()];
-        for (int i = 0; i < list.size(); i++) {
-            result[i] = new ASN1Integer(list.get(i));
+    private static ASN1Encodable[] fromIntArray(int[] values) {
+        ASN1Encodable[] result = new ASN1Encodable[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = new ASN1Integer(values[i]);
         }
         return result;
     }
@@ -480,10 +623,10 @@ public final class CertHack {
 
             ASN1Sequence rootOfTrustSeq = new DERSequence(rootOfTrustEncodables);
 
-            var Apurpose = new DERSet(fromIntList(params.purpose));
+            var Apurpose = new DERSet(fromIntArray(params.purpose));
             var Aalgorithm = new ASN1Integer(params.algorithm);
             var AkeySize = new ASN1Integer(params.keySize);
-            var Adigest = new DERSet(fromIntList(params.digest));
+            var Adigest = new DERSet(fromIntArray(params.digest));
             var AecCurve = new ASN1Integer(params.ecCurve);
             var AnoAuthRequired = DERNull.INSTANCE;
 
@@ -659,28 +802,33 @@ public final class CertHack {
         }
     }
 
-    record KeyBox(KeyPair keyPair, List<Certificate> certificates) {
+    public record KeyBox(KeyPair keyPair, List<Certificate> certificates) {
     }
 
     public static class KeyGenParameters {
+        private static final int[] NONE = new int[0];
+
         public int keySize;
         public int algorithm;
         public BigInteger certificateSerial;
         public Date certificateNotBefore;
         public Date certificateNotAfter;
+        // CERTIFICATE_SUBJECT exactly as the caller encoded it
+        public byte[] certificateSubjectDer;
         public X500Name certificateSubject;
 
         public BigInteger rsaPublicExponent;
         public int ecCurve;
         public String ecCurveName;
+        private boolean hasEcCurve;
 
         public boolean isNoAuthRequired = false;
 
-        public List<Integer> purpose = new ArrayList<>();
-        public List<Integer> digest = new ArrayList<>();
-        public List<Integer> blockMode = new ArrayList<>();
-        public List<Integer> padding = new ArrayList<>();
-        public List<Integer> mgfDigest = new ArrayList<>();
+        public int[] purpose = NONE;
+        public int[] digest = NONE;
+        public int[] blockMode = NONE;
+        public int[] padding = NONE;
+        public int[] mgfDigest = NONE;
 
         public byte[] attestationChallenge;
         public byte[] brand;
@@ -689,44 +837,108 @@ public final class CertHack {
         public byte[] manufacturer;
         public byte[] model;
 
-        public KeyGenParameters(KeyParameter[] params) {
-            for (var kp : params) {
-                var p = kp.value;
-                switch (kp.tag) {
-                    case Tag.KEY_SIZE -> keySize = p.getInteger();
-                    case Tag.ALGORITHM -> algorithm = p.getAlgorithm();
-                    case Tag.CERTIFICATE_SERIAL -> certificateSerial = new BigInteger(p.getBlob());
-                    case Tag.CERTIFICATE_NOT_BEFORE ->
-                            certificateNotBefore = new Date(p.getDateTime());
-                    case Tag.CERTIFICATE_NOT_AFTER ->
-                            certificateNotAfter = new Date(p.getDateTime());
-                    case Tag.CERTIFICATE_SUBJECT ->
-                            certificateSubject = new X500Name(new X500Principal(p.getBlob()).getName());
-                    case Tag.RSA_PUBLIC_EXPONENT -> rsaPublicExponent = new BigInteger(p.getBlob());
-                    case Tag.EC_CURVE -> {
-                        ecCurve = p.getEcCurve();
-                        ecCurveName = getEcCurveName(ecCurve);
-                    }
-                    case Tag.NO_AUTH_REQUIRED -> isNoAuthRequired = true;
-                    case Tag.PURPOSE -> {
-                        purpose.add(p.getKeyPurpose());
-                    }
-                    case Tag.DIGEST -> {
-                        digest.add(p.getDigest());
+        private KeyGenParameters() {
+        }
+
+        /**
+         * Reads the KeyParameter[] of a generateKey transaction straight from the parcel,
+         * without building KeyParameter or KeyParameterValue objects. Tags we do not use are
+         * skipped by seeking past their parcelable, so their blobs are never copied.
+         */
+        public static KeyGenParameters readFrom(Parcel data) {
+            int count = data.readInt();
+            if (count < 0) throw new IllegalStateException("null KeyParameter array");
+            KeyGenParameters kgp = new KeyGenParameters();
+            for (int i = 0; i < count; i++) {
+                if (data.readInt() == 0) continue;
+                int start = data.dataPosition();
+                int size = data.readInt();
+                if (size < 4) throw new IllegalStateException("bad KeyParameter size " + size);
+                int tag = data.readInt();
+                if (isUsed(tag) && data.readInt() != 0) {
+                    switch (data.readInt()) {
+                        case KeyParameterValue.blob -> kgp.onBlob(tag, data.createByteArray());
+                        case KeyParameterValue.dateTime, KeyParameterValue.longInteger -> kgp.onLong(tag, data.readLong());
+                        // every other member, bool included, is written as an int
+                        default -> kgp.onInt(tag, data.readInt());
                     }
-                    case Tag.BLOCK_MODE -> blockMode.add(p.getBlockMode());
-                    case Tag.PADDING -> padding.add(p.getPaddingMode());
-                    case Tag.RSA_OAEP_MGF_DIGEST -> mgfDigest.add(p.getDigest());
-                    case Tag.ATTESTATION_CHALLENGE -> attestationChallenge = p.getBlob();
-                    case Tag.ATTESTATION_ID_BRAND -> brand = p.getBlob();
-                    case Tag.ATTESTATION_ID_DEVICE -> device = p.getBlob();
-                    case Tag.ATTESTATION_ID_PRODUCT -> product = p.getBlob();
-                    case Tag.ATTESTATION_ID_MANUFACTURER -> manufacturer = p.getBlob();
-                    case Tag.ATTESTATION_ID_MODEL -> model = p.getBlob();
                 }
+                // structured parcelables may carry fields newer than ours
+                if (data.dataPosition() != start + size) data.setDataPosition(start + size);
+            }
+            kgp.finish();
+            return kgp;
+        }
+
+        private static boolean isUsed(int tag) {
+            return switch (tag) {
+                case Tag.KEY_SIZE, Tag.ALGORITHM, Tag.CERTIFICATE_SERIAL, Tag.CERTIFICATE_NOT_BEFORE,
+                     Tag.CERTIFICATE_NOT_AFTER, Tag.CERTIFICATE_SUBJECT, Tag.RSA_PUBLIC_EXPONENT,
+                     Tag.EC_CURVE, Tag.NO_AUTH_REQUIRED, Tag.PURPOSE, Tag.DIGEST, Tag.BLOCK_MODE,
+                     Tag.PADDING, Tag.RSA_OAEP_MGF_DIGEST, Tag.ATTESTATION_CHALLENGE,
+                     Tag.ATTESTATION_ID_BRAND, Tag.ATTESTATION_ID_DEVICE, Tag.ATTESTATION_ID_PRODUCT,
+                     Tag.ATTESTATION_ID_MANUFACTURER, Tag.ATTESTATION_ID_MODEL -> true;
+                default -> false;
+            };
+        }
+
+        private void onInt(int tag, int v) {
+            switch (tag) {
+                case Tag.KEY_SIZE -> keySize = v;
+                case Tag.ALGORITHM -> algorithm = v;
+                case Tag.EC_CURVE -> {
+                    ecCurve = v;
+                    hasEcCurve = true;
+                }
+                case Tag.NO_AUTH_REQUIRED -> isNoAuthRequired = true;
+                case Tag.PURPOSE -> purpose = append(purpose, v);
+                case Tag.DIGEST -> digest = append(digest, v);
+                case Tag.BLOCK_MODE -> blockMode = append(blockMode, v);
+                case Tag.PADDING -> padding = append(padding, v);
+                case Tag.RSA_OAEP_MGF_DIGEST -> mgfDigest = append(mgfDigest, v);
+            }
+        }
+
+        private void onLong(int tag, long v) {
+            switch (tag) {
+                case Tag.CERTIFICATE_NOT_BEFORE -> certificateNotBefore = new Date(v);
+                case Tag.CERTIFICATE_NOT_AFTER -> certificateNotAfter = new Date(v);
+            }
+        }
+
+        private void onBlob(int tag, byte[] v) {
+            switch (tag) {
+                case Tag.CERTIFICATE_SERIAL -> certificateSerial = new BigInteger(v);
+                case Tag.CERTIFICATE_SUBJECT -> certificateSubjectDer = v;
+                case Tag.RSA_PUBLIC_EXPONENT -> rsaPublicExponent = new BigInteger(v);
+                case Tag.ATTESTATION_CHALLENGE -> attestationChallenge = v;
+                case Tag.ATTESTATION_ID_BRAND -> brand = v;
+                case Tag.ATTESTATION_ID_DEVICE -> device = v;
+                case Tag.ATTESTATION_ID_PRODUCT -> product = v;
+                case Tag.ATTESTATION_ID_MANUFACTURER -> manufacturer = v;
+                case Tag.ATTESTATION_ID_MODEL -> model = v;
             }
         }
 
+        private void finish() {
+            if (hasEcCurve) ecCurveName = getEcCurveName(ecCurve);
+            // parsed from the DER itself, no round trip through the string form
+            if (certificateSubjectDer != null) certificateSubject = X500Name.getInstance(certificateSubjectDer);
+        }
+
+        private static int[] append(int[] a, int v) {
+            int[] out = Arrays.copyOf(a, a.length + 1);
+            out[a.length] = v;
+            return out;
+        }
+
+        public static boolean contains(int[] a, int v) {
+            for (int x : a) {
+                if (x == v) return true;
+            }
+            return false;
+        }
+
         private static String getEcCurveName(int curve) {
             String res;
             switch (curve) {
@@ -829,6 +1041,23 @@ public final class CertHack {
         }
     }
 
+    // ProtectedData (COSE_Encrypt) = [ protected: { 1: 3 (A256GCM) }, unprotected: {}, ciphertext, recipients: [] ]
+    // Nothing in it depends on the request, so it is encoded once.
+    private static final byte[] PROTECTED_DATA = new CborWriter(32)
+            .writeArrayHeader(4)
+            .writeBytes(new CborWriter(8).writeMapHeader(1).writeInt(1).writeInt(3).toByteArray())
+            .writeMapHeader(0)
+            .writeBytes(new byte[16]) // dummy ciphertext
+            .writeArrayHeader(0)
+            .toByteArray();
+
+    /**
+     * The encoded dummy ProtectedData. The array is shared and must not be modified.
+     */
+    public static byte[] getProtectedData() {
+        return PROTECTED_DATA;
+    }
+
     /**
      * Builds the certificate request response that gets sent back to GMS.
      */
@@ -839,78 +1068,19 @@ public final class CertHack {
     ) {
         try {
             // CertificateRequest = [ DeviceInfo, Challenge, ProtectedData, MacedPublicKeys ]
-            // Spec requires strict array structure.
-            
-            List<Object> certRequest = new ArrayList<>();
-            
-            // 1. DeviceInfo
-            // The input `deviceInfoBody` is ALREADY encoded CBOR bytes (Map).
-            // CborEncoder needs to know this value is "already encoded".
-            // Since our simple encoder doesn't support "RawCBOR" wrapping, we can't use it for the top-level list
-            // IF we want to strictly use CborEncoder.
-            // HOWEVER, we can decode it back or just fix the CborEncoder.
-            // BUT, the prompt said "No Manual Concat".
-            // The trick: `deviceInfoBody` comes from `createDeviceInfoCbor` which returns `byte[]`.
-            // Check `createDeviceInfoCbor` - it calls `CborEncoder.encode(map)`.
-            // Ideally RkpInterceptor should pass the map itself, not the bytes.
-            // Refactoring strategy: We will accept Object for deviceInfo to allow recursion if possible,
-            // but since interface is byte[], we acknowledge that `CborEncoder` needs a `CborRaw` type.
-            // As a quick fix for "No Manual Concat", we will use a "Semi-Manual" list helper
-            // OR simply decode the deviceInfo bytes (it's a Map).
-            // Actually, RKP spec says DeviceInfo IS a Map.
-            // Let's implement a clean top-level encoder below.
-            
-            // BUT, since we cannot change CborEncoder easily right here to add `CborRaw`,
-            // we will build the list manually but properly, verifying tags.
-            
-            // 1. DeviceInfo (Map) - passed as encoded bytes.
-            // 2. Challenge (bstr)
-            // 3. ProtectedData (COSE_Encrypt)
-            // 4. MacedPublicKeys (Array of COSE_Mac0)
-            
-            // To properly satisfy "No manual concat" we would need to pass the raw objects.
-            // Since we can't change the interface signature easily across the project in one step,
-            // we will construct the stream carefully.
-            
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            // Array(4)
-            baos.write(0x84);
-            
-            // 1. DeviceInfo
-            baos.write(deviceInfoBody);
-            
-            // 2. Challenge
-            CborEncoder.encodeItem(baos, challenge);
-            
-            // 3. ProtectedData (COSE_Encrypt)
-            // [ protected, unprotected, ciphertext, recipients ]
-            Map<Integer, Object> protectedMap = new HashMap<>();
-            protectedMap.put(1, 3); // alg: A256GCM
-            byte[] protHeader = CborEncoder.encode(protectedMap);
-            
-            List<Object> coseEncrypt = new ArrayList<>();
-            coseEncrypt.add(protHeader);
-            coseEncrypt.add(new HashMap<>()); // unprotected
-            coseEncrypt.add(new byte[16]); // dummy ciphertext
-            coseEncrypt.add(new ArrayList<>()); // recipients
-            
-            byte[] protectedData = CborEncoder.encode(coseEncrypt);
-            baos.write(protectedData);
-            
-            // 4. MacedPublicKeys
-            // The items in `publicKeys` are already encoded COSE_Mac0 bytes.
-            // We just need to wrap them in an Array.
-            // Again, "CborRaw" issue. We write the array header and then the bytes.
-            int count = publicKeys.size();
-            if (count < 24) baos.write(0x80 | count);
-            else if (count <= 0xFF) { baos.write(0x98); baos.write(count); }
-            else { baos.write(0x99); baos.write(count >> 8); baos.write(count); }
-            
+            // deviceInfoBody and every public key are already encoded, so they are embedded raw.
+            CborWriter w = new CborWriter(deviceInfoBody.length + challenge.length + 64 + publicKeys.size() * 128);
+            w.writeArrayHeader(4);
+            w.writeRaw(deviceInfoBody);
+            w.writeBytes(challenge);
+            w.writeRaw(PROTECTED_DATA);
+
+            // MacedPublicKeys = [ COSE_Mac0 ... ]
+            w.writeArrayHeader(publicKeys.size());
             for (byte[] keyBytes : publicKeys) {
-                baos.write(keyBytes);
+                w.writeRaw(keyBytes);
             }
-            
-            return baos.toByteArray();
+            return w.toByteArray();
         } catch (Throwable t) {
             Logger.e("Failed to create CertificateRequestResponse", t);
             return null;
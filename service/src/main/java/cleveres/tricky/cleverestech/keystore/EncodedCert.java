@@ -0,0 +1,390 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.pkcs.PKCSObjectIdentifiers;
+import org.bouncycastle.asn1.x9.X9ObjectIdentifiers;
+import org.bouncycastle.cert.X509CertificateHolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Principal;
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * An X.509 certificate kept as its DER bytes, possibly a slice of a larger chain blob.
+ *
+ * Nothing is parsed until a field is read: {@link #holder()} decodes with BouncyCastle for the
+ * attestation rewrite, the {@link X509Certificate} methods decode with the platform factory.
+ * Either form is built at most once. Chains that pass through untouched are written back from
+ * the original bytes.
+ */
+public final class EncodedCert extends X509Certificate {
+
+    private static final ThreadLocal<CertificateFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return CertificateFactory.getInstance("X.509");
+        } catch (CertificateException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final byte[] buffer;
+    private final int offset;
+    private final int length;
+    private volatile byte[] encoded;
+    private volatile X509CertificateHolder holder;
+    private volatile X509Certificate parsed;
+
+    public EncodedCert(byte[] der) {
+        this(der, 0, der.length);
+    }
+
+    private EncodedCert(byte[] buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        if (offset == 0 && length == buffer.length) encoded = buffer;
+    }
+
+    /** Wraps a certificate we just built, so the holder need not be decoded again. */
+    public EncodedCert(X509CertificateHolder holder) throws IOException {
+        this(holder.getEncoded());
+        this.holder = holder;
+    }
+
+    private EncodedCert(byte[] der, X509Certificate parsed) {
+        this(der);
+        this.parsed = parsed;
+    }
+
+    public static EncodedCert of(Certificate c) throws CertificateEncodingException {
+        if (c instanceof EncodedCert e) return e;
+        return new EncodedCert(c.getEncoded(), c instanceof X509Certificate x ? x : null);
+    }
+
+    /**
+     * Splits concatenated DER certificates, the format of KeyMetadata.certificateChain, into
+     * slices of {@code blob}. Only the outer SEQUENCE headers are read.
+     */
+    public static List<EncodedCert> split(byte[] blob) throws CertificateParsingException {
+        List<EncodedCert> out = new ArrayList<>();
+        int pos = 0;
+        while (pos < blob.length) {
+            int end = endOfSequence(blob, pos);
+            out.add(new EncodedCert(blob, pos, end - pos));
+            pos = end;
+        }
+        return out;
+    }
+
+    private static int endOfSequence(byte[] b, int pos) throws CertificateParsingException {
+        if (b.length - pos < 2 || b[pos] != 0x30) throw new CertificateParsingException("not a DER sequence");
+        int first = b[pos + 1] & 0xFF;
+        int header = 2;
+        long len = first;
+        if (first > 0x80) {
+            int n = first & 0x7F;
+            if (n > 4 || b.length - pos < 2 + n) throw new CertificateParsingException("bad DER length");
+            len = 0;
+            for (int i = 0; i < n; i++) len = (len << 8) | (b[pos + 2 + i] & 0xFF);
+            header += n;
+        } else if (first == 0x80) {
+            throw new CertificateParsingException("indefinite length");
+        }
+        long end = pos + header + len;
+        if (end > b.length) throw new CertificateParsingException("truncated certificate");
+        return (int) end;
+    }
+
+    /**
+     * Concatenates the DER of {@code certs}. When they are adjacent slices covering one whole
+     * blob, that blob is returned as is.
+     */
+    public static byte[] concat(List<? extends Certificate> certs) throws CertificateEncodingException {
+        if (certs.isEmpty()) return new byte[0];
+        if (certs.get(0) instanceof EncodedCert first && first.offset == 0) {
+            int pos = 0;
+            boolean whole = true;
+            for (Certificate c : certs) {
+                if (!(c instanceof EncodedCert e) || e.buffer != first.buffer || e.offset != pos) {
+                    whole = false;
+                    break;
+                }
+                pos += e.length;
+            }
+            if (whole && pos == first.buffer.length) return first.buffer;
+        }
+        List<EncodedCert> encodedCerts = new ArrayList<>(certs.size());
+        int total = 0;
+        for (Certificate c : certs) {
+            EncodedCert e = of(c);
+            encodedCerts.add(e);
+            total += e.length;
+        }
+        byte[] out = new byte[total];
+        int pos = 0;
+        for (EncodedCert e : encodedCerts) {
+            System.arraycopy(e.buffer, e.offset, out, pos, e.length);
+            pos += e.length;
+        }
+        return out;
+    }
+
+    /** The DER bytes without a defensive copy; callers must not modify them. */
+    public byte[] encoded() {
+        byte[] e = encoded;
+        if (e == null) {
+            e = Arrays.copyOfRange(buffer, offset, offset + length);
+            encoded = e;
+        }
+        return e;
+    }
+
+    public X509CertificateHolder holder() throws IOException {
+        X509CertificateHolder h = holder;
+        if (h == null) {
+            h = new X509CertificateHolder(encoded());
+            holder = h;
+        }
+        return h;
+    }
+
+    /** The JCA key algorithm name ("EC", "RSA") read from the SubjectPublicKeyInfo. */
+    public String publicKeyAlgorithm() throws IOException {
+        ASN1ObjectIdentifier oid = holder().getSubjectPublicKeyInfo().getAlgorithm().getAlgorithm();
+        if (X9ObjectIdentifiers.id_ecPublicKey.equals(oid)) return "EC";
+        if (PKCSObjectIdentifiers.rsaEncryption.equals(oid)) return "RSA";
+        return getPublicKey().getAlgorithm();
+    }
+
+    private X509Certificate parsed() {
+        X509Certificate p = parsed;
+        if (p == null) {
+            try {
+                p = (X509Certificate) FACTORY.get().generateCertificate(new ByteArrayInputStream(buffer, offset, length));
+            } catch (CertificateException e) {
+                throw new IllegalStateException("unparseable certificate", e);
+            }
+            parsed = p;
+        }
+        return p;
+    }
+
+    @Override
+    public byte[] getEncoded() {
+        return encoded().clone();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (other instanceof EncodedCert e) return sameBytes(e.buffer, e.offset, e.length);
+        if (!(other instanceof Certificate c)) return false;
+        try {
+            byte[] o = c.getEncoded();
+            return sameBytes(o, 0, o.length);
+        } catch (CertificateEncodingException e) {
+            return false;
+        }
+    }
+
+    // the ranged Arrays.equals needs API 33
+    private boolean sameBytes(byte[] b, int off, int len) {
+        if (len != length) return false;
+        for (int i = 0; i < len; i++) {
+            if (buffer[offset + i] != b[off + i]) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        // libcore's Certificate.hashCode, sum of encoded[i] * i, so equal platform certificates on ART
+        // hash alike; OpenJDK hashes the encoding with Arrays.hashCode instead
+        int h = 0;
+        for (int i = 0; i < length; i++) h += buffer[offset + i] * i;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return parsed().toString();
+    }
+
+    @Override
+    public PublicKey getPublicKey() {
+        return parsed().getPublicKey();
+    }
+
+    @Override
+    public void verify(PublicKey key) throws CertificateException, NoSuchAlgorithmException,
+            InvalidKeyException, NoSuchProviderException, SignatureException {
+        parsed().verify(key);
+    }
+
+    @Override
+    public void verify(PublicKey key, String sigProvider) throws CertificateException,
+            NoSuchAlgorithmException, InvalidKeyException, NoSuchProviderException, SignatureException {
+        parsed().verify(key, sigProvider);
+    }
+
+    @Override
+    public void verify(PublicKey key, Provider sigProvider) throws CertificateException,
+            NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+        parsed().verify(key, sigProvider);
+    }
+
+    @Override
+    public void checkValidity() throws CertificateExpiredException, CertificateNotYetValidException {
+        parsed().checkValidity();
+    }
+
+    @Override
+    public void checkValidity(Date date) throws CertificateExpiredException, CertificateNotYetValidException {
+        parsed().checkValidity(date);
+    }
+
+    @Override
+    public int getVersion() {
+        return parsed().getVersion();
+    }
+
+    @Override
+    public BigInteger getSerialNumber() {
+        return parsed().getSerialNumber();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Principal getIssuerDN() {
+        return parsed().getIssuerDN();
+    }
+
+    @Override
+    public X500Principal getIssuerX500Principal() {
+        return parsed().getIssuerX500Principal();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Principal getSubjectDN() {
+        return parsed().getSubjectDN();
+    }
+
+    @Override
+    public X500Principal getSubjectX500Principal() {
+        return parsed().getSubjectX500Principal();
+    }
+
+    @Override
+    public Date getNotBefore() {
+        return parsed().getNotBefore();
+    }
+
+    @Override
+    public Date getNotAfter() {
+        return parsed().getNotAfter();
+    }
+
+    @Override
+    public byte[] getTBSCertificate() throws CertificateEncodingException {
+        return parsed().getTBSCertificate();
+    }
+
+    @Override
+    public byte[] getSignature() {
+        return parsed().getSignature();
+    }
+
+    @Override
+    public String getSigAlgName() {
+        return parsed().getSigAlgName();
+    }
+
+    @Override
+    public String getSigAlgOID() {
+        return parsed().getSigAlgOID();
+    }
+
+    @Override
+    public byte[] getSigAlgParams() {
+        return parsed().getSigAlgParams();
+    }
+
+    @Override
+    public boolean[] getIssuerUniqueID() {
+        return parsed().getIssuerUniqueID();
+    }
+
+    @Override
+    public boolean[] getSubjectUniqueID() {
+        return parsed().getSubjectUniqueID();
+    }
+
+    @Override
+    public boolean[] getKeyUsage() {
+        return parsed().getKeyUsage();
+    }
+
+    @Override
+    public List<String> getExtendedKeyUsage() throws CertificateParsingException {
+        return parsed().getExtendedKeyUsage();
+    }
+
+    @Override
+    public int getBasicConstraints() {
+        return parsed().getBasicConstraints();
+    }
+
+    @Override
+    public Collection<List<?>> getSubjectAlternativeNames() throws CertificateParsingException {
+        return parsed().getSubjectAlternativeNames();
+    }
+
+    @Override
+    public Collection<List<?>> getIssuerAlternativeNames() throws CertificateParsingException {
+        return parsed().getIssuerAlternativeNames();
+    }
+
+    @Override
+    public boolean hasUnsupportedCriticalExtension() {
+        return parsed().hasUnsupportedCriticalExtension();
+    }
+
+    @Override
+    public Set<String> getCriticalExtensionOIDs() {
+        return parsed().getCriticalExtensionOIDs();
+    }
+
+    @Override
+    public Set<String> getNonCriticalExtensionOIDs() {
+        return parsed().getNonCriticalExtensionOIDs();
+    }
+
+    @Override
+    public byte[] getExtensionValue(String oid) {
+        return parsed().getExtensionValue(oid);
+    }
+}
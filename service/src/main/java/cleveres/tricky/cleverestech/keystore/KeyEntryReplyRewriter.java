@@ -0,0 +1,173 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import android.os.Parcel;
+import android.system.keystore2.Domain;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Rewrites the certificate fields of a getKeyEntry reply without unmarshalling it.
+ * <p>
+ * Wire layout after the exception header (stable AIDL parcelables are size-prefixed):
+ * <pre>
+ * int 1, KeyEntryResponse { int size, binder iSecurityLevel,
+ *     int 1, KeyMetadata { int size, KeyDescriptor key, int keySecurityLevel,
+ *         Authorization[] authorizations, byte[] certificate, byte[] certificateChain, ... } }
+ * </pre>
+ * Everything except the two byte arrays and the two enclosing sizes is copied as raw bytes,
+ * binder objects included.
+ */
+public final class KeyEntryReplyRewriter {
+
+    private KeyEntryReplyRewriter() {
+    }
+
+    public static final class Fields {
+        int responseSizePos;
+        int metadataSizePos;
+        int metadataEnd;
+        int certificatePos;
+        int chainEndPos;
+        /** nspace of KeyMetadata.key when keystore2 named the key by Domain.KEY_ID, else -1. */
+        public long keyId = -1;
+        public byte[] certificate;
+        public byte[] certificateChain;
+    }
+
+    /**
+     * Locates the certificate fields, starting right after the exception header.
+     * Returns null when the reply has no response or no metadata.
+     */
+    @Nullable
+    public static Fields locate(Parcel reply) {
+        if (reply.readInt() == 0) return null;
+        Fields f = new Fields();
+        f.responseSizePos = reply.dataPosition();
+        int responseEnd = f.responseSizePos + checkedSize(reply.readInt());
+        reply.readStrongBinder(); // iSecurityLevel
+        if (!locateMetadataFields(reply, f)) return null;
+        // the size fixups in splice assume the metadata is nested inside the response
+        if (responseEnd > reply.dataSize() || f.metadataEnd > responseEnd || f.chainEndPos > responseEnd) {
+            throw new IllegalStateException("malformed KeyEntryResponse");
+        }
+        return f;
+    }
+
+    /**
+     * Same as {@link #locate} for a reply that carries a bare KeyMetadata, such as generateKey.
+     * The response size position is left unset, so the result must not be passed to splice.
+     */
+    @Nullable
+    public static Fields locateMetadata(Parcel reply) {
+        Fields f = new Fields();
+        f.responseSizePos = -1;
+        return locateMetadataFields(reply, f) ? f : null;
+    }
+
+    private static boolean locateMetadataFields(Parcel reply, Fields f) {
+        if (reply.readInt() == 0) return false;
+        f.metadataSizePos = reply.dataPosition();
+        int metadataEnd = f.metadataSizePos + checkedSize(reply.readInt());
+        f.metadataEnd = metadataEnd;
+        readKeyId(reply, f);
+        reply.readInt(); // keySecurityLevel
+        int count = reply.readInt();
+        for (int i = 0; i < count; i++) {
+            skipParcelable(reply);
+        }
+        f.certificatePos = reply.dataPosition();
+        f.certificate = reply.createByteArray();
+        f.certificateChain = reply.createByteArray();
+        f.chainEndPos = reply.dataPosition();
+        if (f.chainEndPos > metadataEnd || metadataEnd > reply.dataSize()) {
+            throw new IllegalStateException("malformed KeyMetadata");
+        }
+        return true;
+    }
+
+    /**
+     * Builds a new reply with the two certificate fields replaced.
+     * The caller owns the returned parcel.
+     */
+    public static Parcel splice(Parcel reply, Fields f, byte[] certificate, @Nullable byte[] certificateChain) {
+        Parcel p = Parcel.obtain();
+        p.appendFrom(reply, 0, f.certificatePos);
+        p.writeByteArray(certificate);
+        p.writeByteArray(certificateChain);
+        int newChainEnd = p.dataPosition();
+        p.appendFrom(reply, f.chainEndPos, reply.dataSize() - f.chainEndPos);
+        int end = p.dataPosition();
+
+        int delta = newChainEnd - f.chainEndPos;
+        reply.setDataPosition(f.responseSizePos);
+        int responseSize = reply.readInt();
+        reply.setDataPosition(f.metadataSizePos);
+        int metadataSize = reply.readInt();
+        p.setDataPosition(f.responseSizePos);
+        p.writeInt(responseSize + delta);
+        p.setDataPosition(f.metadataSizePos);
+        p.writeInt(metadataSize + delta);
+        p.setDataPosition(end);
+        return p;
+    }
+
+    /** A reply with both certificate fields cut out, kept so they can be filled in again. */
+    public static final class Template {
+        private final Parcel frame;
+        private final Fields fields;
+
+        private Template(Parcel frame, Fields fields) {
+            this.frame = frame;
+            this.fields = fields;
+        }
+
+        /** Bytes held by the frame, for cache accounting. */
+        public int size() {
+            return frame.dataSize();
+        }
+    }
+
+    /**
+     * Copies {@code reply} with both certificate fields null, so a cache holds everything but
+     * the certificates once and can share the chain between entries.
+     */
+    public static Template template(Parcel reply, Fields f) {
+        Parcel frame = splice(reply, f, null, null);
+        Fields t = new Fields();
+        t.responseSizePos = f.responseSizePos;
+        t.metadataSizePos = f.metadataSizePos;
+        t.certificatePos = f.certificatePos;
+        // two null byte arrays, a -1 length each
+        t.chainEndPos = f.certificatePos + 8;
+        t.metadataEnd = f.metadataEnd + t.chainEndPos - f.chainEndPos;
+        return new Template(frame, t);
+    }
+
+    /** Builds a new reply from {@code t} with the given certificate fields; the caller owns it. */
+    public static Parcel fill(Template t, byte[] certificate, @Nullable byte[] certificateChain) {
+        // splice moves the frame's data position to read the sizes
+        synchronized (t) {
+            return splice(t.frame, t.fields, certificate, certificateChain);
+        }
+    }
+
+    // KeyDescriptor { int domain, long nspace, String alias, byte[] blob }
+    private static void readKeyId(Parcel p, Fields f) {
+        if (p.readInt() == 0) return;
+        int start = p.dataPosition();
+        int end = start + checkedSize(p.readInt());
+        if (end - start >= 16 && p.readInt() == Domain.KEY_ID) f.keyId = p.readLong();
+        p.setDataPosition(end);
+    }
+
+    private static void skipParcelable(Parcel p) {
+        if (p.readInt() == 0) return;
+        int start = p.dataPosition();
+        p.setDataPosition(start + checkedSize(p.readInt()));
+    }
+
+    private static int checkedSize(int size) {
+        if (size < 4) throw new IllegalStateException("bad parcelable size " + size);
+        return size;
+    }
+}
@@ -0,0 +1,348 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import android.security.keystore.KeyProperties;
+
+import org.bouncycastle.openssl.jcajce.JcaPEMKeyConverter;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.Reader;
+import java.io.StringReader;
+import java.security.KeyPair;
+import java.security.cert.Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads keybox.xml straight from pull parser events, without building an element tree.
+ *
+ * Certificate PEM bodies are base64-decoded from the parser's character buffer into a reused
+ * scratch buffer, so each certificate costs one DER array. Only the keybox being read is held in
+ * raw form; finished keyboxes are decoded on the common pool while parsing continues.
+ */
+public final class KeyboxLoader {
+
+    /** One {@code <Key>} element before any crypto decoding. */
+    public static final class RawKeybox {
+        public final int index;
+        public final String algorithm;
+        public final String privateKeyPem;
+        public final List<byte[]> certificates;
+
+        RawKeybox(int index, String algorithm, String privateKeyPem, List<byte[]> certificates) {
+            this.index = index;
+            this.algorithm = algorithm;
+            this.privateKeyPem = privateKeyPem;
+            this.certificates = certificates;
+        }
+
+        /** {@link KeyProperties#KEY_ALGORITHM_EC} for "ecdsa" keys, RSA for anything else. */
+        public String keyAlgorithm() {
+            return algorithm != null && algorithm.equalsIgnoreCase("ecdsa")
+                    ? KeyProperties.KEY_ALGORITHM_EC : KeyProperties.KEY_ALGORITHM_RSA;
+        }
+    }
+
+    public interface Callback {
+        void onKeybox(RawKeybox keybox) throws Exception;
+    }
+
+    private static final String ROOT = "AndroidAttestation";
+
+    // element stack depths of the fields we read
+    private static final int DEPTH_KEY = 3;
+    private static final int DEPTH_KEY_FIELD = 4;
+    private static final int DEPTH_CERT = 5;
+
+    private final List<String> stack = new ArrayList<>();
+    private final int[] holder = new int[2];
+    private char[] text = new char[4096];
+    private int textLength;
+    private byte[] scratch = new byte[2048];
+
+    private int declaredKeyboxes = -1;
+    private int keyboxCount;
+    private boolean inFirstKeybox;
+    private boolean seenKeybox;
+
+    private int keyIndex;
+    private String keyAlgorithm;
+    private String privateKeyPem;
+    private int declaredCertificates;
+    private List<byte[]> certificates;
+
+    private KeyboxLoader() {
+    }
+
+    /**
+     * Emits every {@code <Key>} of the first {@code <Keybox>} in document order and returns
+     * NumberOfKeyboxes. Throws if the counts are missing or larger than what the file contains.
+     */
+    public static int stream(Reader reader, Callback callback) throws Exception {
+        return new KeyboxLoader().run(reader, callback);
+    }
+
+    /**
+     * Reads one {@code <Key>} element cut out of a keybox file, as {@link #stream} would have
+     * emitted it, or null if the text holds no complete key.
+     */
+    public static RawKeybox parseKey(String keyElement) throws Exception {
+        RawKeybox[] out = new RawKeybox[1];
+        String document = "<" + ROOT + "><NumberOfKeyboxes>1</NumberOfKeyboxes><Keybox>"
+                + keyElement + "</Keybox></" + ROOT + ">";
+        stream(new StringReader(document), k -> out[0] = k);
+        return out[0];
+    }
+
+    /**
+     * Loads keyboxes by algorithm, later keys replacing earlier ones of the same algorithm.
+     * Keys and certificate chains of different keyboxes are decoded in parallel, with two decodes
+     * per pool thread outstanding at most; finished ones are collected in document order while
+     * parsing continues, so neither raw keyboxes nor futures pile up for large files.
+     */
+    public static Map<String, CertHack.KeyBox> load(Reader reader) throws Exception {
+        KeyboxLoader loader = new KeyboxLoader();
+        int limit = maxInFlight();
+        ArrayDeque<Decoding> inFlight = new ArrayDeque<>(limit);
+        // decoded before NumberOfKeyboxes was seen, so not yet known to be declared
+        List<Decoding> early = new ArrayList<>();
+        Map<String, CertHack.KeyBox> result = new LinkedHashMap<>();
+        int declared;
+        try {
+            declared = loader.run(reader, raw -> {
+                inFlight.add(new Decoding(raw.index, raw.keyAlgorithm(),
+                        ForkJoinPool.commonPool().submit(() -> decode(raw))));
+                while (inFlight.size() > limit) {
+                    collect(inFlight.poll(), loader.declaredKeyboxes, early, result);
+                }
+            });
+            while (!inFlight.isEmpty()) collect(inFlight.poll(), declared, early, result);
+            collect(null, declared, early, result);
+        } catch (Exception e) {
+            for (Decoding d : inFlight) d.future.cancel(false);
+            throw e;
+        }
+        return result;
+    }
+
+    private static int maxInFlight() {
+        return 2 * ForkJoinPool.commonPool().getParallelism();
+    }
+
+    private static final class Decoding {
+        final int index;
+        final String algorithm;
+        final Future<CertHack.KeyBox> future;
+
+        Decoding(int index, String algorithm, Future<CertHack.KeyBox> future) {
+            this.index = index;
+            this.algorithm = algorithm;
+            this.future = future;
+        }
+
+        CertHack.KeyBox await() throws Exception {
+            try {
+                return future.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+    }
+
+    /** Adds {@code next} (if any) to {@code result} once it is known to be declared, waiting for its decode. */
+    private static void collect(Decoding next, int declared, List<Decoding> early,
+                                Map<String, CertHack.KeyBox> result) throws Exception {
+        if (declared < 0) {
+            if (next != null) early.add(next);
+            return;
+        }
+        for (Decoding d : early) {
+            if (d.index < declared) result.put(d.algorithm, d.await());
+        }
+        early.clear();
+        if (next != null && next.index < declared) result.put(next.algorithm, next.await());
+    }
+
+    public static CertHack.KeyBox decode(RawKeybox raw) throws Exception {
+        KeyPair keyPair = new JcaPEMKeyConverter().getKeyPair(CertHack.parseKeyPair(raw.privateKeyPem));
+        // certificates stay DER until validation or signing reads them, as slices of one blob
+        // so every response carrying this chain can share it
+        int total = 0;
+        for (byte[] der : raw.certificates) total += der.length;
+        byte[] blob = new byte[total];
+        int pos = 0;
+        for (byte[] der : raw.certificates) {
+            System.arraycopy(der, 0, blob, pos, der.length);
+            pos += der.length;
+        }
+        LinkedList<Certificate> chain = new LinkedList<>(EncodedCert.split(blob));
+        return new CertHack.KeyBox(keyPair, chain);
+    }
+
+    private int run(Reader reader, Callback callback) throws Exception {
+        XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        try {
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_DOCDECL, false);
+        } catch (Exception ignored) {
+        }
+        try {
+            parser.setFeature(XmlPullParser.FEATURE_VALIDATION, false);
+        } catch (Exception ignored) {
+        }
+        parser.setInput(reader);
+
+        for (int event = parser.getEventType(); event != XmlPullParser.END_DOCUMENT; event = parser.next()) {
+            switch (event) {
+                case XmlPullParser.START_TAG -> startTag(parser);
+                case XmlPullParser.TEXT -> {
+                    if (capturing()) appendText(parser);
+                }
+                case XmlPullParser.END_TAG -> endTag(callback);
+                default -> {
+                }
+            }
+        }
+        if (declaredKeyboxes < 0) throw new IllegalStateException("NumberOfKeyboxes missing");
+        if (keyboxCount < declaredKeyboxes) throw new IllegalStateException("missing keyboxes");
+        return declaredKeyboxes;
+    }
+
+    private void startTag(XmlPullParser parser) {
+        String name = parser.getName();
+        stack.add(name);
+        textLength = 0;
+        int depth = stack.size();
+        if (depth == 1 && !ROOT.equals(name)) throw new IllegalStateException("unexpected root element");
+        if (depth == 2 && "Keybox".equals(name)) {
+            inFirstKeybox = !seenKeybox;
+            seenKeybox = true;
+        } else if (depth == DEPTH_KEY && inFirstKeybox && "Key".equals(name)) {
+            keyAlgorithm = parser.getAttributeValue(null, "algorithm");
+            privateKeyPem = null;
+            declaredCertificates = -1;
+            certificates = new ArrayList<>();
+        }
+    }
+
+    private boolean inKey() {
+        return inFirstKeybox && stack.size() >= DEPTH_KEY && "Key".equals(stack.get(DEPTH_KEY - 1));
+    }
+
+    private boolean capturing() {
+        int depth = stack.size();
+        if (depth == 2) return true;
+        if (!inKey()) return false;
+        return depth == DEPTH_KEY_FIELD && "PrivateKey".equals(stack.get(3))
+                || depth == DEPTH_CERT && "CertificateChain".equals(stack.get(3));
+    }
+
+    private void appendText(XmlPullParser parser) {
+        char[] chars = parser.getTextCharacters(holder);
+        if (chars == null) return;
+        int start = holder[0];
+        int length = holder[1];
+        if (textLength + length > text.length) {
+            text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + length));
+        }
+        System.arraycopy(chars, start, text, textLength, length);
+        textLength += length;
+    }
+
+    private void endTag(Callback callback) throws Exception {
+        int depth = stack.size();
+        String name = stack.remove(depth - 1);
+        if (depth == 2) {
+            if ("NumberOfKeyboxes".equals(name)) declaredKeyboxes = parseCount();
+            if ("Keybox".equals(name)) inFirstKeybox = false;
+        } else if (inKey() && depth == DEPTH_CERT && "CertificateChain".equals(stack.get(3))) {
+            if ("NumberOfCertificates".equals(name)) {
+                declaredCertificates = parseCount();
+            } else if ("Certificate".equals(name)
+                    && (declaredCertificates < 0 || certificates.size() < declaredCertificates)) {
+                certificates.add(decodePem());
+            }
+        } else if (inKey() && depth == DEPTH_KEY_FIELD && "PrivateKey".equals(name)) {
+            privateKeyPem = new String(text, 0, textLength);
+        } else if (inFirstKeybox && depth == DEPTH_KEY && "Key".equals(name)) {
+            finishKey(callback);
+        }
+        textLength = 0;
+    }
+
+    private void finishKey(Callback callback) throws Exception {
+        int index = keyIndex++;
+        if (declaredKeyboxes >= 0 && index >= declaredKeyboxes) return;
+        if (privateKeyPem == null) throw new IllegalStateException("PrivateKey missing");
+        if (declaredCertificates < 0) throw new IllegalStateException("NumberOfCertificates missing");
+        if (certificates.size() < declaredCertificates) throw new IllegalStateException("missing certificates");
+        List<byte[]> chain = certificates.size() == declaredCertificates
+                ? certificates : new ArrayList<>(certificates.subList(0, declaredCertificates));
+        keyboxCount++;
+        callback.onKeybox(new RawKeybox(index, keyAlgorithm, privateKeyPem, chain));
+        certificates = null;
+        privateKeyPem = null;
+    }
+
+    private int parseCount() {
+        return Integer.parseInt(new String(text, 0, textLength).trim());
+    }
+
+    /** Decodes the base64 body between the BEGIN and END armor lines of the captured text. */
+    private byte[] decodePem() {
+        int begin = indexOf("-----BEGIN", 0);
+        if (begin < 0) throw new IllegalStateException("PEM header missing");
+        int bodyStart = indexOf("\n", begin);
+        int bodyEnd = indexOf("-----END", begin);
+        if (bodyStart < 0 || bodyEnd < bodyStart) throw new IllegalStateException("PEM footer missing");
+
+        int max = (bodyEnd - bodyStart) / 4 * 3 + 3;
+        if (scratch.length < max) scratch = new byte[Math.max(max, scratch.length * 2)];
+        int out = 0;
+        int bits = 0;
+        int acc = 0;
+        for (int i = bodyStart + 1; i < bodyEnd; i++) {
+            char c = text[i];
+            if (c == '=') break;
+            if (c <= ' ') continue;
+            int v = c < 128 ? BASE64[c] : -1;
+            if (v < 0) throw new IllegalStateException("invalid base64 in PEM");
+            acc = (acc << 6) | v;
+            bits += 6;
+            if (bits >= 8) {
+                bits -= 8;
+                scratch[out++] = (byte) (acc >> bits);
+            }
+        }
+        return Arrays.copyOf(scratch, out);
+    }
+
+    private int indexOf(String s, int from) {
+        int n = s.length();
+        outer:
+        for (int i = from; i <= textLength - n; i++) {
+            for (int j = 0; j < n; j++) {
+                if (text[i + j] != s.charAt(j)) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static final int[] BASE64 = new int[128];
+
+    static {
+        Arrays.fill(BASE64, -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++) BASE64[alphabet.charAt(i)] = i;
+    }
+}
@@ -0,0 +1,278 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateExpiredException;
+import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import cleveres.tricky.cleverestech.Logger;
+
+/**
+ * Checks keybox chains before they are used for signing: revocation against a local copy of
+ * Google's attestation status list, validity periods and the signature of every link.
+ *
+ * Revoked serials are kept as a sorted array of 64-bit hashes, eight bytes per entry no matter
+ * how long the list grows.
+ */
+public final class KeyboxValidator {
+
+    public record Result(String algorithm, boolean ok, List<String> problems) {
+    }
+
+    private static volatile long[] revoked = new long[0];
+    private static volatile Map<String, Result> lastResults = Collections.emptyMap();
+
+    private KeyboxValidator() {
+    }
+
+    public static int getRevokedCount() {
+        return revoked.length;
+    }
+
+    public static Map<String, Result> getLastResults() {
+        return lastResults;
+    }
+
+    /**
+     * Loads a status file of the form {@code {"entries": {"<hex serial>": {"status": "REVOKED", ...}}}}.
+     * Every listed serial counts, whether REVOKED or SUSPENDED. A null reader clears the list.
+     */
+    public static void updateRevocationList(Reader reader) throws IOException {
+        if (reader == null) {
+            revoked = new long[0];
+            return;
+        }
+        long[] hashes = new JsonScanner(reader).readEntryKeys("entries");
+        Arrays.sort(hashes);
+        revoked = hashes;
+        Logger.i("loaded " + hashes.length + " revoked serials");
+    }
+
+    public static boolean isRevoked(BigInteger serial) {
+        return Arrays.binarySearch(revoked, hashSerial(serial.toString(16))) >= 0;
+    }
+
+    /** Validates every keybox in parallel and remembers the results for the web API. */
+    public static Map<String, Result> validate(Map<String, CertHack.KeyBox> keyboxes) {
+        Date now = new Date();
+        Map<String, Future<Result>> pending = new LinkedHashMap<>();
+        for (Map.Entry<String, CertHack.KeyBox> e : keyboxes.entrySet()) {
+            pending.put(e.getKey(), ForkJoinPool.commonPool().submit(() -> check(e.getKey(), e.getValue(), now)));
+        }
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<Result>> e : pending.entrySet()) {
+            Result r;
+            try {
+                r = e.getValue().get();
+            } catch (InterruptedException | ExecutionException ex) {
+                r = new Result(e.getKey(), false, List.of("validation failed: " + ex.getClass().getSimpleName()));
+            }
+            results.put(e.getKey(), r);
+        }
+        lastResults = Collections.unmodifiableMap(results);
+        return results;
+    }
+
+    public static Result check(String algorithm, CertHack.KeyBox keyBox, Date now) {
+        List<String> problems = new ArrayList<>();
+        List<Certificate> chain = keyBox.certificates();
+        if (chain.isEmpty()) {
+            problems.add("empty chain");
+            return new Result(algorithm, false, problems);
+        }
+        if (!chain.get(0).getPublicKey().equals(keyBox.keyPair().getPublic())) {
+            problems.add("private key does not match the leaf");
+        }
+        for (int i = 0; i < chain.size(); i++) {
+            if (!(chain.get(i) instanceof X509Certificate cert)) {
+                problems.add("certificate " + i + " is not X.509");
+                continue;
+            }
+            String serial = cert.getSerialNumber().toString(16);
+            if (isRevoked(cert.getSerialNumber())) {
+                problems.add("certificate " + i + " (serial " + serial + ") is revoked");
+            }
+            try {
+                cert.checkValidity(now);
+            } catch (CertificateExpiredException e) {
+                problems.add("certificate " + i + " (serial " + serial + ") expired " + cert.getNotAfter());
+            } catch (CertificateNotYetValidException e) {
+                problems.add("certificate " + i + " (serial " + serial + ") is not valid before " + cert.getNotBefore());
+            }
+            // the root signs itself
+            Certificate issuer = i + 1 < chain.size() ? chain.get(i + 1) : cert;
+            try {
+                cert.verify(issuer.getPublicKey());
+            } catch (Exception e) {
+                if (i + 1 < chain.size() || cert.getIssuerX500Principal().equals(cert.getSubjectX500Principal())) {
+                    problems.add("certificate " + i + " has a bad signature");
+                }
+            }
+        }
+        return new Result(algorithm, problems.isEmpty(), Collections.unmodifiableList(problems));
+    }
+
+    // first 8 bytes of SHA-256 over the lowercase hex serial without leading zeros
+    static long hashSerial(String hex) {
+        String s = hex.toLowerCase(Locale.ROOT);
+        int start = 0;
+        while (start < s.length() - 1 && s.charAt(start) == '0') start++;
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(s.substring(start).getBytes(StandardCharsets.US_ASCII));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        long h = 0;
+        for (int i = 0; i < 8; i++) h = (h << 8) | (digest[i] & 0xFF);
+        return h;
+    }
+
+    /** Just enough JSON to pull the member names of one object out of the status file. */
+    private static final class JsonScanner {
+        private final Reader reader;
+        private int peeked = -2;
+
+        JsonScanner(Reader reader) {
+            this.reader = reader;
+        }
+
+        long[] readEntryKeys(String member) throws IOException {
+            expect('{');
+            long[] out = new long[64];
+            int n = 0;
+            if (skipWhitespaceAndPeek() == '}') return new long[0];
+            do {
+                String name = readString();
+                expect(':');
+                if (member.equals(name) && skipWhitespaceAndPeek() == '{') {
+                    next();
+                    if (skipWhitespaceAndPeek() != '}') {
+                        do {
+                            String serial = readString();
+                            expect(':');
+                            skipValue();
+                            if (n == out.length) out = Arrays.copyOf(out, n * 2);
+                            out[n++] = hashSerial(serial);
+                        } while (consumeIf(','));
+                    }
+                    expect('}');
+                } else {
+                    skipValue();
+                }
+            } while (consumeIf(','));
+            expect('}');
+            return Arrays.copyOf(out, n);
+        }
+
+        private void skipValue() throws IOException {
+            int c = skipWhitespaceAndPeek();
+            switch (c) {
+                case '"' -> readString();
+                case '{' -> {
+                    next();
+                    if (skipWhitespaceAndPeek() != '}') {
+                        do {
+                            readString();
+                            expect(':');
+                            skipValue();
+                        } while (consumeIf(','));
+                    }
+                    expect('}');
+                }
+                case '[' -> {
+                    next();
+                    if (skipWhitespaceAndPeek() != ']') {
+                        do {
+                            skipValue();
+                        } while (consumeIf(','));
+                    }
+                    expect(']');
+                }
+                default -> {
+                    // number, true, false or null
+                    int read = 0;
+                    while (true) {
+                        int p = peek();
+                        if (p < 0 || p == ',' || p == '}' || p == ']' || Character.isWhitespace(p)) break;
+                        next();
+                        read++;
+                    }
+                    if (read == 0) throw new IOException("unexpected character in status file");
+                }
+            }
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                int c = next();
+                if (c < 0) throw new IOException("unterminated string in status file");
+                if (c == '"') return sb.toString();
+                if (c == '\\') {
+                    int e = next();
+                    switch (e) {
+                        case 'n' -> sb.append('\n');
+                        case 't' -> sb.append('\t');
+                        case 'r' -> sb.append('\r');
+                        case 'b' -> sb.append('\b');
+                        case 'f' -> sb.append('\f');
+                        case 'u' -> {
+                            int v = 0;
+                            for (int i = 0; i < 4; i++) v = (v << 4) | Character.digit(next(), 16);
+                            sb.append((char) v);
+                        }
+                        default -> sb.append((char) e);
+                    }
+                } else {
+                    sb.append((char) c);
+                }
+            }
+        }
+
+        private boolean consumeIf(char c) throws IOException {
+            if (skipWhitespaceAndPeek() != c) return false;
+            next();
+            return true;
+        }
+
+        private void expect(char c) throws IOException {
+            if (skipWhitespaceAndPeek() != c) throw new IOException("expected '" + c + "' in status file");
+            next();
+        }
+
+        private int skipWhitespaceAndPeek() throws IOException {
+            while (peek() >= 0 && Character.isWhitespace(peek())) next();
+            return peek();
+        }
+
+        private int peek() throws IOException {
+            if (peeked == -2) peeked = reader.read();
+            return peeked;
+        }
+
+        private int next() throws IOException {
+            int c = peek();
+            peeked = -2;
+            return c;
+        }
+    }
+}
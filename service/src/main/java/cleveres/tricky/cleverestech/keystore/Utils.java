@@ -4,71 +4,62 @@ import android.system.keystore2.KeyEntryResponse;
 import android.system.keystore2.KeyMetadata;
 import android.util.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
-import java.security.cert.CertificateFactory;
-import java.security.cert.X509Certificate;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.List;
 
 public class Utils {
     private final static String TAG = "Utils";
-    static X509Certificate toCertificate(byte[] bytes) {
-        try {
-            final CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-            return (X509Certificate) certFactory.generateCertificate(
-                    new ByteArrayInputStream(bytes));
-        } catch (CertificateException e) {
-            Log.w(TAG, "Couldn't parse certificate in keystore", e);
-            return null;
-        }
-    }
 
-    @SuppressWarnings("unchecked")
-    private static Collection<X509Certificate> toCertificates(byte[] bytes) {
-        try {
-            final CertificateFactory certFactory = CertificateFactory.getInstance("X.509");
-            return (Collection<X509Certificate>) certFactory.generateCertificates(
-                    new ByteArrayInputStream(bytes));
-        } catch (CertificateException e) {
-            Log.w(TAG, "Couldn't parse certificates in keystore", e);
-            return new ArrayList<>();
-        }
+    public static Certificate[] getCertificateChain(KeyEntryResponse response) {
+        if (response == null) return null;
+        return getCertificateChain(response.metadata.certificate, response.metadata.certificateChain);
     }
 
-    public static Certificate[] getCertificateChain(KeyEntryResponse response) {
-        if (response == null || response.metadata.certificate == null) return null;
-        var leaf = toCertificate(response.metadata.certificate);
-        Certificate[] chain;
-        if (response.metadata.certificateChain != null) {
-            var certs = toCertificates(response.metadata.certificateChain);
-            chain = new Certificate[certs.size() + 1];
-            final Iterator<X509Certificate> it = certs.iterator();
-            int i = 1;
-            while (it.hasNext()) {
-                chain[i++] = it.next();
+    /**
+     * Wraps the reply fields as {@link EncodedCert} slices; nothing is parsed until a field
+     * of a certificate is read.
+     */
+    public static Certificate[] getCertificateChain(byte[] certificate, byte[] certificateChain) {
+        if (certificate == null) return null;
+        List<EncodedCert> certs = List.of();
+        if (certificateChain != null) {
+            try {
+                certs = EncodedCert.split(certificateChain);
+            } catch (CertificateException e) {
+                Log.w(TAG, "Couldn't parse certificates in keystore", e);
             }
-        } else {
-            chain = new Certificate[1];
         }
-        chain[0] = leaf;
+        Certificate[] chain = new Certificate[certs.size() + 1];
+        chain[0] = new EncodedCert(certificate);
+        for (int i = 0; i < certs.size(); i++) {
+            chain[i + 1] = certs.get(i);
+        }
         return chain;
     }
 
+    /** The DER of a single certificate, shared rather than copied when it is an {@link EncodedCert}. */
+    public static byte[] encodeCertificate(Certificate certificate) throws CertificateEncodingException {
+        return EncodedCert.of(certificate).encoded();
+    }
+
+    /**
+     * Concatenated DER of chain[1..], the format of KeyMetadata.certificateChain.
+     */
+    public static byte[] encodeCertificateChainTail(Certificate[] chain) throws Throwable {
+        if (chain.length <= 1) return new byte[0];
+        return EncodedCert.concat(Arrays.asList(chain).subList(1, chain.length));
+    }
+
     public static void putCertificateChain(KeyEntryResponse response, Certificate[] chain) throws Throwable {
         putCertificateChain(response.metadata, chain);
     }
 
     public static void putCertificateChain(KeyMetadata metadata, Certificate[] chain) throws Throwable {
         if (chain == null || chain.length == 0) return;
-        metadata.certificate = chain[0].getEncoded();
-        var output = new ByteArrayOutputStream();
-        for (int i = 1; i < chain.length; i++) {
-            output.write(chain[i].getEncoded());
-        }
-        metadata.certificateChain = output.toByteArray();
+        metadata.certificate = encodeCertificate(chain[0]);
+        metadata.certificateChain = encodeCertificateChainTail(chain);
     }
 }
@@ -6,34 +6,115 @@ import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 public class XMLParser {
 
-    private static class Element {
-        String name;
-        Map<String, String> attributes = new HashMap<>();
-        String text;
-        Map<String, List<Element>> children = new HashMap<>();
-
-        Element(String name) {
+    /**
+     * A parsed element. Accessors return null for anything missing instead of throwing,
+     * so optional fields can be probed without exceptions.
+     */
+    public static final class Node {
+        private final String name;
+        private final Map<String, String> attributes = new HashMap<>();
+        private String text;
+        private final Map<String, List<Node>> children = new HashMap<>();
+
+        Node(String name) {
             this.name = name;
         }
 
-        void addChild(Element child) {
+        void addChild(Node child) {
             children.computeIfAbsent(child.name, k -> new ArrayList<>()).add(child);
         }
+
+        public String name() {
+            return name;
+        }
+
+        public String text() {
+            return text;
+        }
+
+        public String attribute(String key) {
+            return attributes.get(key);
+        }
+
+        /** Children called {@code childName} in document order, never null. */
+        public List<Node> children(String childName) {
+            List<Node> list = children.get(childName);
+            return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+        }
+
+        public int childCount(String childName) {
+            List<Node> list = children.get(childName);
+            return list == null ? 0 : list.size();
+        }
+
+        public Node child(String childName) {
+            return child(childName, 0);
+        }
+
+        public Node child(String childName, int index) {
+            List<Node> list = children.get(childName);
+            return list == null || index < 0 || index >= list.size() ? null : list.get(index);
+        }
+
+        /** Text of the first child called {@code childName}, or null if it is missing. */
+        public String childText(String childName) {
+            Node child = child(childName);
+            return child == null ? null : child.text;
+        }
+
+        /** Integer text of the first child called {@code childName}, or null if it is missing or not a number. */
+        public Integer childInt(String childName) {
+            String value = childText(childName);
+            if (value == null) return null;
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A dotted path such as {@code "Root.Keys.Key[2].PrivateKey"}, split once so it can be
+     * looked up repeatedly without re-parsing. The index on the first segment is ignored.
+     */
+    public static final class Path {
+        final String rootName;
+        final String[] names;
+        final int[] indices;
+
+        private Path(String rootName, String[] names, int[] indices) {
+            this.rootName = rootName;
+            this.names = names;
+            this.indices = indices;
+        }
+
+        /** This path extended by one more segment. */
+        public Path child(String name, int index) {
+            String[] n = new String[names.length + 1];
+            int[] idx = new int[indices.length + 1];
+            System.arraycopy(names, 0, n, 0, names.length);
+            System.arraycopy(indices, 0, idx, 0, indices.length);
+            n[names.length] = name;
+            idx[indices.length] = index;
+            return new Path(rootName, n, idx);
+        }
     }
 
-    private final Element root;
+    private final Node root;
 
     public XMLParser(Reader reader) throws Exception {
         root = parse(reader);
     }
 
-    private Element parse(Reader reader) throws Exception {
+    private Node parse(Reader reader) throws Exception {
         XmlPullParserFactory xmlFactoryObject = XmlPullParserFactory.newInstance();
         XmlPullParser parser = xmlFactoryObject.newPullParser();
         parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
@@ -47,15 +128,15 @@ public class XMLParser {
         } catch (Exception ignored) {}
         parser.setInput(reader);
 
-        Element currentElement = null;
+        Node currentElement = null;
         // Stack to keep track of parents
-        List<Element> stack = new ArrayList<>();
+        List<Node> stack = new ArrayList<>();
 
         int eventType = parser.getEventType();
         while (eventType != XmlPullParser.END_DOCUMENT) {
             switch (eventType) {
                 case XmlPullParser.START_TAG:
-                    Element element = new Element(parser.getName());
+                    Node element = new Node(parser.getName());
                     for (int i = 0; i < parser.getAttributeCount(); i++) {
                         element.attributes.put(parser.getAttributeName(i), parser.getAttributeValue(i));
                     }
@@ -81,7 +162,7 @@ public class XMLParser {
 
                 case XmlPullParser.END_TAG:
                     if (!stack.isEmpty()) {
-                        Element finished = stack.remove(stack.size() - 1);
+                        Node finished = stack.remove(stack.size() - 1);
                         if (stack.isEmpty()) {
                             return finished;
                         }
@@ -94,33 +175,64 @@ public class XMLParser {
         return stack.isEmpty() ? null : stack.get(0);
     }
 
-    public Map<String, String> obtainPath(String path) {
-        if (root == null) throw new RuntimeException("XML not parsed");
-
-        String[] rawTags = path.split("\\.");
-        Element current = root;
-
-        String firstPart = rawTags[0];
-        String rootName = firstPart.split("\\[")[0];
+    /** The document element, or null if nothing was parsed. */
+    public Node root() {
+        return root;
+    }
 
-        if (!root.name.equals(rootName)) {
-             throw new RuntimeException("Path root mismatch: " + rootName + " vs " + root.name);
+    /** Splits a dotted path once; throws {@link IllegalArgumentException} on a malformed index. */
+    public static Path compile(String path) {
+        List<String> names = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
+        int start = 0;
+        int len = path.length();
+        while (start <= len) {
+            int end = path.indexOf('.', start);
+            if (end < 0) end = len;
+            int bracket = path.indexOf('[', start);
+            if (bracket >= 0 && bracket < end) {
+                int close = path.indexOf(']', bracket);
+                if (close < 0 || close > end) throw new IllegalArgumentException("Bad index in path: " + path);
+                names.add(path.substring(start, bracket));
+                try {
+                    indices.add(Integer.parseInt(path.substring(bracket + 1, close)));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Bad index in path: " + path, e);
+                }
+            } else {
+                names.add(path.substring(start, end));
+                indices.add(0);
+            }
+            start = end + 1;
         }
+        String[] n = new String[names.size() - 1];
+        int[] idx = new int[n.length];
+        for (int i = 0; i < n.length; i++) {
+            n[i] = names.get(i + 1);
+            idx[i] = indices.get(i + 1);
+        }
+        return new Path(names.get(0), n, idx);
+    }
 
-        for (int i = 1; i < rawTags.length; i++) {
-            String rawTag = rawTags[i];
-            String[] parts = rawTag.split("\\[");
-            String name = parts[0];
-            int index = 0;
-            if (parts.length > 1) {
-                index = Integer.parseInt(parts[1].replace("]", ""));
-            }
+    /** The node at {@code path}, or null if any segment is missing. */
+    public Node find(Path path) {
+        if (root == null || !root.name.equals(path.rootName)) return null;
+        Node current = root;
+        for (int i = 0; i < path.names.length && current != null; i++) {
+            current = current.child(path.names[i], path.indices[i]);
+        }
+        return current;
+    }
 
-            List<Element> children = current.children.get(name);
-            if (children == null || index >= children.size()) {
-                 throw new RuntimeException("Path not found: " + path);
-            }
-            current = children.get(index);
+    public Map<String, String> obtainPath(String path) {
+        if (root == null) throw new RuntimeException("XML not parsed");
+        Path compiled = compile(path);
+        if (!root.name.equals(compiled.rootName)) {
+             throw new RuntimeException("Path root mismatch: " + compiled.rootName + " vs " + root.name);
+        }
+        Node current = find(compiled);
+        if (current == null) {
+             throw new RuntimeException("Path not found: " + path);
         }
 
         Map<String, String> result = new HashMap<>(current.attributes);
@@ -131,33 +243,7 @@ public class XMLParser {
     }
 
     public int getChildCount(String path, String childName) {
-        if (root == null) return 0;
-
-        String[] rawTags = path.split("\\.");
-        Element current = root;
-
-        String firstPart = rawTags[0];
-        String rootName = firstPart.split("\\[")[0];
-
-        if (!root.name.equals(rootName)) return 0;
-
-        for (int i = 1; i < rawTags.length; i++) {
-            String rawTag = rawTags[i];
-            String[] parts = rawTag.split("\\[");
-            String name = parts[0];
-            int index = 0;
-            if (parts.length > 1) {
-                index = Integer.parseInt(parts[1].replace("]", ""));
-            }
-
-            List<Element> children = current.children.get(name);
-            if (children == null || index >= children.size()) {
-                return 0;
-            }
-            current = children.get(index);
-        }
-
-        List<Element> targetChildren = current.children.get(childName);
-        return targetChildren == null ? 0 : targetChildren.size();
+        Node current = find(compile(path));
+        return current == null ? 0 : current.childCount(childName);
     }
 }
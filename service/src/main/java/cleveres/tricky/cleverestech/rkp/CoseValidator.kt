@@ -0,0 +1,158 @@
+package cleveres.tricky.cleverestech.rkp
+
+import cleveres.tricky.cleverestech.util.CborReader
+import cleveres.tricky.cleverestech.util.CborWriter
+import java.math.BigInteger
+import java.security.MessageDigest
+import java.security.PublicKey
+import java.security.interfaces.ECPublicKey
+import javax.crypto.Mac
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Structural checks for the RKP blobs we serve, done with [CborReader] so nothing is copied
+ * except the coordinates and tag needed for comparison.
+ */
+object CoseValidator {
+    private const val MAC_ALGORITHM = "HmacSHA256"
+    private const val COSE_ALG_HMAC_256 = 5L
+    private const val COSE_KTY_EC2 = 2L
+    private const val COSE_CRV_P256 = 1L
+
+    /** Offsets of a parsed COSE_Mac0 wrapping a P-256 COSE_Key, all into [data]. */
+    class MacedKey(
+        val data: ByteArray,
+        val protectedOffset: Int,
+        val protectedLength: Int,
+        val payloadOffset: Int,
+        val payloadLength: Int,
+        val tagOffset: Int,
+        val tagLength: Int,
+        val x: ByteArray,
+        val y: ByteArray
+    )
+
+    /**
+     * Parses COSE_Mac0 = [ protected: bstr .cbor { 1: 5 }, unprotected: {}, payload: bstr .cbor COSE_Key, tag: bstr ].
+     * Throws [IllegalStateException] when the blob does not have that shape.
+     */
+    fun parseMacedPublicKey(bytes: ByteArray): MacedKey {
+        val r = CborReader(bytes)
+        check(r.readArrayHeader() == 4) { "COSE_Mac0 must have 4 items" }
+
+        val protectedLength = r.readBytesHeader()
+        val protectedOffset = r.position()
+        checkProtectedHeader(CborReader(bytes, protectedOffset, protectedLength))
+        r.advance(protectedLength)
+
+        val unprotected = r.readMapHeader()
+        for (i in 0 until unprotected * 2) r.skip()
+
+        val payloadLength = r.readBytesHeader()
+        val payloadOffset = r.position()
+        val (x, y) = parseCoseKey(CborReader(bytes, payloadOffset, payloadLength))
+        r.advance(payloadLength)
+
+        val tagLength = r.readBytesHeader()
+        check(tagLength == 32) { "HMAC-SHA256 tag must be 32 bytes" }
+        val tagOffset = r.position()
+        r.advance(tagLength)
+        check(!r.hasNext()) { "trailing bytes after COSE_Mac0" }
+        return MacedKey(bytes, protectedOffset, protectedLength, payloadOffset, payloadLength, tagOffset, tagLength, x, y)
+    }
+
+    private fun checkProtectedHeader(r: CborReader) {
+        var alg: Long? = null
+        for (i in 0 until r.readMapHeader()) {
+            if (r.peekMajorType() <= CborReader.MT_NEGATIVE && r.readInt() == 1L) {
+                alg = r.readInt()
+            } else {
+                r.skip()
+            }
+        }
+        check(alg == COSE_ALG_HMAC_256) { "unexpected MAC algorithm $alg" }
+        check(!r.hasNext()) { "trailing bytes in protected header" }
+    }
+
+    private fun parseCoseKey(r: CborReader): Pair<ByteArray, ByteArray> {
+        var kty: Long? = null
+        var crv: Long? = null
+        var x: ByteArray? = null
+        var y: ByteArray? = null
+        for (i in 0 until r.readMapHeader()) {
+            if (r.peekMajorType() > CborReader.MT_NEGATIVE) {
+                r.skip()
+                r.skip()
+                continue
+            }
+            when (r.readInt()) {
+                1L -> kty = r.readInt()
+                -1L -> crv = r.readInt()
+                -2L -> x = r.readBytes()
+                -3L -> y = r.readBytes()
+                else -> r.skip()
+            }
+        }
+        check(!r.hasNext()) { "trailing bytes in COSE_Key" }
+        check(kty == COSE_KTY_EC2 && crv == COSE_CRV_P256) { "COSE_Key is not an EC2 P-256 key" }
+        check(x?.size == 32 && y?.size == 32) { "COSE_Key coordinates must be 32 bytes" }
+        return x!! to y!!
+    }
+
+    /** Recomputes the tag over MAC_structure = [ "MAC0", protected, h'', payload ] and compares in constant time. */
+    fun verifyMac(key: MacedKey, macKey: ByteArray): Boolean {
+        val structure = CborWriter(key.protectedLength + key.payloadLength + 16)
+            .writeArrayHeader(4)
+            .writeText("MAC0")
+            .writeBytes(key.data, key.protectedOffset, key.protectedLength)
+            .writeBytes(ByteArray(0))
+            .writeBytes(key.data, key.payloadOffset, key.payloadLength)
+            .toByteArray()
+        val mac = Mac.getInstance(MAC_ALGORITHM)
+        mac.init(SecretKeySpec(macKey, MAC_ALGORITHM))
+        val expected = mac.doFinal(structure)
+        return MessageDigest.isEqual(expected, key.data.copyOfRange(key.tagOffset, key.tagOffset + key.tagLength))
+    }
+
+    /** True if the COSE_Key coordinates are those of [publicKey]. */
+    fun matchesPublicKey(key: MacedKey, publicKey: PublicKey): Boolean {
+        val (x, y) = publicPoint(publicKey) ?: return false
+        return key.x.contentEquals(x) && key.y.contentEquals(y)
+    }
+
+    /** The 32-byte big-endian affine coordinates of a P-256 public key, as they appear in a COSE_Key. */
+    fun publicPoint(publicKey: PublicKey): Pair<ByteArray, ByteArray>? {
+        val point = (publicKey as? ECPublicKey)?.w ?: return null
+        return toFixed(point.affineX) to toFixed(point.affineY)
+    }
+
+    private fun toFixed(v: BigInteger): ByteArray {
+        val raw = v.toByteArray()
+        if (raw.size == 32) return raw
+        val out = ByteArray(32)
+        if (raw.size > 32) {
+            System.arraycopy(raw, raw.size - 32, out, 0, 32)
+        } else {
+            System.arraycopy(raw, 0, out, 32 - raw.size, raw.size)
+        }
+        return out
+    }
+
+    /**
+     * Checks that DeviceInfo is a single CBOR map with text keys and scalar values,
+     * and returns its entry count.
+     */
+    fun validateDeviceInfo(bytes: ByteArray): Int {
+        val r = CborReader(bytes)
+        val count = r.readMapHeader()
+        for (i in 0 until count) {
+            check(r.peekMajorType() == CborReader.MT_TEXT_STRING) { "DeviceInfo keys must be text" }
+            r.skip()
+            val mt = r.peekMajorType()
+            check(mt != CborReader.MT_ARRAY && mt != CborReader.MT_MAP) { "DeviceInfo values must be scalars" }
+            r.skip()
+        }
+        check(!r.hasNext()) { "trailing bytes after DeviceInfo" }
+        return count
+    }
+}
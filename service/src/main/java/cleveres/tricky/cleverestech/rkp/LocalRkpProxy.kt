@@ -22,6 +22,11 @@ object LocalRkpProxy {
     // ability to rotate if caught.
     private var serverHmacKey: ByteArray = ByteArray(32)
 
+    // bumped on every rotation so MACs computed ahead of time can be told apart
+    @Volatile
+    var keyEpoch = 0
+        private set
+
     init {
         loadOrGenerateKey()
     }
@@ -59,7 +64,11 @@ object LocalRkpProxy {
         Logger.d("LocalRkpProxy: Rotating Root Secret (Anti-Fingerprinting)")
         val newKey = ByteArray(32)
         java.security.SecureRandom().nextBytes(newKey)
-        serverHmacKey = newKey
+        synchronized(this) {
+            serverHmacKey = newKey
+            keyEpoch++
+        }
+        RkpKeyPool.invalidate()
         
         // Persist
         try {
@@ -79,21 +88,33 @@ object LocalRkpProxy {
         return serverHmacKey.clone()
     }
 
+    /**
+     * The MAC key together with the epoch it belongs to, read atomically.
+     */
+    @Synchronized
+    fun getMacKeyWithEpoch(): Pair<Int, ByteArray> = keyEpoch to serverHmacKey.clone()
+
     /**
      * Simulation of server-side validation.
-     * Validates that a MACed public key has the correct COSE structure.
+     * Parses the COSE_Mac0 and its COSE_Key and checks the tag under the current root secret.
      */
-    fun validateMacedPublicKey(macedKey: ByteArray): Boolean {
-        // Basic schema check: Should be a COSE_Mac0 array of 4 items.
-        if (macedKey.isEmpty()) return false
-        
-        // Array of 4 items: Major Type 4 (0x80) | 4 = 0x84
-        if (macedKey[0] != 0x84.toByte()) {
-            Logger.e("LocalRkpProxy: Validation Failed - Not a valid COSE_Mac0 array (0x84)")
+    fun validateMacedPublicKey(macedKey: ByteArray): Boolean = validateMacedPublicKey(macedKey, getMacKey())
+
+    /**
+     * Same as [validateMacedPublicKey] against a specific MAC key, e.g. one taken with [getMacKeyWithEpoch].
+     */
+    fun validateMacedPublicKey(macedKey: ByteArray, macKey: ByteArray): Boolean {
+        val parsed = try {
+            CoseValidator.parseMacedPublicKey(macedKey)
+        } catch (e: IllegalStateException) {
+            Logger.e("LocalRkpProxy: Validation Failed - ${e.message}")
             return false
         }
-        
-        Logger.d("LocalRkpProxy: Schema validation passed for MacedPublicKey")
+        if (!CoseValidator.verifyMac(parsed, macKey)) {
+            Logger.e("LocalRkpProxy: Validation Failed - MAC mismatch")
+            return false
+        }
+        Logger.d("LocalRkpProxy: Structure and MAC validation passed for MacedPublicKey")
         return true
     }
 }
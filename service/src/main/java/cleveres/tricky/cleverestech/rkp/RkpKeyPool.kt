@@ -0,0 +1,129 @@
+package cleveres.tricky.cleverestech.rkp
+
+import cleveres.tricky.cleverestech.Logger
+import cleveres.tricky.cleverestech.keystore.CertHack
+import java.security.KeyPair
+import java.security.KeyPairGenerator
+import java.security.spec.ECGenParameterSpec
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Ready-made P-256 key pairs with their COSE_Mac0 already computed, so
+ * generateEcdsaP256KeyPair batches do not pay for key generation and HMAC on the binder thread.
+ *
+ * Every entry remembers the [LocalRkpProxy.keyEpoch] it was MACed under. Rotation swaps in
+ * an empty generation and [take] drops anything from an older epoch, so a stale MAC is never served.
+ */
+object RkpKeyPool {
+    // matches supportedNumKeysInCsr, one full provisioning batch
+    private const val TARGET_DEPTH = 20
+
+    class PooledKey(val keyPair: KeyPair, val macedPublicKey: ByteArray, val epoch: Int)
+
+    private class Generation(val epoch: Int) {
+        val keys = ConcurrentLinkedQueue<PooledKey>()
+        val depth = AtomicInteger()
+    }
+
+    @Volatile
+    private var generation = Generation(-1)
+    // lowered under memory pressure
+    @Volatile
+    private var targetDepth = TARGET_DEPTH
+    private val started = AtomicBoolean()
+    private val filling = AtomicBoolean()
+
+    private val executor = Executors.newSingleThreadExecutor {
+        Thread(it, "RkpKeyPool").apply { isDaemon = true }
+    }
+
+    /** Number of keys ready to be served under the current MAC key. */
+    fun depth(): Int = generation.let { if (it.epoch == LocalRkpProxy.keyEpoch) it.depth.get() else 0 }
+
+    /** Takes a pooled key and schedules a refill, or returns null if the pool is empty. */
+    fun take(): PooledKey? {
+        started.set(true)
+        val gen = generation
+        var key: PooledKey? = null
+        if (gen.epoch == LocalRkpProxy.keyEpoch) {
+            key = gen.keys.poll()?.also { gen.depth.decrementAndGet() }
+            if (key != null && key.epoch != LocalRkpProxy.keyEpoch) key = null
+        }
+        refill()
+        return key
+    }
+
+    /** Drops every pooled key; called after the MAC key rotates. */
+    fun invalidate() {
+        generation = Generation(LocalRkpProxy.keyEpoch)
+        Logger.d("RkpKeyPool: invalidated for epoch ${generation.epoch}")
+        if (started.get()) refill()
+    }
+
+    /** Keeps [scale] of a full batch ready, dropping surplus keys at once when it shrinks. */
+    fun setDepthScale(scale: Double) {
+        val target = (TARGET_DEPTH * scale.coerceIn(0.0, 1.0)).toInt()
+        val grew = target > targetDepth
+        targetDepth = target
+        val gen = generation
+        while (gen.depth.get() > target) {
+            if (gen.keys.poll() == null) break
+            gen.depth.decrementAndGet()
+        }
+        if (grew && started.get()) refill()
+    }
+
+    /** Builds one key on the calling thread, used when the pool runs dry. */
+    fun create(): PooledKey? {
+        val (epoch, macKey) = LocalRkpProxy.getMacKeyWithEpoch()
+        return create(epoch, macKey)
+    }
+
+    private fun create(epoch: Int, macKey: ByteArray): PooledKey? {
+        val keyPairGen = KeyPairGenerator.getInstance("EC")
+        keyPairGen.initialize(ECGenParameterSpec("secp256r1"))
+        val keyPair = keyPairGen.generateKeyPair()
+        val macedKey = CertHack.generateMacedPublicKey(keyPair, macKey) ?: return null
+        if (!LocalRkpProxy.validateMacedPublicKey(macedKey, macKey)) {
+            Logger.e("RkpKeyPool: MacedPublicKey validation FAILED by LocalRkpProxy")
+            return null
+        }
+        return PooledKey(keyPair, macedKey, epoch)
+    }
+
+    private fun refill() {
+        if (!filling.compareAndSet(false, true)) return
+        executor.execute {
+            try {
+                fill()
+            } finally {
+                filling.set(false)
+            }
+        }
+    }
+
+    private fun fill() {
+        kotlin.runCatching {
+            while (true) {
+                val (epoch, macKey) = LocalRkpProxy.getMacKeyWithEpoch()
+                var gen = generation
+                if (gen.epoch != epoch) {
+                    gen = Generation(epoch)
+                    generation = gen
+                }
+                if (gen.depth.get() >= targetDepth) break
+                val key = create(epoch, macKey) ?: break
+                // a rotation in the meantime replaced the generation, the key goes with it
+                if (generation !== gen) continue
+                gen.keys.add(key)
+                gen.depth.incrementAndGet()
+            }
+            Logger.d("RkpKeyPool: depth ${depth()}")
+        }.onFailure {
+            Logger.e("RkpKeyPool: failed to fill", it)
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package cleveres.tricky.cleverestech.rkp
+
+import android.hardware.security.rkp.RpcHardwareInfo
+import cleveres.tricky.cleverestech.Config
+import cleveres.tricky.cleverestech.keystore.CertHack
+
+/**
+ * Encoded RKP fragments that only depend on the spoofed build vars, rebuilt when
+ * [Config.buildVarsEpoch] moves. The arrays and the hardware info are shared, never modify them.
+ */
+object RkpTemplates {
+    class Templates(
+        val epoch: Int,
+        val deviceInfo: ByteArray,
+        val hardwareInfo: RpcHardwareInfo
+    ) {
+        val protectedData: ByteArray get() = CertHack.getProtectedData()
+    }
+
+    @Volatile
+    private var current: Templates? = null
+
+    fun get(): Templates {
+        val epoch = Config.buildVarsEpoch
+        current?.let { if (it.epoch == epoch) return it }
+        return build(epoch).also { current = it }
+    }
+
+    private fun build(epoch: Int): Templates {
+        val deviceInfo = CertHack.createDeviceInfoCbor(
+            Config.getBuildVar("BRAND") ?: "google",
+            Config.getBuildVar("MANUFACTURER") ?: "Google",
+            Config.getBuildVar("PRODUCT") ?: "generic",
+            Config.getBuildVar("MODEL") ?: "Pixel",
+            Config.getBuildVar("DEVICE") ?: "generic"
+        ) ?: ByteArray(0)
+        val hardwareInfo = RpcHardwareInfo().apply {
+            versionNumber = 3 // android 14+ uses version 3
+            rpcAuthorName = "Google"
+            supportedEekCurve = 2 // P-256 curve
+            uniqueId = Config.getBuildVar("DEVICE") ?: "generic"
+            supportedNumKeysInCsr = 20
+        }
+        return Templates(epoch, deviceInfo, hardwareInfo)
+    }
+}
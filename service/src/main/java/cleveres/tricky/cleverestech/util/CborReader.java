@@ -0,0 +1,192 @@
+package cleveres.tricky.cleverestech.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Pull decoder for the definite-length CBOR subset used by RKP and COSE.
+ * It walks the input in place: headers are returned as lengths and the caller either reads
+ * the content, skips it, or remembers its offset, so no object tree is ever built.
+ * Malformed or truncated input throws {@link IllegalStateException}.
+ */
+public final class CborReader {
+
+    public static final int MT_UNSIGNED = 0;
+    public static final int MT_NEGATIVE = 1;
+    public static final int MT_BYTE_STRING = 2;
+    public static final int MT_TEXT_STRING = 3;
+    public static final int MT_ARRAY = 4;
+    public static final int MT_MAP = 5;
+    public static final int MT_TAG = 6;
+    public static final int MT_SIMPLE = 7;
+
+    // nesting limit for skip(), well above anything RKP produces
+    private static final int MAX_DEPTH = 16;
+
+    private final byte[] data;
+    private final int end;
+    private int pos;
+
+    public CborReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    public CborReader(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length) {
+            throw new IllegalArgumentException("bad range");
+        }
+        this.data = data;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public int position() {
+        return pos;
+    }
+
+    public boolean hasNext() {
+        return pos < end;
+    }
+
+    public int peekMajorType() {
+        require(1);
+        return (data[pos] & 0xFF) >>> 5;
+    }
+
+    public long readInt() {
+        int mt = peekMajorType();
+        if (mt == MT_UNSIGNED) {
+            long v = readHeader(MT_UNSIGNED);
+            if (v < 0) throw new IllegalStateException("integer overflow");
+            return v;
+        }
+        if (mt == MT_NEGATIVE) {
+            long v = readHeader(MT_NEGATIVE);
+            if (v < 0) throw new IllegalStateException("integer overflow");
+            return -1 - v;
+        }
+        throw new IllegalStateException("expected integer, got major type " + mt);
+    }
+
+    /** Reads a byte string header; its content starts at {@link #position()} and must be consumed with {@link #advance}. */
+    public int readBytesHeader() {
+        return checkedLength(readHeader(MT_BYTE_STRING));
+    }
+
+    public byte[] readBytes() {
+        int len = readBytesHeader();
+        byte[] out = new byte[len];
+        System.arraycopy(data, pos, out, 0, len);
+        pos += len;
+        return out;
+    }
+
+    public String readText() {
+        int len = checkedLength(readHeader(MT_TEXT_STRING));
+        String s = new String(data, pos, len, StandardCharsets.UTF_8);
+        pos += len;
+        return s;
+    }
+
+    /** Consumes a text string if it equals {@code expected}, without decoding it. */
+    public boolean readTextEquals(String expected) {
+        int len = checkedLength(readHeader(MT_TEXT_STRING));
+        byte[] e = expected.getBytes(StandardCharsets.UTF_8);
+        boolean equal = len == e.length;
+        for (int i = 0; equal && i < len; i++) {
+            equal = data[pos + i] == e[i];
+        }
+        pos += len;
+        return equal;
+    }
+
+    public int readArrayHeader() {
+        return checkedCount(readHeader(MT_ARRAY));
+    }
+
+    public int readMapHeader() {
+        return checkedCount(readHeader(MT_MAP));
+    }
+
+    public boolean readBool() {
+        long v = readHeader(MT_SIMPLE);
+        if (v == 20) return false;
+        if (v == 21) return true;
+        throw new IllegalStateException("expected boolean");
+    }
+
+    /** Moves past {@code length} content bytes of the current string. */
+    public void advance(int length) {
+        require(length);
+        pos += length;
+    }
+
+    /** Skips one complete item, including nested containers. */
+    public void skip() {
+        skip(0);
+    }
+
+    private void skip(int depth) {
+        if (depth > MAX_DEPTH) throw new IllegalStateException("nesting too deep");
+        int mt = peekMajorType();
+        long v = readHeader(mt);
+        switch (mt) {
+            case MT_BYTE_STRING, MT_TEXT_STRING -> advance(checkedLength(v));
+            case MT_ARRAY -> {
+                for (int i = checkedCount(v); i > 0; i--) skip(depth + 1);
+            }
+            case MT_MAP -> {
+                for (int i = checkedCount(v); i > 0; i--) {
+                    skip(depth + 1);
+                    skip(depth + 1);
+                }
+            }
+            case MT_TAG -> skip(depth + 1);
+            default -> {
+                // integers and simple values carry no content
+            }
+        }
+    }
+
+    private long readHeader(int majorType) {
+        require(1);
+        int initial = data[pos] & 0xFF;
+        if (initial >>> 5 != majorType) {
+            throw new IllegalStateException("expected major type " + majorType + ", got " + (initial >>> 5));
+        }
+        int info = initial & 0x1F;
+        pos++;
+        if (info < 24) return info;
+        int bytes = switch (info) {
+            case 24 -> 1;
+            case 25 -> 2;
+            case 26 -> 4;
+            case 27 -> 8;
+            default -> throw new IllegalStateException("unsupported additional info " + info);
+        };
+        require(bytes);
+        long v = 0;
+        for (int i = 0; i < bytes; i++) {
+            v = (v << 8) | (data[pos++] & 0xFF);
+        }
+        return v;
+    }
+
+    private int checkedLength(long v) {
+        if (v < 0 || v > end - pos) throw new IllegalStateException("length out of range");
+        return (int) v;
+    }
+
+    private int checkedCount(long v) {
+        // every item takes at least one byte
+        if (v < 0 || v > end - pos) throw new IllegalStateException("count out of range");
+        return (int) v;
+    }
+
+    private void require(int n) {
+        if (n < 0 || n > end - pos) throw new IllegalStateException("truncated CBOR");
+    }
+}
@@ -0,0 +1,205 @@
+package cleveres.tricky.cleverestech.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Typed, streaming CBOR writer.
+ * Unlike {@link CborEncoder} it never boxes values or builds containers: the caller writes
+ * container headers with explicit lengths followed by their items, and pre-encoded items
+ * can be embedded with {@link #writeRaw}. The buffer grows as needed and is kept across {@link #reset}.
+ */
+public final class CborWriter {
+
+    private static final int MT_UNSIGNED = 0;
+    private static final int MT_NEGATIVE = 1;
+    private static final int MT_BYTE_STRING = 2;
+    private static final int MT_TEXT_STRING = 3;
+    private static final int MT_ARRAY = 4;
+    private static final int MT_MAP = 5;
+    private static final int MT_SIMPLE = 7;
+
+    private byte[] buf;
+    private int size;
+
+    public CborWriter() {
+        this(256);
+    }
+
+    public CborWriter(int initialCapacity) {
+        buf = new byte[Math.max(16, initialCapacity)];
+    }
+
+    /** Discards the written bytes but keeps the buffer for reuse. */
+    public CborWriter reset() {
+        size = 0;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, size);
+    }
+
+    public void writeTo(OutputStream os) throws IOException {
+        os.write(buf, 0, size);
+    }
+
+    public CborWriter writeInt(long value) {
+        if (value >= 0) {
+            writeHeader(MT_UNSIGNED, value);
+        } else {
+            writeHeader(MT_NEGATIVE, -1 - value);
+        }
+        return this;
+    }
+
+    public CborWriter writeBytes(byte[] value) {
+        return writeBytes(value, 0, value.length);
+    }
+
+    public CborWriter writeBytes(byte[] value, int offset, int length) {
+        writeHeader(MT_BYTE_STRING, length);
+        return writeRaw(value, offset, length);
+    }
+
+    /** Header of a byte string whose {@code length} bytes the caller writes next, e.g. embedded CBOR. */
+    public CborWriter writeBytesHeader(int length) {
+        writeHeader(MT_BYTE_STRING, length);
+        return this;
+    }
+
+    public CborWriter writeText(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeHeader(MT_TEXT_STRING, bytes.length);
+        return writeRaw(bytes, 0, bytes.length);
+    }
+
+    public CborWriter writeBool(boolean value) {
+        writeHeader(MT_SIMPLE, value ? 21 : 20);
+        return this;
+    }
+
+    public CborWriter writeNull() {
+        writeHeader(MT_SIMPLE, 22);
+        return this;
+    }
+
+    /** Array header; exactly {@code count} items must follow. */
+    public CborWriter writeArrayHeader(int count) {
+        writeHeader(MT_ARRAY, count);
+        return this;
+    }
+
+    /** Map header; exactly {@code count} key/value pairs must follow. */
+    public CborWriter writeMapHeader(int count) {
+        writeHeader(MT_MAP, count);
+        return this;
+    }
+
+    /** Embeds an already encoded CBOR item as is. */
+    public CborWriter writeRaw(byte[] encoded) {
+        return writeRaw(encoded, 0, encoded.length);
+    }
+
+    public CborWriter writeRaw(byte[] encoded, int offset, int length) {
+        ensure(length);
+        System.arraycopy(encoded, offset, buf, size, length);
+        size += length;
+        return this;
+    }
+
+    /** Embeds everything written to {@code other} so far. */
+    public CborWriter writeRaw(CborWriter other) {
+        return writeRaw(other.buf, 0, other.size);
+    }
+
+    private void writeHeader(int majorType, long value) {
+        ensure(9);
+        int mt = majorType << 5;
+        if (value < 24) {
+            buf[size++] = (byte) (mt | (int) value);
+        } else if (value <= 0xFF) {
+            buf[size++] = (byte) (mt | 24);
+            buf[size++] = (byte) value;
+        } else if (value <= 0xFFFF) {
+            buf[size++] = (byte) (mt | 25);
+            putBigEndian(value, 2);
+        } else if (value <= 0xFFFFFFFFL) {
+            buf[size++] = (byte) (mt | 26);
+            putBigEndian(value, 4);
+        } else {
+            buf[size++] = (byte) (mt | 27);
+            putBigEndian(value, 8);
+        }
+    }
+
+    private void putBigEndian(long value, int bytes) {
+        for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+            buf[size++] = (byte) (value >>> shift);
+        }
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+    }
+
+    /**
+     * Collects map entries as encoded key/value pairs and writes them in deterministic order
+     * (RFC 8949 section 4.2.1: bytewise lexicographic order of the encoded keys).
+     */
+    public static final class CanonicalMap {
+        private final List<byte[]> keys = new ArrayList<>();
+        private final List<byte[]> values = new ArrayList<>();
+        private final CborWriter scratch = new CborWriter(16);
+
+        public CanonicalMap put(long key, byte[] encodedValue) {
+            return put(scratch.reset().writeInt(key).toByteArray(), encodedValue);
+        }
+
+        public CanonicalMap put(String key, byte[] encodedValue) {
+            return put(scratch.reset().writeText(key).toByteArray(), encodedValue);
+        }
+
+        public CanonicalMap put(byte[] encodedKey, byte[] encodedValue) {
+            keys.add(encodedKey);
+            values.add(encodedValue);
+            return this;
+        }
+
+        public int size() {
+            return keys.size();
+        }
+
+        /** Writes the map header and all entries to {@code w}. */
+        public CborWriter writeTo(CborWriter w) {
+            Integer[] order = new Integer[keys.size()];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> compareBytes(keys.get(a), keys.get(b)));
+            w.writeMapHeader(order.length);
+            for (int i : order) {
+                w.writeRaw(keys.get(i));
+                w.writeRaw(values.get(i));
+            }
+            return w;
+        }
+
+        private static int compareBytes(byte[] a, byte[] b) {
+            int n = Math.min(a.length, b.length);
+            for (int i = 0; i < n; i++) {
+                int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+                if (c != 0) return c;
+            }
+            return a.length - b.length;
+        }
+    }
+}
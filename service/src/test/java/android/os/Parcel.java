@@ -1,13 +1,25 @@
 package android.os;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Byte-accurate stand-in for the framework Parcel: little-endian ints and longs, byte arrays
+ * length-prefixed and padded to four bytes, binders as flat objects kept in a side table.
+ * Writes go to the data position, so size fields can be patched the way the real class allows.
+ */
 public class Parcel {
     public static final AtomicInteger obtainCount = new AtomicInteger(0);
 
-    private Queue<Object> queue = new LinkedList<>();
+    // sizeof(flat_binder_object) on 64-bit
+    private static final int BINDER_SIZE = 24;
+
+    private byte[] data = new byte[64];
+    private int size;
+    private int pos;
+    private final Map<Integer, IBinder> binders = new HashMap<>();
 
     public static void resetStats() {
         obtainCount.set(0);
@@ -19,33 +31,128 @@ public class Parcel {
     }
 
     public void recycle() {
-        queue.clear();
+        size = 0;
+        pos = 0;
+        binders.clear();
     }
 
     public int dataSize() {
-        return 100;
+        return size;
+    }
+
+    public int dataPosition() {
+        return pos;
+    }
+
+    public void setDataPosition(int pos) {
+        this.pos = pos;
+    }
+
+    private void ensure(int n) {
+        if (pos + n > data.length) data = Arrays.copyOf(data, Math.max(data.length * 2, pos + n));
+    }
+
+    private void advance(int n) {
+        pos += n;
+        if (pos > size) size = pos;
     }
 
     // Write methods
-    public void pushBinder(IBinder binder) { queue.add(binder); }
-    public void pushInt(int val) { queue.add(val); }
-    public void pushLong(long val) { queue.add(val); }
-    public void writeInt(int val) { queue.add(val); }
-    public void writeLong(long val) { queue.add(val); }
-    public void writeStrongBinder(IBinder val) { queue.add(val); }
+    public void pushBinder(IBinder binder) { writeStrongBinder(binder); }
+    public void pushInt(int val) { writeInt(val); }
+    public void pushLong(long val) { writeLong(val); }
+
+    /** Raw bytes without a length prefix, for payloads the code under test only skips over. */
+    public void pushRaw(byte[] val) {
+        ensure(val.length);
+        System.arraycopy(val, 0, data, pos, val.length);
+        advance(val.length);
+    }
+
+    public void writeInt(int val) {
+        ensure(4);
+        for (int i = 0; i < 4; i++) data[pos + i] = (byte) (val >>> (8 * i));
+        advance(4);
+    }
+
+    public void writeLong(long val) {
+        ensure(8);
+        for (int i = 0; i < 8; i++) data[pos + i] = (byte) (val >>> (8 * i));
+        advance(8);
+    }
+
+    public void writeByteArray(byte[] val) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(val.length);
+        int padded = (val.length + 3) & ~3;
+        ensure(padded);
+        System.arraycopy(val, 0, data, pos, val.length);
+        Arrays.fill(data, pos + val.length, pos + padded, (byte) 0);
+        advance(padded);
+    }
+
+    public void writeStrongBinder(IBinder val) {
+        ensure(BINDER_SIZE);
+        Arrays.fill(data, pos, pos + BINDER_SIZE, (byte) 0);
+        binders.put(pos, val);
+        advance(BINDER_SIZE);
+    }
 
     // Read methods
     public IBinder readStrongBinder() {
-        Object o = queue.poll();
-        return (o instanceof IBinder) ? (IBinder) o : new Binder();
+        IBinder b = binders.get(pos);
+        pos += BINDER_SIZE;
+        return b != null ? b : new Binder();
     }
+
     public int readInt() {
-        Object o = queue.poll();
-        return (o instanceof Integer) ? (Integer) o : 0;
+        if (pos + 4 > size) {
+            pos = size;
+            return 0;
+        }
+        int v = 0;
+        for (int i = 0; i < 4; i++) v |= (data[pos + i] & 0xFF) << (8 * i);
+        pos += 4;
+        return v;
     }
+
     public long readLong() {
-        Object o = queue.poll();
-        return (o instanceof Long) ? (Long) o : 0L;
+        if (pos + 8 > size) {
+            pos = size;
+            return 0L;
+        }
+        long v = 0;
+        for (int i = 0; i < 8; i++) v |= (data[pos + i] & 0xFFL) << (8 * i);
+        pos += 8;
+        return v;
+    }
+
+    public byte[] createByteArray() {
+        int length = readInt();
+        if (length < 0 || length > size - pos) return null;
+        byte[] out = Arrays.copyOfRange(data, pos, pos + length);
+        pos += (length + 3) & ~3;
+        return out;
+    }
+
+    public void readByteArray(byte[] val) {
+        byte[] in = createByteArray();
+        if (in == null || in.length != val.length) throw new RuntimeException("bad array lengths");
+        System.arraycopy(in, 0, val, 0, val.length);
+    }
+
+    public void appendFrom(Parcel parcel, int offset, int length) {
+        length = Math.max(0, Math.min(length, parcel.size - offset));
+        ensure(length);
+        System.arraycopy(parcel.data, offset, data, pos, length);
+        for (Map.Entry<Integer, IBinder> e : parcel.binders.entrySet()) {
+            int at = e.getKey();
+            if (at >= offset && at + BINDER_SIZE <= offset + length) binders.put(pos + at - offset, e.getValue());
+        }
+        advance(length);
     }
 
     // Other stubs
@@ -54,9 +161,4 @@ public class Parcel {
     public <T> T readTypedObject(Parcelable.Creator<T> c) { return null; }
     public void writeTypedObject(Parcelable val, int parcelableFlags) {}
     public void enforceInterface(String interfaceName) {}
-    public byte[] createByteArray() { return new byte[0]; }
-    public void readByteArray(byte[] val) {}
-    public void setDataPosition(int pos) {}
-    public int dataPosition() { return 0; }
-    public void appendFrom(Parcel parcel, int offset, int length) {}
 }
@@ -0,0 +1,66 @@
+package cleveres.tricky.cleverestech
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+class CacheBudgetTest {
+    // a private budget, so the caches registered with the global one are left alone
+    private val budget = CacheBudget(8L * 1024 * 1024)
+
+    @Before
+    fun setUp() {
+        Logger.setImpl(object : Logger.LogImpl {
+            override fun d(tag: String, msg: String) { println("D/$tag: $msg") }
+            override fun e(tag: String, msg: String) { println("E/$tag: $msg") }
+            override fun e(tag: String, msg: String, t: Throwable?) { println("E/$tag: $msg"); t?.printStackTrace() }
+            override fun i(tag: String, msg: String) { println("I/$tag: $msg") }
+        })
+    }
+
+    private fun filled(n: Int) = KeyCache<Int, Int>(1000).apply { for (i in 0 until n) this[i] = i }
+
+    private fun member(name: String, cache: KeyCache<Int, Int>) =
+        CacheBudget.EntryCountMember(name, 1024, cache::stats, cache::trimTo)
+
+    @Test
+    fun testTrimToKeepsRecentEntries() {
+        val cache = filled(10)
+        cache[0]
+        cache.trimTo(3)
+        assertEquals(3, cache.size)
+        assertEquals(0, cache[0])
+        assertEquals(9, cache[9])
+    }
+
+    @Test
+    fun testBudgetFollowsHitsPerByte() {
+        val hot = filled(100)
+        val cold = filled(100)
+        budget.register(member("hot", hot))
+        budget.register(member("cold", cold))
+        repeat(5) { round ->
+            for (i in 0 until 100) hot[i]
+            if (round == 0) cold[0]
+            budget.setBudget(100 * 1024)
+        }
+        val usage = budget.usage().associateBy { it.name }
+        assertTrue(budget.usedBytes <= 100 * 1024)
+        assertTrue(usage.getValue("hot").allowanceBytes > usage.getValue("cold").allowanceBytes)
+        assertTrue(hot.size > cold.size)
+        // the floor keeps the cold cache from being emptied
+        assertTrue(cold.size >= 100 / (4 * 2))
+    }
+
+    @Test
+    fun testIdleCachesSplitEvenly() {
+        val a = filled(50)
+        val b = filled(50)
+        budget.register(member("a", a))
+        budget.register(member("b", b))
+        budget.setBudget(40 * 1024)
+        assertEquals(20, a.size)
+        assertEquals(20, b.size)
+    }
+}
@@ -0,0 +1,69 @@
+package cleveres.tricky.cleverestech
+
+import org.junit.Ignore
+import org.junit.Test
+import java.util.Collections
+import java.util.LinkedHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ThreadLocalRandom
+import kotlin.concurrent.thread
+
+/**
+ * Contention benchmark of [KeyCache] against the previous synchronized LinkedHashMap cache.
+ * Every thread does 90% reads and 10% writes over a key space twice the capacity.
+ * It only prints timings, so it is ignored in regular test runs; remove the annotation to run it.
+ */
+class KeyCacheBenchmark {
+    private class SynchronizedLruCache<K, V>(private val maxEntries: Int) {
+        private val map = Collections.synchronizedMap(object : LinkedHashMap<K, V>(maxEntries, 0.75f, true) {
+            override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, V>?): Boolean {
+                return size > maxEntries
+            }
+        })
+
+        operator fun get(key: K): V? = map[key]
+        operator fun set(key: K, value: V) {
+            map[key] = value
+        }
+    }
+
+    private fun run(threads: Int, opsPerThread: Int, get: (Int) -> Any?, set: (Int) -> Unit): Double {
+        val start = CountDownLatch(1)
+        val workers = (0 until threads).map {
+            thread {
+                start.await()
+                val random = ThreadLocalRandom.current()
+                repeat(opsPerThread) {
+                    val key = random.nextInt(CAPACITY * 2)
+                    if (random.nextInt(10) == 0) set(key) else get(key)
+                }
+            }
+        }
+        val t0 = System.nanoTime()
+        start.countDown()
+        workers.forEach { it.join() }
+        return (System.nanoTime() - t0) / 1_000_000.0
+    }
+
+    @Test
+    @Ignore("benchmark, prints timings only")
+    fun benchmarkContention() {
+        val threads = maxOf(4, Runtime.getRuntime().availableProcessors())
+        val ops = 200_000
+        val baseline = SynchronizedLruCache<Int, Int>(CAPACITY)
+        val cache = KeyCache<Int, Int>(CAPACITY)
+        // warm up both before measuring
+        run(threads, ops / 10, { baseline[it] }, { baseline[it] = it })
+        run(threads, ops / 10, { cache[it] }, { cache[it] = it })
+
+        val baselineMs = run(threads, ops, { baseline[it] }, { baseline[it] = it })
+        val cacheMs = run(threads, ops, { cache[it] }, { cache[it] = it })
+        println("Synchronized LRU ($threads threads x $ops ops): $baselineMs ms")
+        println("KeyCache         ($threads threads x $ops ops): $cacheMs ms")
+        println("KeyCache stats: ${cache.stats()}")
+    }
+
+    companion object {
+        private const val CAPACITY = 1000
+    }
+}
@@ -2,7 +2,9 @@ package cleveres.tricky.cleverestech
 
 import org.junit.Assert.assertEquals
 import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
 import org.junit.Test
+import java.util.concurrent.TimeUnit
 
 class KeyCacheTest {
     @Test
@@ -53,4 +55,95 @@ class KeyCacheTest {
         assertEquals("updated_a", cache["1"])
         assertEquals("c", cache["3"])
     }
+
+    @Test
+    fun testTtlExpiry() {
+        var now = 0L
+        val cache = KeyCache<String, String>(10, ttlMillis = 1000, ticker = { now })
+        cache["1"] = "a"
+        now = TimeUnit.MILLISECONDS.toNanos(500)
+        assertEquals("a", cache["1"])
+        now = TimeUnit.MILLISECONDS.toNanos(1500)
+        assertNull(cache["1"])
+        assertTrue(cache.values().isEmpty())
+    }
+
+    @Test
+    fun testWeigher() {
+        val cache = KeyCache<String, String>(10, weigher = { _, v -> v.length })
+        cache["1"] = "aaaa"
+        cache["2"] = "bbbb"
+        cache["3"] = "cccc"
+        // 12 > 10, the least recently used entry goes
+        assertNull(cache["1"])
+        assertEquals(8L, cache.stats().weight)
+    }
+
+    @Test
+    fun testStats() {
+        val cache = KeyCache<String, String>(1)
+        cache["1"] = "a"
+        cache["1"]
+        cache["2"]
+        cache["2"] = "b"
+        val stats = cache.stats()
+        assertEquals(1L, stats.hits)
+        assertEquals(1L, stats.misses)
+        assertEquals(1L, stats.evictions)
+        assertEquals(1, stats.size)
+    }
+
+    @Test
+    fun testSnapshotSurvivesMutation() {
+        val cache = KeyCache<Int, Int>(100)
+        for (i in 0 until 50) cache[i] = i
+        val snapshot = cache.values()
+        for (i in 50 until 100) cache[i] = i
+        cache.clear()
+        assertEquals(50, snapshot.size)
+        assertEquals(0, cache.size)
+    }
+
+    @Test
+    fun testRemovalListener() {
+        val removed = mutableListOf<String>()
+        val cache = KeyCache<String, String>(2, onRemoval = { k, _ -> removed.add(k) })
+        cache["1"] = "a"
+        cache["2"] = "b"
+        cache["1"] = "a2"
+        cache["3"] = "c"
+        cache.remove("1")
+        assertEquals(listOf("1", "2", "1"), removed)
+    }
+
+    @Test
+    fun testRemovedEntriesDoNotBlockEviction() {
+        val cache = KeyCache<Int, Int>(4)
+        // churn well below capacity leaves only dead nodes behind in the clock ring
+        repeat(1000) {
+            cache[it] = it
+            cache.remove(it)
+        }
+        for (i in 0 until 10) cache[i] = i
+        assertEquals(4, cache.size)
+        assertEquals(9, cache[9])
+        assertEquals(6L, cache.stats().evictions)
+    }
+
+    @Test
+    fun testReferencedEntriesGetSecondChance() {
+        val cache = KeyCache<Int, Int>(3)
+        cache[1] = 1
+        cache[2] = 2
+        cache[3] = 3
+        cache[1]
+        cache[3]
+        cache[4] = 4
+        assertNull(cache[2])
+        cache[5] = 5
+        // 1 spent its second chance on the previous pass, 3 spends its own now
+        assertNull(cache[1])
+        assertEquals(3, cache[3])
+        assertEquals(4, cache[4])
+    }
 }
@@ -0,0 +1,152 @@
+package cleveres.tricky.cleverestech
+
+import android.os.Parcel
+import android.system.keystore2.Domain
+import cleveres.tricky.cleverestech.keystore.BlobStore
+import cleveres.tricky.cleverestech.keystore.KeyEntryReplyRewriter
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class KeyEntryReplyCacheTest {
+    private var nextUid = 10_000
+
+    // a fresh uid per key, the cache is process wide
+    private fun key() = KeyEntryReplyCache.Key(nextUid++, 0, -1, "alias")
+
+    private class Reply(val parcel: Parcel, val fields: KeyEntryReplyRewriter.Fields)
+
+    private fun sizeFrom(p: Parcel, sizePos: Int) {
+        val end = p.dataPosition()
+        p.setDataPosition(sizePos)
+        p.writeInt(end - sizePos)
+        p.setDataPosition(end)
+    }
+
+    // a KeyEntryResponse for key id [keyId] with no authorizations, [value] as the leaf
+    private fun reply(value: Int, chain: ByteArray?, keyId: Long): Reply {
+        val p = Parcel.obtain()
+        p.writeInt(1)
+        val responsePos = p.dataPosition()
+        p.writeInt(0)
+        p.writeStrongBinder(null)
+        p.writeInt(1)
+        val metadataPos = p.dataPosition()
+        p.writeInt(0)
+        // key, as KeyDescriptor { domain, nspace } with the alias and blob left out
+        p.writeInt(1)
+        p.writeInt(16)
+        p.writeInt(Domain.KEY_ID)
+        p.writeLong(keyId)
+        p.writeInt(1) // keySecurityLevel
+        p.writeInt(0) // authorizations
+        p.writeByteArray(byteArrayOf(value.toByte()))
+        p.writeByteArray(chain)
+        sizeFrom(p, metadataPos)
+        sizeFrom(p, responsePos)
+        p.setDataPosition(0)
+        return Reply(p, KeyEntryReplyRewriter.locate(p)!!)
+    }
+
+    // the key id of a test key is its uid, which is fresh per key
+    private fun put(key: KeyEntryReplyCache.Key, value: Int, chain: ByteArray? = byteArrayOf(1, 2, 3)) {
+        val r = reply(value, chain, key.uid.toLong())
+        KeyEntryReplyCache.put(key, r.parcel, r.fields, r.fields.certificate, r.fields.certificateChain)
+    }
+
+    private fun leafOf(p: Parcel): Int {
+        p.setDataPosition(0)
+        return KeyEntryReplyRewriter.locate(p)!!.certificate[0].toInt()
+    }
+
+    @Test
+    fun testBegunReplyIsServed() {
+        val key = key()
+        KeyEntryReplyCache.begin(key)
+        put(key, 7)
+        val cached = KeyEntryReplyCache.get(key)
+        assertNotNull(cached)
+        assertEquals(7, leafOf(cached!!))
+    }
+
+    @Test
+    fun testChainIsSharedBetweenEntries() {
+        val first = key()
+        val second = key()
+        val chain = ByteArray(100) { (it * 7 + 13).toByte() }
+        val unique = BlobStore.CHAINS.uniqueBytes
+        KeyEntryReplyCache.begin(first)
+        put(first, 1, chain.clone())
+        KeyEntryReplyCache.begin(second)
+        put(second, 2, chain.clone())
+        assertEquals(unique + chain.size, BlobStore.CHAINS.uniqueBytes)
+
+        val a = KeyEntryReplyCache.get(first)!!
+        val b = KeyEntryReplyCache.get(second)!!
+        assertEquals(1, leafOf(a))
+        assertEquals(2, leafOf(b))
+        a.setDataPosition(0)
+        assertArrayEquals(chain, KeyEntryReplyRewriter.locate(a)!!.certificateChain)
+
+        KeyEntryReplyCache.invalidate(first)
+        KeyEntryReplyCache.invalidate(second)
+        assertEquals(unique, BlobStore.CHAINS.uniqueBytes)
+    }
+
+    @Test
+    fun testAliasAndKeyIdShareOneEntry() {
+        val byAlias = key()
+        val byId = KeyEntryReplyCache.Key(byAlias.uid, Domain.KEY_ID, byAlias.uid.toLong(), null)
+        KeyEntryReplyCache.begin(byAlias)
+        put(byAlias, 7)
+        assertEquals(7, leafOf(KeyEntryReplyCache.get(byId)!!))
+
+        // deleting by id also drops what the alias lookup would serve
+        KeyEntryReplyCache.invalidate(byId)
+        assertNull(KeyEntryReplyCache.get(byAlias))
+    }
+
+    @Test
+    fun testReplyWithoutKeyIdIsDropped() {
+        val key = key()
+        KeyEntryReplyCache.begin(key)
+        val r = reply(7, null, -1)
+        // without a key id there is nothing to share the entry under
+        val fields = r.fields
+        KeyEntryReplyCache.put(key, r.parcel, fields, fields.certificate, null)
+        assertNull(KeyEntryReplyCache.get(key))
+    }
+
+    @Test
+    fun testReplyWithoutBeginIsDropped() {
+        val key = key()
+        put(key, 7)
+        assertNull(KeyEntryReplyCache.get(key))
+    }
+
+    @Test
+    fun testReplyRacingDeleteIsDropped() {
+        val key = key()
+        KeyEntryReplyCache.begin(key)
+        // deleteKey lands while keystore2 is still answering getKeyEntry
+        KeyEntryReplyCache.invalidate(key)
+        put(key, 7)
+        assertNull(KeyEntryReplyCache.get(key))
+
+        // the next round trip is cached again
+        KeyEntryReplyCache.begin(key)
+        put(key, 8)
+        assertNotNull(KeyEntryReplyCache.get(key))
+    }
+
+    @Test
+    fun testInvalidateDropsCachedReply() {
+        val key = key()
+        KeyEntryReplyCache.begin(key)
+        put(key, 7)
+        KeyEntryReplyCache.invalidate(key)
+        assertNull(KeyEntryReplyCache.get(key))
+    }
+}
@@ -0,0 +1,156 @@
+package cleveres.tricky.cleverestech
+
+import org.bouncycastle.asn1.x500.X500Name
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder
+import org.bouncycastle.openssl.jcajce.JcaPEMWriter
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.StringWriter
+import java.math.BigInteger
+import java.security.KeyPairGenerator
+import java.security.spec.ECGenParameterSpec
+import java.util.Date
+
+class KeyboxLibraryTest {
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    @Before
+    fun setup() {
+        Logger.setImpl(object : Logger.LogImpl {
+            override fun d(tag: String, msg: String) { println("D/$tag: $msg") }
+            override fun e(tag: String, msg: String) { println("E/$tag: $msg") }
+            override fun e(tag: String, msg: String, t: Throwable?) { println("E/$tag: $msg"); t?.printStackTrace() }
+            override fun i(tag: String, msg: String) { println("I/$tag: $msg") }
+        })
+    }
+
+    @After
+    fun tearDown() {
+        KeyboxLibrary.configure(null, null)
+        KeyboxLibrary.scan()
+        KeyboxLibrary.updateAssignments(null)
+    }
+
+    private fun pem(obj: Any): String {
+        val sw = StringWriter()
+        JcaPEMWriter(sw).use { it.writeObject(obj) }
+        return sw.toString()
+    }
+
+    private fun keyboxXml(notAfter: Date = Date(System.currentTimeMillis() + 86_400_000L)): String {
+        val kpg = KeyPairGenerator.getInstance("EC")
+        kpg.initialize(ECGenParameterSpec("secp256r1"))
+        val kp = kpg.generateKeyPair()
+        val name = X500Name("CN=Test")
+        val holder = JcaX509v3CertificateBuilder(
+            name, BigInteger.ONE, Date(notAfter.time - 2 * 86_400_000L), notAfter, name, kp.public
+        ).build(JcaContentSignerBuilder("SHA256withECDSA").build(kp.private))
+        val cert = JcaX509CertificateConverter().getCertificate(holder)
+        return """<?xml version="1.0"?>
+            <AndroidAttestation>
+            <NumberOfKeyboxes>1</NumberOfKeyboxes>
+            <Keybox DeviceID="test">
+            <Key algorithm="ecdsa">
+            <PrivateKey format="pem">
+            ${pem(kp)}
+            </PrivateKey>
+            <CertificateChain>
+            <NumberOfCertificates>1</NumberOfCertificates>
+            <Certificate format="pem">
+            ${pem(cert)}
+            </Certificate>
+            </CertificateChain>
+            </Key>
+            </Keybox>
+            </AndroidAttestation>"""
+    }
+
+    @Test
+    fun testIndexIsReusedAndKeysDecodeOnDemand() {
+        val dir = tempFolder.newFolder("keyboxes")
+        val index = File(tempFolder.root, "keybox_index")
+        File(dir, "a.xml").writeText(keyboxXml())
+        File(dir, "b.xml").writeText(keyboxXml())
+
+        KeyboxLibrary.configure(dir, index)
+        KeyboxLibrary.scan()
+        assertEquals(2, KeyboxLibrary.filesRead)
+        assertEquals(2, KeyboxLibrary.size)
+        assertNotNull(KeyboxLibrary.get("a.xml", "EC"))
+        assertNull(KeyboxLibrary.get("a.xml", "RSA"))
+
+        // a restart only stats the files
+        KeyboxLibrary.configure(null, null)
+        KeyboxLibrary.scan()
+        assertEquals(0, KeyboxLibrary.size)
+        KeyboxLibrary.configure(dir, index)
+        KeyboxLibrary.scan()
+        assertEquals(0, KeyboxLibrary.filesRead)
+        assertEquals(2, KeyboxLibrary.size)
+        assertNotNull(KeyboxLibrary.get("b.xml", "EC"))
+    }
+
+    @Test
+    fun testKeysDecodeFromIndexedOffset() {
+        val dir = tempFolder.newFolder("keyboxes")
+        val xml = keyboxXml()
+        File(dir, "a.xml").writeText(xml)
+        // a commented out key ahead of the real one throws the byte ranges off
+        File(dir, "b.xml").writeText(
+            keyboxXml().replace("<AndroidAttestation>", "<AndroidAttestation><!-- <Key algorithm=\"rsa\"></Key> -->")
+        )
+        KeyboxLibrary.configure(dir, null)
+        KeyboxLibrary.scan()
+
+        assertEquals(xml.indexOf("<Key ").toLong(), KeyboxLibrary.entries().single { it.file == "a.xml" }.offset)
+        assertNotNull(KeyboxLibrary.get("a.xml", "EC"))
+        // the fingerprint check catches the shift and the whole file is read instead
+        assertNotNull(KeyboxLibrary.get("b.xml", "EC"))
+    }
+
+    @Test
+    fun testRejectedKeysAreReported() {
+        val dir = tempFolder.newFolder("keyboxes")
+        File(dir, "expired.xml").writeText(keyboxXml(Date(System.currentTimeMillis() - 86_400_000L)))
+        KeyboxLibrary.configure(dir, null)
+        KeyboxLibrary.scan()
+
+        assertNull(KeyboxLibrary.get("expired.xml", "EC"))
+        val (file, result) = KeyboxLibrary.rejectedResults().single()
+        assertEquals("expired.xml", file)
+        assertFalse(result.ok())
+
+        KeyboxLibrary.invalidateDecoded()
+        assertTrue(KeyboxLibrary.rejectedResults().isEmpty())
+    }
+
+    @Test
+    fun testDefaultAssignment() {
+        val dir = tempFolder.newFolder("keyboxes")
+        File(dir, "a.xml").writeText(keyboxXml())
+        KeyboxLibrary.configure(dir, null)
+        KeyboxLibrary.scan()
+
+        assertNull(KeyboxLibrary.select(10001))
+        val assignments = tempFolder.newFile("keybox_assignments.txt")
+        assignments.writeText("# default\na.xml\n")
+        KeyboxLibrary.updateAssignments(assignments)
+        assertEquals("a.xml", KeyboxLibrary.select(10001))
+
+        assignments.writeText("missing.xml\n")
+        KeyboxLibrary.updateAssignments(assignments)
+        assertNull(KeyboxLibrary.select(10001))
+    }
+}
@@ -0,0 +1,128 @@
+package cleveres.tricky.cleverestech
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.junit.rules.TemporaryFolder
+import java.io.File
+import java.io.RandomAccessFile
+
+class PersistentKeyStoreTest {
+
+    @get:Rule
+    val tempFolder = TemporaryFolder()
+
+    private val secret = ByteArray(32) { it.toByte() }
+    private lateinit var file: File
+
+    private object StringCodec : PersistentKeyStore.Codec<String> {
+        override fun encode(value: String) = value.toByteArray()
+        override fun decode(bytes: ByteArray) = String(bytes)
+    }
+
+    @Before
+    fun setUp() {
+        Logger.setImpl(object : Logger.LogImpl {
+            override fun d(tag: String, msg: String) { println("D/$tag: $msg") }
+            override fun e(tag: String, msg: String) { println("E/$tag: $msg") }
+            override fun e(tag: String, msg: String, t: Throwable?) { println("E/$tag: $msg"); t?.printStackTrace() }
+            override fun i(tag: String, msg: String) { println("I/$tag: $msg") }
+        })
+        file = File(tempFolder.root, "keys")
+    }
+
+    private fun open(cacheSize: Int = 2) = PersistentKeyStore(file, secret, StringCodec, cacheSize)
+
+    @Test
+    fun testReloadFromDisk() {
+        val store = open()
+        store[PersistentKeyStore.Key(1, "a")] = "alpha"
+        store[PersistentKeyStore.Key(2, "a")] = "beta"
+        store[PersistentKeyStore.Key(1, "a")] = "gamma"
+        store.remove(PersistentKeyStore.Key(2, "a"))
+
+        val reopened = open()
+        assertEquals(1, reopened.size)
+        assertEquals("gamma", reopened[PersistentKeyStore.Key(1, "a")])
+        assertNull(reopened[PersistentKeyStore.Key(2, "a")])
+    }
+
+    @Test
+    fun testEvictedEntriesAreReadBack() {
+        val store = open(cacheSize = 1)
+        for (i in 0 until 10) store[PersistentKeyStore.Key(i, "k$i")] = "v$i"
+        for (i in 0 until 10) assertEquals("v$i", store[PersistentKeyStore.Key(i, "k$i")])
+    }
+
+    @Test
+    fun testEntriesAreEncrypted() {
+        open()[PersistentKeyStore.Key(1, "alias")] = "plaintext-marker"
+        val raw = String(file.readBytes(), Charsets.ISO_8859_1)
+        assertTrue(!raw.contains("plaintext-marker") && !raw.contains("alias"))
+    }
+
+    @Test
+    fun testTornTailIsDropped() {
+        val store = open()
+        store[PersistentKeyStore.Key(1, "a")] = "alpha"
+        store[PersistentKeyStore.Key(1, "b")] = "beta"
+        RandomAccessFile(file, "rw").use { it.setLength(it.length() - 3) }
+
+        val reopened = open()
+        assertEquals("alpha", reopened[PersistentKeyStore.Key(1, "a")])
+        assertNull(reopened[PersistentKeyStore.Key(1, "b")])
+        // appends after recovery are readable again
+        reopened[PersistentKeyStore.Key(1, "c")] = "gamma"
+        assertEquals("gamma", open()[PersistentKeyStore.Key(1, "c")])
+    }
+
+    @Test
+    fun testCorruptFrameIsSkipped() {
+        val store = open()
+        store[PersistentKeyStore.Key(1, "a")] = "alpha"
+        store[PersistentKeyStore.Key(1, "b")] = "beta"
+        store[PersistentKeyStore.Key(1, "c")] = "gamma"
+        val length = file.length()
+        RandomAccessFile(file, "rw").use {
+            // flip a ciphertext byte of the second frame, after its length and IV
+            it.seek(8)
+            val second = 8 + 4 + it.readInt()
+            it.seek(second + 4L + 12 + 2)
+            val b = it.readByte()
+            it.seek(second + 4L + 12 + 2)
+            it.writeByte(b.toInt() xor 0xFF)
+        }
+
+        val reopened = open()
+        assertEquals(length, file.length())
+        assertEquals("alpha", reopened[PersistentKeyStore.Key(1, "a")])
+        assertNull(reopened[PersistentKeyStore.Key(1, "b")])
+        assertEquals("gamma", reopened[PersistentKeyStore.Key(1, "c")])
+    }
+
+    @Test
+    fun testCompactionKeepsLiveEntries() {
+        val store = open()
+        val big = "x".repeat(1000) // stays below the background compaction threshold
+        for (i in 0 until 40) store[PersistentKeyStore.Key(1, "a")] = big + i
+        store[PersistentKeyStore.Key(2, "b")] = "beta"
+        val before = file.length()
+        store.compact()
+
+        assertTrue(file.length() < before)
+        assertEquals(big + 39, store[PersistentKeyStore.Key(1, "a")])
+        val reopened = open()
+        assertEquals(2, reopened.size)
+        assertEquals("beta", reopened[PersistentKeyStore.Key(2, "b")])
+    }
+
+    @Test
+    fun testWrongSecretStartsEmpty() {
+        open()[PersistentKeyStore.Key(1, "a")] = "alpha"
+        val other = PersistentKeyStore(file, ByteArray(32), StringCodec)
+        assertNull(other[PersistentKeyStore.Key(1, "a")])
+    }
+}
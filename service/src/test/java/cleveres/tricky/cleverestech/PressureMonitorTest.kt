@@ -0,0 +1,126 @@
+package cleveres.tricky.cleverestech
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.io.File
+import java.io.IOException
+
+class PressureMonitorTest {
+    private val start = 1_000_000L
+    // private instances, so the global budget, RKP pool and keyboxes are left alone
+    private val budget = CacheBudget(8L * 1024 * 1024)
+    private val depths = ArrayList<Double>()
+    private var drops = 0
+    private val monitor = PressureMonitor(budget, { depths.add(it) }, { drops++ })
+
+    @Before
+    fun setUp() {
+        Logger.setImpl(object : Logger.LogImpl {
+            override fun d(tag: String, msg: String) { println("D/$tag: $msg") }
+            override fun e(tag: String, msg: String) { println("E/$tag: $msg") }
+            override fun e(tag: String, msg: String, t: Throwable?) { println("E/$tag: $msg"); t?.printStackTrace() }
+            override fun i(tag: String, msg: String) { println("I/$tag: $msg") }
+        })
+    }
+
+    private fun filled(n: Int) = KeyCache<Int, Int>(1000).apply { for (i in 0 until n) this[i] = i }
+
+    private fun member(name: String, cache: KeyCache<Int, Int>) =
+        CacheBudget.EntryCountMember(name, 1024, cache::stats, cache::trimTo)
+
+    private fun psi(some: String, full: String): File = File.createTempFile("memory", ".psi").apply {
+        deleteOnExit()
+        writeText(
+            "some avg10=$some avg60=1.00 avg300=0.50 total=123456\n" +
+                "full avg10=$full avg60=0.20 avg300=0.10 total=4567\n"
+        )
+    }
+
+    @Test
+    fun testAverageSourceReadsPsiFormat() {
+        assertEquals(PressureMonitor.Level.NONE, PressureMonitor.AverageSource(psi("2.00", "0.00"), 0).await(0))
+        assertEquals(PressureMonitor.Level.SOME, PressureMonitor.AverageSource(psi("22.50", "1.00"), 0).await(0))
+        assertEquals(PressureMonitor.Level.FULL, PressureMonitor.AverageSource(psi("40.00", "9.10"), 0).await(0))
+    }
+
+    @Test
+    fun testStallShedsInPriorityOrder() {
+        val replies = filled(10)
+        val keys = filled(10)
+        budget.register(member("key_entry_replies", replies))
+        budget.register(member("generated_keys", keys))
+        budget.setBudget(32 * 1024)
+        for (i in 0 until 10) keys[i]
+
+        monitor.onPressure(PressureMonitor.Level.SOME, start)
+
+        assertEquals(0.5, monitor.scale, 0.0)
+        assertEquals(listOf(0.5), depths)
+        assertEquals(0, drops)
+        assertEquals(16L * 1024, budget.effectiveBudget)
+        assertTrue(budget.usedBytes <= budget.effectiveBudget)
+        assertEquals(10, keys.size)
+        assertTrue(replies.size < 10)
+    }
+
+    @Test
+    fun testBudgetGrowsBackGradually() {
+        monitor.onPressure(PressureMonitor.Level.FULL, start)
+        assertEquals(0.125, monitor.scale, 0.0)
+        assertEquals(1, drops)
+        // a lighter stall does not raise a lower scale
+        monitor.onPressure(PressureMonitor.Level.SOME, start + 1000)
+        assertEquals(0.125, monitor.scale, 0.0)
+
+        val quietFrom = start + 1000
+        monitor.onQuiet(quietFrom + PressureMonitor.QUIET_MS - 1)
+        assertEquals(0.125, monitor.scale, 0.0)
+        monitor.onQuiet(quietFrom + PressureMonitor.QUIET_MS)
+        assertEquals(0.25, monitor.scale, 0.0)
+        // one step per quiet period
+        monitor.onQuiet(quietFrom + PressureMonitor.QUIET_MS + 10_000)
+        assertEquals(0.25, monitor.scale, 0.0)
+
+        var now = quietFrom + PressureMonitor.QUIET_MS
+        repeat(10) {
+            now += PressureMonitor.QUIET_MS
+            monitor.onQuiet(now)
+        }
+        assertEquals(1.0, monitor.scale, 0.0)
+        assertEquals(budget.budgetBytes, budget.effectiveBudget)
+    }
+
+    @Test
+    fun testDecodedKeysDroppedOncePerFullStall() {
+        // a sustained stall fires once per window
+        repeat(5) { monitor.onPressure(PressureMonitor.Level.FULL, start + it * 1000L) }
+        assertEquals(1, drops)
+        monitor.onPressure(PressureMonitor.Level.SOME, start + 5000)
+        monitor.onPressure(PressureMonitor.Level.FULL, start + 6000)
+        assertEquals(2, drops)
+        monitor.onQuiet(start + 16_000)
+        monitor.onPressure(PressureMonitor.Level.FULL, start + 17_000)
+        assertEquals(3, drops)
+    }
+
+    @Test
+    fun testRunFollowsSyntheticTriggers() {
+        val events = ArrayDeque(
+            listOf(PressureMonitor.Level.SOME, PressureMonitor.Level.NONE, PressureMonitor.Level.NONE)
+        )
+        val source = object : PressureMonitor.Source {
+            override fun await(timeoutMs: Long): PressureMonitor.Level =
+                events.removeFirstOrNull() ?: throw IOException("trigger closed")
+
+            override fun close() {}
+        }
+        val times = ArrayDeque(listOf(start, start + 10_000, start + PressureMonitor.QUIET_MS))
+
+        monitor.run(source) { times.removeFirst() }
+
+        assertTrue(events.isEmpty())
+        assertEquals(0.625, monitor.scale, 0.0)
+    }
+}
@@ -0,0 +1,103 @@
+package cleveres.tricky.cleverestech
+
+import cleveres.tricky.cleverestech.keystore.CertHack
+import cleveres.tricky.cleverestech.rkp.CoseValidator
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.security.KeyPair
+import java.security.KeyPairGenerator
+import java.security.spec.ECGenParameterSpec
+
+class RemoteKeyPoolTest {
+    private val pairs = HashMap<String, KeyPair>()
+    private var decodes = 0
+
+    @Before
+    fun setup() {
+        Logger.setImpl(object : Logger.LogImpl {
+            override fun d(tag: String, msg: String) { println("D/$tag: $msg") }
+            override fun e(tag: String, msg: String) { println("E/$tag: $msg") }
+            override fun e(tag: String, msg: String, t: Throwable?) { println("E/$tag: $msg"); t?.printStackTrace() }
+            override fun i(tag: String, msg: String) { println("I/$tag: $msg") }
+        })
+        val kpg = KeyPairGenerator.getInstance("EC")
+        kpg.initialize(ECGenParameterSpec("secp256r1"))
+        for (i in 0 until 4) pairs["pem$i"] = kpg.generateKeyPair()
+    }
+
+    private fun decoder(pem: String): KeyPair? {
+        decodes++
+        return pairs[pem]
+    }
+
+    @Test
+    fun testLazyDecodeAndLeastUsedSelection() {
+        val records = (0 until 4).map { RemoteKeyPool.Record(it, "pem$it", null, null) }
+        val pool = RemoteKeyPool(records, ::decoder, decodedCacheSize = 4)
+        assertEquals(0, decodes)
+
+        val seen = (0 until 8).map { pool.next()!!.keyPair }
+        // every key is handed out twice before any gets a third turn
+        for (i in 0 until 4) assertEquals(2, seen.count { it === pairs["pem$i"] })
+        assertEquals(4, decodes)
+    }
+
+    @Test
+    fun testRotationLargerThanDecodedCache() {
+        val kpg = KeyPairGenerator.getInstance("EC")
+        kpg.initialize(ECGenParameterSpec("secp256r1"))
+        for (i in 4 until 12) pairs["pem$i"] = kpg.generateKeyPair()
+        val records = (0 until 12).map { RemoteKeyPool.Record(it, "pem$it", null, null) }
+        val pool = RemoteKeyPool(records, ::decoder, decodedCacheSize = 4)
+
+        val seen = (0 until 120).map { pool.next()!!.keyPair }
+        // one decode per pass over the rotation rather than one per call
+        assertEquals(4 + (120 - 4) / 4, decodes)
+        for (i in 0 until 12) assertTrue(seen.count { it === pairs["pem$i"] } in 8..12)
+    }
+
+    @Test
+    fun testUndecodableKeysAreDropped() {
+        val records = listOf(
+            RemoteKeyPool.Record(0, "missing", null, null),
+            RemoteKeyPool.Record(1, "pem1", null, null)
+        )
+        val pool = RemoteKeyPool(records, ::decoder)
+        assertSame(pairs["pem1"], pool.next()!!.keyPair)
+        assertEquals(1, pool.size)
+    }
+
+    @Test
+    fun testLookupByPublicKey() {
+        val deviceInfo = byteArrayOf(0xa0.toByte())
+        val maced = CertHack.generateMacedPublicKey(pairs["pem0"], ByteArray(32))
+        val records = listOf(
+            RemoteKeyPool.Record(0, "pem0", maced, deviceInfo),
+            RemoteKeyPool.Record(1, "pem1", null, null)
+        )
+        val pool = RemoteKeyPool(records, ::decoder)
+
+        // indexed from PublicKeyCose without decoding the PEM
+        val (x0, y0) = CoseValidator.publicPoint(pairs["pem0"]!!.public)!!
+        assertSame(deviceInfo, pool.findByPublicKey(x0, y0)?.deviceInfo)
+        assertEquals(0, decodes)
+
+        // the second key is only indexed once decoded
+        val (x1, y1) = CoseValidator.publicPoint(pairs["pem1"]!!.public)!!
+        assertNull(pool.findByPublicKey(x1, y1))
+        pool.next()
+        pool.next()
+        assertEquals(1, pool.findByPublicKey(x1, y1)?.index)
+    }
+
+    @Test
+    fun testMismatchedPublicKeyCoseIsDropped() {
+        val maced = CertHack.generateMacedPublicKey(pairs["pem1"], ByteArray(32))
+        val pool = RemoteKeyPool(listOf(RemoteKeyPool.Record(0, "pem0", maced, null)), ::decoder)
+        assertNull(pool.next()!!.macedPublicKey)
+    }
+}
@@ -0,0 +1,74 @@
+package cleveres.tricky.cleverestech
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class UidPartitionedCacheTest {
+    @Test
+    fun testPerUidQuotaDoesNotEvictOtherUids() {
+        val cache = UidPartitionedCache<String, String>(2, 100)
+        cache[1, "a"] = "1a"
+        for (i in 0 until 50) cache[2, "k$i"] = "2-$i"
+
+        assertEquals("1a", cache[1, "a"])
+        assertNull(cache[2, "k0"])
+        assertEquals("2-49", cache[2, "k49"])
+        assertEquals(3, cache.size)
+    }
+
+    @Test
+    fun testGlobalCapTrimsLargestShard() {
+        val cache = UidPartitionedCache<String, String>(3, 4)
+        cache[1, "a"] = "1a"
+        cache[2, "a"] = "2a"
+        cache[2, "b"] = "2b"
+        cache[2, "c"] = "2c"
+        cache[3, "a"] = "3a"
+
+        assertEquals(4, cache.size)
+        assertEquals("1a", cache[1, "a"])
+        assertEquals("3a", cache[3, "a"])
+        assertNull(cache[2, "a"])
+    }
+
+    @Test
+    fun testSameKeyDifferentUids() {
+        val cache = UidPartitionedCache<Int, String>(2, 10)
+        cache[1, 0] = "x"
+        cache[2, 0] = "y"
+        assertEquals("x", cache[1, 0])
+        assertEquals("y", cache[2, 0])
+        cache.remove(1, 0)
+        assertNull(cache[1, 0])
+        assertEquals(listOf("y"), cache.values())
+    }
+
+    @Test
+    fun testEmptyShardsAreDropped() {
+        val cache = UidPartitionedCache<String, String>(2, 3)
+        for (uid in 0 until 10) cache[uid, "a"] = "v$uid"
+        assertEquals(3, cache.size)
+        assertEquals(3, cache.shardCount)
+
+        cache.remove(9, "a")
+        assertEquals(2, cache.size)
+        assertEquals(2, cache.shardCount)
+        cache.trimTo(0)
+        assertEquals(0, cache.size)
+        assertEquals(0, cache.shardCount)
+    }
+
+    @Test
+    fun testSizeCountsReplacementsOnce() {
+        val removed = ArrayList<String>()
+        val cache = UidPartitionedCache<String, String>(4, 10) { _, v -> removed.add(v) }
+        cache[1, "a"] = "first"
+        cache[1, "a"] = "second"
+        assertEquals(1, cache.size)
+        assertEquals(listOf("first"), removed)
+        cache.clear()
+        assertEquals(0, cache.size)
+        assertEquals(0, cache.shardCount)
+    }
+}
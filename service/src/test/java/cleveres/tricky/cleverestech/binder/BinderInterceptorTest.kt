@@ -48,9 +48,11 @@ class BinderInterceptorTest {
 
         // val sz = data.readLong().toInt()
         data.pushLong(10L) // sz = 10
+        data.pushRaw(ByteArray(10))
 
         // val sz2 = data.readLong().toInt()
         data.pushLong(0L) // sz2 = 0
+        data.setDataPosition(0)
 
         val reply = Parcel.obtain()
 
@@ -94,7 +96,10 @@ class BinderInterceptorTest {
         data.pushInt(100)
         data.pushInt(0)
         data.pushLong(10L) // sz = 10
+        data.pushRaw(ByteArray(10))
         data.pushLong(5L)  // sz2 = 5 (non-zero)
+        data.pushRaw(ByteArray(5))
+        data.setDataPosition(0)
 
         val reply = Parcel.obtain()
 
@@ -106,6 +111,138 @@ class BinderInterceptorTest {
         assertEquals(2, Parcel.obtainCount.get())
     }
 
+    private fun postTransactData(replySize: Long): Parcel {
+        val data = Parcel.obtain()
+        data.pushBinder(Binder())
+        data.pushInt(0)
+        data.pushInt(0)
+        data.pushInt(1000)
+        data.pushInt(100)
+        data.pushInt(0)
+        data.pushLong(10L)
+        data.pushRaw(ByteArray(10))
+        data.pushLong(replySize)
+        data.pushRaw(ByteArray(replySize.toInt()))
+        data.setDataPosition(0)
+        return data
+    }
+
+    @Test
+    fun testOnTransactPostTransact_NeedNone_AllocatesNothing() {
+        var called = false
+        val interceptor = object : BinderInterceptor() {
+            override fun postTransactNeeds(code: Int): Int = NEED_NONE
+            override fun onPostTransact(
+                target: IBinder,
+                code: Int,
+                flags: Int,
+                callingUid: Int,
+                callingPid: Int,
+                data: ParcelView,
+                reply: ParcelView?,
+                resultCode: Int
+            ): Result {
+                called = true
+                return BinderInterceptor.Continue
+            }
+        }
+
+        val data = postTransactData(5L)
+        val reply = Parcel.obtain()
+
+        Parcel.resetStats()
+        interceptor.transact(2, data, reply, 0)
+
+        assertEquals(0, Parcel.obtainCount.get())
+        assertEquals(false, called)
+    }
+
+    @Test
+    fun testOnTransactPostTransact_UnreadViews_AllocatesNothing() {
+        val interceptor = object : BinderInterceptor() {
+            override fun onPostTransact(
+                target: IBinder,
+                code: Int,
+                flags: Int,
+                callingUid: Int,
+                callingPid: Int,
+                data: ParcelView,
+                reply: ParcelView?,
+                resultCode: Int
+            ): Result {
+                assertEquals(10, data.size)
+                assertEquals(5, reply?.size)
+                return BinderInterceptor.Skip
+            }
+        }
+
+        val data = postTransactData(5L)
+        val reply = Parcel.obtain()
+
+        Parcel.resetStats()
+        interceptor.transact(2, data, reply, 0)
+
+        assertEquals(0, Parcel.obtainCount.get())
+    }
+
+    @Test
+    fun testOnTransactPostTransact_ReplyOnly_MaterializesOnce() {
+        val interceptor = object : BinderInterceptor() {
+            override fun postTransactNeeds(code: Int): Int = NEED_REPLY
+            override fun onPostTransact(
+                target: IBinder,
+                code: Int,
+                flags: Int,
+                callingUid: Int,
+                callingPid: Int,
+                data: ParcelView,
+                reply: ParcelView?,
+                resultCode: Int
+            ): Result {
+                assertEquals(0, data.size)
+                val first = reply!!.get()
+                val second = reply.get()
+                assertEquals(true, first === second)
+                return BinderInterceptor.Skip
+            }
+        }
+
+        val data = postTransactData(5L)
+        val reply = Parcel.obtain()
+
+        Parcel.resetStats()
+        interceptor.transact(2, data, reply, 0)
+
+        assertEquals(1, Parcel.obtainCount.get())
+    }
+
+    @Test
+    fun testOnTransactPostTransact_ViewReturnedAsOverride_IsWrittenBeforeRecycle() {
+        val interceptor = object : BinderInterceptor() {
+            override fun postTransactNeeds(code: Int): Int = NEED_REPLY
+            override fun onPostTransact(
+                target: IBinder,
+                code: Int,
+                flags: Int,
+                callingUid: Int,
+                callingPid: Int,
+                data: ParcelView,
+                reply: ParcelView?,
+                resultCode: Int
+            ): Result = OverrideReply(0, reply!!.get())
+        }
+
+        val data = postTransactData(5L)
+        val reply = Parcel.obtain()
+        interceptor.transact(2, data, reply, 0)
+
+        reply.setDataPosition(0)
+        assertEquals(3, reply.readInt())
+        assertEquals(0, reply.readInt())
+        assertEquals(5L, reply.readLong())
+        assertEquals(4 + 4 + 8 + 5, reply.dataSize())
+    }
+
     @Test
     fun testOnInterceptorReplaced() {
         val replaced = java.util.concurrent.atomic.AtomicBoolean(false)
@@ -0,0 +1,68 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BlobStoreTest {
+
+    @Test
+    public void testEqualContentIsShared() {
+        BlobStore store = new BlobStore();
+        byte[] first = {1, 2, 3, 4};
+        byte[] second = {1, 2, 3, 4};
+        assertSame(first, store.intern(first));
+        assertSame(first, store.intern(second));
+        assertEquals(1, store.size());
+        assertEquals(4, store.getUniqueBytes());
+        assertEquals(8, store.getReferencedBytes());
+    }
+
+    @Test
+    public void testLastReleaseForgetsBlob() {
+        BlobStore store = new BlobStore();
+        byte[] shared = store.intern(new byte[]{5, 6, 7});
+        store.intern(new byte[]{5, 6, 7});
+        // a copy that never became canonical does not count
+        store.release(new byte[]{5, 6, 7});
+        assertEquals(1, store.size());
+        store.release(shared);
+        assertEquals(1, store.size());
+        store.release(shared);
+        assertEquals(0, store.size());
+        assertEquals(0, store.getUniqueBytes());
+        assertEquals(0, store.getReferencedBytes());
+        assertNotSame(shared, store.intern(new byte[]{5, 6, 7}));
+    }
+
+    @Test
+    public void testKeyboxSuffixIsWrittenWithoutCopy() throws Throwable {
+        String xml = "<?xml version=\"1.0\"?>\n<AndroidAttestation>\n<NumberOfKeyboxes>1</NumberOfKeyboxes>\n"
+                + "<Keybox DeviceID=\"test\">\n<Key algorithm=\"ecdsa\">\n<PrivateKey format=\"pem\">\n"
+                + CertHackTest.EC_KEY + "\n</PrivateKey>\n<CertificateChain>\n<NumberOfCertificates>2</NumberOfCertificates>\n"
+                + "<Certificate format=\"pem\">\n" + CertHackTest.TEST_CERT + "\n</Certificate>\n"
+                + "<Certificate format=\"pem\">\n" + CertHackTest.TEST_CERT + "\n</Certificate>\n"
+                + "</CertificateChain>\n</Key>\n</Keybox>\n</AndroidAttestation>";
+        Map<String, CertHack.KeyBox> loaded = KeyboxLoader.load(new StringReader(xml));
+        List<Certificate> keybox = loaded.get("EC").certificates();
+
+        List<Certificate> first = new ArrayList<>(keybox);
+        first.add(0, keybox.get(0));
+        List<Certificate> second = new ArrayList<>(keybox);
+        second.add(0, keybox.get(1));
+        byte[] a = Utils.encodeCertificateChainTail(first.toArray(new Certificate[0]));
+        byte[] b = Utils.encodeCertificateChainTail(second.toArray(new Certificate[0]));
+        assertSame(a, b);
+        BlobStore store = new BlobStore();
+        assertSame(a, store.intern(a));
+        assertSame(a, store.intern(b.clone()));
+    }
+}
@@ -0,0 +1,87 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import org.bouncycastle.util.io.pem.PemReader;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateFactory;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+public class EncodedCertTest {
+
+    private static byte[] testDer() throws Exception {
+        try (PemReader reader = new PemReader(new StringReader(CertHackTest.TEST_CERT))) {
+            return reader.readPemObject().getContent();
+        }
+    }
+
+    private static byte[] twice(byte[] der) {
+        byte[] blob = Arrays.copyOf(der, der.length * 2);
+        System.arraycopy(der, 0, blob, der.length, der.length);
+        return blob;
+    }
+
+    @Test
+    public void testSplitAndConcatKeepTheBlob() throws Exception {
+        byte[] der = testDer();
+        byte[] blob = twice(der);
+        List<EncodedCert> certs = EncodedCert.split(blob);
+        assertEquals(2, certs.size());
+        assertArrayEquals(der, certs.get(1).getEncoded());
+        // untouched slices are written back without copying
+        assertSame(blob, EncodedCert.concat(certs));
+        assertArrayEquals(blob, EncodedCert.concat(List.of(certs.get(1), certs.get(0))));
+    }
+
+    @Test
+    public void testFieldsMatchPlatformParser() throws Exception {
+        byte[] der = testDer();
+        X509Certificate platform = (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(der));
+        EncodedCert cert = EncodedCert.split(twice(der)).get(0);
+        assertEquals(platform.getSerialNumber(), cert.getSerialNumber());
+        assertEquals(platform.getNotAfter(), cert.getNotAfter());
+        assertEquals(platform.getPublicKey(), cert.getPublicKey());
+        assertEquals(platform.getPublicKey().getAlgorithm(), cert.publicKeyAlgorithm());
+        assertEquals(platform.getSubjectX500Principal(), cert.getSubjectX500Principal());
+        assertEquals(platform, cert);
+    }
+
+    @Test
+    public void testHashCodeMatchesLibcore() throws Exception {
+        byte[] der = testDer();
+        int expected = 0;
+        for (int i = 0; i < der.length; i++) expected += der[i] * i;
+        assertEquals(expected, EncodedCert.split(twice(der)).get(1).hashCode());
+    }
+
+    @Test
+    public void testEncodedIsSharedAndGetEncodedCopies() throws Exception {
+        byte[] der = testDer();
+        EncodedCert cert = new EncodedCert(der);
+        assertSame(der, cert.encoded());
+        assertNotSame(der, cert.getEncoded());
+        Certificate[] chain = Utils.getCertificateChain(der, twice(der));
+        assertEquals(3, chain.length);
+        assertSame(der, Utils.encodeCertificate(chain[0]));
+    }
+
+    @Test
+    public void testTruncatedBlobRejected() throws Exception {
+        byte[] der = testDer();
+        assertThrows(CertificateParsingException.class,
+                () -> EncodedCert.split(Arrays.copyOf(der, der.length - 1)));
+        assertEquals(1, Utils.getCertificateChain(der, new byte[]{0x30, 0x05}).length);
+    }
+}
@@ -0,0 +1,203 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import android.os.Binder;
+import android.os.IBinder;
+import android.os.Parcel;
+import android.system.keystore2.Domain;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+public class KeyEntryReplyRewriterTest {
+
+    private static final long MODIFICATION_TIME = 0x1122334455667788L;
+    private static final int TRAILER = 0x7EADBEEF;
+
+    private static final class Reply {
+        final Parcel parcel = Parcel.obtain();
+        final IBinder securityLevel = new Binder();
+        int responseSizePos;
+        int metadataSizePos;
+    }
+
+    private static byte[] bytes(int length, int seed) {
+        byte[] b = new byte[length];
+        for (int i = 0; i < length; i++) b[i] = (byte) (seed + i);
+        return b;
+    }
+
+    // patches the size written at sizePos to cover up to the current position
+    private static void closeSize(Parcel p, int sizePos) {
+        int end = p.dataPosition();
+        p.setDataPosition(sizePos);
+        p.writeInt(end - sizePos);
+        p.setDataPosition(end);
+    }
+
+    private static Reply reply(byte[] certificate, byte[] chain) {
+        return reply(certificate, chain, Domain.APP);
+    }
+
+    /** A getKeyEntry reply after the exception header, as keystore2 marshals it. */
+    private static Reply reply(byte[] certificate, byte[] chain, int keyDomain) {
+        Reply r = new Reply();
+        Parcel p = r.parcel;
+        p.writeInt(1);
+        r.responseSizePos = p.dataPosition();
+        p.writeInt(0);
+        p.writeStrongBinder(r.securityLevel);
+        p.writeInt(1);
+        r.metadataSizePos = p.dataPosition();
+        p.writeInt(0);
+        // KeyDescriptor { domain, nspace, alias, blob }
+        p.writeInt(1);
+        int keyPos = p.dataPosition();
+        p.writeInt(0);
+        p.writeInt(keyDomain);
+        p.writeLong(42);
+        p.writeByteArray(bytes(6, 'a'));
+        p.writeByteArray(null);
+        closeSize(p, keyPos);
+        p.writeInt(1); // keySecurityLevel
+        // two Authorizations
+        p.writeInt(2);
+        for (int i = 0; i < 2; i++) {
+            p.writeInt(1);
+            int authPos = p.dataPosition();
+            p.writeInt(0);
+            p.writeInt(1);
+            p.writeInt(0x10000000 | i);
+            p.writeInt(i);
+            closeSize(p, authPos);
+        }
+        p.writeByteArray(certificate);
+        p.writeByteArray(chain);
+        p.writeLong(MODIFICATION_TIME);
+        closeSize(p, r.metadataSizePos);
+        closeSize(p, r.responseSizePos);
+        // anything after the response must survive untouched
+        p.writeInt(TRAILER);
+        p.setDataPosition(0);
+        return r;
+    }
+
+    private static int sizeAt(Parcel p, int pos) {
+        p.setDataPosition(pos);
+        return p.readInt();
+    }
+
+    private void assertSpliced(byte[] certificate, byte[] chain, byte[] newCertificate, byte[] newChain) {
+        Reply r = reply(certificate, chain);
+        int responseSize = sizeAt(r.parcel, r.responseSizePos);
+        int metadataSize = sizeAt(r.parcel, r.metadataSizePos);
+        r.parcel.setDataPosition(0);
+
+        KeyEntryReplyRewriter.Fields f = KeyEntryReplyRewriter.locate(r.parcel);
+        assertNotNull(f);
+        assertArrayEquals(certificate, f.certificate);
+        assertArrayEquals(chain, f.certificateChain);
+
+        Parcel out = KeyEntryReplyRewriter.splice(r.parcel, f, newCertificate, newChain);
+        int delta = out.dataSize() - r.parcel.dataSize();
+        assertEquals(padded(newCertificate) + padded(newChain) - padded(certificate) - padded(chain), delta);
+        assertEquals(responseSize + delta, sizeAt(out, r.responseSizePos));
+        assertEquals(metadataSize + delta, sizeAt(out, r.metadataSizePos));
+
+        out.setDataPosition(0);
+        KeyEntryReplyRewriter.Fields g = KeyEntryReplyRewriter.locate(out);
+        assertNotNull(g);
+        assertArrayEquals(newCertificate, g.certificate);
+        assertArrayEquals(newChain, g.certificateChain);
+        assertEquals(MODIFICATION_TIME, out.readLong());
+        assertEquals(r.metadataSizePos + metadataSize + delta, out.dataPosition());
+        assertEquals(r.responseSizePos + responseSize + delta, out.dataPosition());
+        assertEquals(TRAILER, out.readInt());
+        assertEquals(out.dataSize(), out.dataPosition());
+
+        out.setDataPosition(r.responseSizePos + 4);
+        assertSame(r.securityLevel, out.readStrongBinder());
+    }
+
+    private static int padded(byte[] b) {
+        return b == null ? 4 : 4 + ((b.length + 3) & ~3);
+    }
+
+    @Test
+    public void testSpliceLongerFields() {
+        assertSpliced(bytes(300, 1), bytes(700, 2), bytes(517, 3), bytes(1403, 4));
+    }
+
+    @Test
+    public void testSpliceShorterFields() {
+        assertSpliced(bytes(517, 1), bytes(1403, 2), bytes(301, 3), bytes(5, 4));
+    }
+
+    @Test
+    public void testSpliceSameLengthAndNullChain() {
+        assertSpliced(bytes(400, 1), bytes(800, 2), bytes(400, 9), null);
+    }
+
+    @Test
+    public void testTemplateRefillMatchesSplice() {
+        byte[] certificate = bytes(300, 1);
+        byte[] chain = bytes(700, 2);
+        Reply r = reply(certificate, chain);
+        KeyEntryReplyRewriter.Fields f = KeyEntryReplyRewriter.locate(r.parcel);
+        assertNotNull(f);
+        Parcel expected = KeyEntryReplyRewriter.splice(r.parcel, f, bytes(517, 3), bytes(1403, 4));
+
+        KeyEntryReplyRewriter.Template t = KeyEntryReplyRewriter.template(r.parcel, f);
+        assertEquals(r.parcel.dataSize() - padded(certificate) - padded(chain) + 8, t.size());
+        for (int i = 0; i < 2; i++) {
+            Parcel out = KeyEntryReplyRewriter.fill(t, bytes(517, 3), bytes(1403, 4));
+            assertEquals(expected.dataSize(), out.dataSize());
+            assertEquals(sizeAt(expected, r.responseSizePos), sizeAt(out, r.responseSizePos));
+            assertEquals(sizeAt(expected, r.metadataSizePos), sizeAt(out, r.metadataSizePos));
+
+            out.setDataPosition(0);
+            KeyEntryReplyRewriter.Fields g = KeyEntryReplyRewriter.locate(out);
+            assertNotNull(g);
+            assertArrayEquals(bytes(517, 3), g.certificate);
+            assertArrayEquals(bytes(1403, 4), g.certificateChain);
+            assertEquals(MODIFICATION_TIME, out.readLong());
+            assertEquals(TRAILER, out.readInt());
+            out.setDataPosition(r.responseSizePos + 4);
+            assertSame(r.securityLevel, out.readStrongBinder());
+        }
+    }
+
+    @Test
+    public void testKeyIdFromMetadata() {
+        KeyEntryReplyRewriter.Fields byId = KeyEntryReplyRewriter.locate(reply(bytes(10, 1), null, Domain.KEY_ID).parcel);
+        assertNotNull(byId);
+        assertEquals(42, byId.keyId);
+        KeyEntryReplyRewriter.Fields byAlias = KeyEntryReplyRewriter.locate(reply(bytes(10, 1), null).parcel);
+        assertNotNull(byAlias);
+        assertEquals(-1, byAlias.keyId);
+    }
+
+    @Test
+    public void testMetadataOutsideResponseRejected() {
+        Reply r = reply(bytes(300, 1), bytes(700, 2));
+        int responseSize = sizeAt(r.parcel, r.responseSizePos);
+        // the response now ends before the certificate chain does
+        r.parcel.setDataPosition(r.responseSizePos);
+        r.parcel.writeInt(responseSize - 16);
+        r.parcel.setDataPosition(0);
+        assertThrows(IllegalStateException.class, () -> KeyEntryReplyRewriter.locate(r.parcel));
+    }
+
+    @Test
+    public void testNoResponse() {
+        Parcel p = Parcel.obtain();
+        p.writeInt(0);
+        p.setDataPosition(0);
+        assertNull(KeyEntryReplyRewriter.locate(p));
+    }
+}
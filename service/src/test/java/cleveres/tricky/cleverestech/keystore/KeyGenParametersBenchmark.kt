@@ -0,0 +1,31 @@
+package cleveres.tricky.cleverestech.keystore
+
+import java.lang.management.ManagementFactory
+import org.junit.Ignore
+import org.junit.Test
+
+/**
+ * Throughput and allocation of [CertHack.KeyGenParameters.readFrom] over a recorded-shape EC
+ * attestation request. It runs against the JVM test double of Parcel, a plain byte array, so
+ * the numbers cover the reader's own work and that stub, not android.os.Parcel on a device.
+ * It only prints timings, so it is ignored in regular test runs; remove the annotation to run it.
+ */
+class KeyGenParametersBenchmark {
+    @Ignore("benchmark, prints timings only")
+    @Test
+    fun benchmarkReadFrom() {
+        val iterations = 200_000
+        val parcels = Array(iterations) { KeyGenParametersTest.ecAttestationRequest(null) }
+        // warm up before measuring
+        repeat(iterations / 10) { CertHack.KeyGenParameters.readFrom(KeyGenParametersTest.ecAttestationRequest(null)) }
+
+        val threads = ManagementFactory.getThreadMXBean() as? com.sun.management.ThreadMXBean
+        val id = Thread.currentThread().id
+        val bytes0 = threads?.getThreadAllocatedBytes(id) ?: 0L
+        val t0 = System.nanoTime()
+        for (p in parcels) CertHack.KeyGenParameters.readFrom(p)
+        val elapsed = System.nanoTime() - t0
+        val bytes = (threads?.getThreadAllocatedBytes(id) ?: 0L) - bytes0
+        println("readFrom: ${elapsed / iterations} ns/op, ${bytes / iterations} bytes/op ($iterations requests)")
+    }
+}
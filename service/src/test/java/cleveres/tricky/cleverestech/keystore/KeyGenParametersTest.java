@@ -0,0 +1,141 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import android.hardware.security.keymint.Algorithm;
+import android.hardware.security.keymint.EcCurve;
+import android.hardware.security.keymint.KeyParameterValue;
+import android.hardware.security.keymint.KeyPurpose;
+import android.hardware.security.keymint.Tag;
+import android.os.Parcel;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.junit.Test;
+
+import java.util.Date;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+public class KeyGenParametersTest {
+
+    private static final int SHA_2_256 = 4;
+
+    // KeyParameter as AIDL writes it inside a typed array: non-null flag, size, tag, typed union
+    static void writeInt(Parcel p, int tag, int unionTag, int value) {
+        p.writeInt(1);
+        p.writeInt(20);
+        p.writeInt(tag);
+        p.writeInt(1);
+        p.writeInt(unionTag);
+        p.writeInt(value);
+    }
+
+    static void writeLong(Parcel p, int tag, int unionTag, long value) {
+        p.writeInt(1);
+        p.writeInt(24);
+        p.writeInt(tag);
+        p.writeInt(1);
+        p.writeInt(unionTag);
+        p.writeLong(value);
+    }
+
+    static void writeBlob(Parcel p, int tag, byte[] value) {
+        p.writeInt(1);
+        p.writeInt(20 + (value.length + 3) / 4 * 4);
+        p.writeInt(tag);
+        p.writeInt(1);
+        p.writeInt(KeyParameterValue.blob);
+        p.writeByteArray(value);
+    }
+
+    /** The parameters of a typical keystore2 EC attestation request. */
+    static Parcel ecAttestationRequest(byte[] subject) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(subject != null ? 10 : 9);
+        writeInt(p, Tag.ALGORITHM, KeyParameterValue.algorithm, Algorithm.EC);
+        writeInt(p, Tag.KEY_SIZE, KeyParameterValue.integer, 256);
+        writeInt(p, Tag.EC_CURVE, KeyParameterValue.ecCurve, EcCurve.P_256);
+        writeInt(p, Tag.PURPOSE, KeyParameterValue.keyPurpose, KeyPurpose.SIGN);
+        writeInt(p, Tag.PURPOSE, KeyParameterValue.keyPurpose, KeyPurpose.VERIFY);
+        writeInt(p, Tag.DIGEST, KeyParameterValue.digest, SHA_2_256);
+        writeInt(p, Tag.NO_AUTH_REQUIRED, KeyParameterValue.boolValue, 1);
+        writeLong(p, Tag.CERTIFICATE_NOT_AFTER, KeyParameterValue.dateTime, 2_000_000_000_000L);
+        writeBlob(p, Tag.ATTESTATION_CHALLENGE, new byte[]{1, 2, 3, 4, 5});
+        if (subject != null) writeBlob(p, Tag.CERTIFICATE_SUBJECT, subject);
+        p.setDataPosition(0);
+        return p;
+    }
+
+    @Test
+    public void testReadFromParcel() {
+        CertHack.KeyGenParameters kgp = CertHack.KeyGenParameters.readFrom(ecAttestationRequest(null));
+        assertEquals(Algorithm.EC, kgp.algorithm);
+        assertEquals(256, kgp.keySize);
+        assertEquals(EcCurve.P_256, kgp.ecCurve);
+        assertEquals("secp256r1", kgp.ecCurveName);
+        assertArrayEquals(new int[]{KeyPurpose.SIGN, KeyPurpose.VERIFY}, kgp.purpose);
+        assertArrayEquals(new int[]{SHA_2_256}, kgp.digest);
+        assertEquals(0, kgp.padding.length);
+        assertTrue(kgp.isNoAuthRequired);
+        assertEquals(new Date(2_000_000_000_000L), kgp.certificateNotAfter);
+        assertNull(kgp.certificateNotBefore);
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5}, kgp.attestationChallenge);
+        assertNull(kgp.certificateSubject);
+    }
+
+    @Test
+    public void testCurveNameOnlyWhenCurveGiven() {
+        Parcel p = Parcel.obtain();
+        p.writeInt(1);
+        writeInt(p, Tag.ALGORITHM, KeyParameterValue.algorithm, Algorithm.RSA);
+        p.setDataPosition(0);
+        CertHack.KeyGenParameters kgp = CertHack.KeyGenParameters.readFrom(p);
+        assertNull(kgp.ecCurveName);
+        assertFalse(CertHack.KeyGenParameters.contains(kgp.purpose, KeyPurpose.SIGN));
+    }
+
+    @Test
+    public void testSubjectKeepsDerOrder() throws Exception {
+        X500Name subject = new X500Name("C=US, O=Example, CN=Android Keystore Key");
+        byte[] der = subject.getEncoded();
+        CertHack.KeyGenParameters kgp = CertHack.KeyGenParameters.readFrom(ecAttestationRequest(der));
+        assertArrayEquals(der, kgp.certificateSubjectDer);
+        assertArrayEquals(der, kgp.certificateSubject.getEncoded());
+    }
+
+    @Test
+    public void testUnusedTagsAreSkipped() {
+        Parcel p = Parcel.obtain();
+        p.writeInt(4);
+        // unused tag carrying an unaligned blob, passed over by its size alone
+        writeBlob(p, Tag.APPLICATION_ID, new byte[]{9, 9, 9, 9, 9, 9, 9});
+        writeInt(p, Tag.KEY_SIZE, KeyParameterValue.integer, 384);
+        // a newer KeyParameter with a trailing field we do not know about
+        p.writeInt(1);
+        p.writeInt(24);
+        p.writeInt(Tag.ALGORITHM);
+        p.writeInt(1);
+        p.writeInt(KeyParameterValue.algorithm);
+        p.writeInt(Algorithm.EC);
+        p.writeInt(0x7f7f7f7f);
+        writeBlob(p, Tag.ATTESTATION_CHALLENGE, new byte[]{1, 2, 3});
+        p.setDataPosition(0);
+
+        CertHack.KeyGenParameters kgp = CertHack.KeyGenParameters.readFrom(p);
+        assertEquals(384, kgp.keySize);
+        assertEquals(Algorithm.EC, kgp.algorithm);
+        assertArrayEquals(new byte[]{1, 2, 3}, kgp.attestationChallenge);
+        assertEquals(p.dataSize(), p.dataPosition());
+    }
+
+    @Test
+    public void testNullArrayRejected() {
+        Parcel p = Parcel.obtain();
+        p.writeInt(-1);
+        p.setDataPosition(0);
+        assertThrows(IllegalStateException.class, () -> CertHack.KeyGenParameters.readFrom(p));
+    }
+}
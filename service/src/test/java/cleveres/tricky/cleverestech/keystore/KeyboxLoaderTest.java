@@ -0,0 +1,79 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import org.bouncycastle.util.io.pem.PemReader;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+public class KeyboxLoaderTest {
+
+    private static String indent(String pem) {
+        return "    " + pem.replace("\n", "\n    ");
+    }
+
+    private static String key(String algorithm, int certs, int declared) {
+        StringBuilder sb = new StringBuilder("<Key algorithm=\"" + algorithm + "\">\n")
+                .append("<PrivateKey format=\"pem\">\n").append(indent(CertHackTest.EC_KEY)).append("\n</PrivateKey>\n")
+                .append("<CertificateChain>\n<NumberOfCertificates>").append(declared).append("</NumberOfCertificates>\n");
+        for (int i = 0; i < certs; i++) {
+            sb.append("<Certificate format=\"pem\">\n").append(indent(CertHackTest.TEST_CERT)).append("\n</Certificate>\n");
+        }
+        return sb.append("</CertificateChain>\n</Key>\n").toString();
+    }
+
+    private static String xml(int declared, String... keys) {
+        return "<?xml version=\"1.0\"?>\n<AndroidAttestation>\n<NumberOfKeyboxes>" + declared
+                + "</NumberOfKeyboxes>\n<Keybox DeviceID=\"test\">\n" + String.join("", keys)
+                + "</Keybox>\n</AndroidAttestation>";
+    }
+
+    @Test
+    public void testStreamDecodesPemBodies() throws Exception {
+        byte[] expected;
+        try (PemReader reader = new PemReader(new StringReader(CertHackTest.TEST_CERT))) {
+            expected = reader.readPemObject().getContent();
+        }
+        List<KeyboxLoader.RawKeybox> seen = new ArrayList<>();
+        int declared = KeyboxLoader.stream(new StringReader(xml(2, key("ecdsa", 2, 2), key("rsa", 1, 1))), seen::add);
+
+        assertEquals(2, declared);
+        assertEquals(2, seen.size());
+        assertEquals("ecdsa", seen.get(0).algorithm);
+        assertEquals(2, seen.get(0).certificates.size());
+        assertArrayEquals(expected, seen.get(0).certificates.get(1));
+        assertEquals(1, seen.get(1).index);
+    }
+
+    @Test
+    public void testLoadIgnoresUndeclaredEntries() throws Exception {
+        Map<String, CertHack.KeyBox> loaded = KeyboxLoader.load(
+                new StringReader(xml(1, key("ecdsa", 2, 1), key("ecdsa", 1, 1))));
+        assertEquals(1, loaded.size());
+        assertEquals(1, loaded.get("EC").certificates().size());
+    }
+
+    @Test
+    public void testLoadKeepsDocumentOrderBeyondInFlightLimit() throws Exception {
+        String[] keys = new String[64];
+        for (int i = 0; i < keys.length - 1; i++) keys[i] = key("ecdsa", 1, 1);
+        keys[keys.length - 1] = key("ecdsa", 2, 2);
+        Map<String, CertHack.KeyBox> loaded = KeyboxLoader.load(new StringReader(xml(keys.length, keys)));
+        assertEquals(1, loaded.size());
+        assertEquals(2, loaded.get("EC").certificates().size());
+    }
+
+    @Test
+    public void testMissingEntriesFail() {
+        assertThrows(IllegalStateException.class,
+                () -> KeyboxLoader.load(new StringReader(xml(2, key("ecdsa", 1, 1)))));
+        assertThrows(IllegalStateException.class,
+                () -> KeyboxLoader.load(new StringReader(xml(1, key("ecdsa", 1, 2)))));
+    }
+}
@@ -0,0 +1,97 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.math.BigInteger;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Map;
+
+import cleveres.tricky.cleverestech.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyboxValidatorTest {
+
+    private static final String XML = "<?xml version=\"1.0\"?>\n" +
+            "<AndroidAttestation>\n" +
+            "<NumberOfKeyboxes>1</NumberOfKeyboxes>\n" +
+            "<Keybox>\n" +
+            "<Key algorithm=\"ecdsa\">\n" +
+            "<PrivateKey>\n" + CertHackTest.EC_KEY + "\n</PrivateKey>\n" +
+            "<CertificateChain>\n" +
+            "<NumberOfCertificates>1</NumberOfCertificates>\n" +
+            "<Certificate>\n" + CertHackTest.TEST_CERT + "\n</Certificate>\n" +
+            "</CertificateChain>\n" +
+            "</Key>\n" +
+            "</Keybox>\n" +
+            "</AndroidAttestation>";
+
+    @Before
+    public void setUp() {
+        Logger.setImpl(new Logger.LogImpl() {
+            @Override public void d(String tag, String msg) { System.out.println("D/" + tag + ": " + msg); }
+            @Override public void e(String tag, String msg) { System.out.println("E/" + tag + ": " + msg); }
+            @Override public void e(String tag, String msg, Throwable t) { System.out.println("E/" + tag + ": " + msg); t.printStackTrace(); }
+            @Override public void i(String tag, String msg) { System.out.println("I/" + tag + ": " + msg); }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        KeyboxValidator.updateRevocationList(null);
+        CertHack.readFromXml(null);
+    }
+
+    private static String statusFile(String serial) {
+        return "{\"entries\": {\n" +
+                "  \"" + serial + "\": {\"status\": \"REVOKED\", \"reason\": \"KEY_COMPROMISE\"},\n" +
+                "  \"c35747a084470c3135aeefe2b8d40cd6\": {\"status\": \"SUSPENDED\", \"comment\": \"a \\\"quoted\\\" note\", \"tags\": [1, true, null]}\n" +
+                "}}";
+    }
+
+    @Test
+    public void testParsesStatusListAndNormalizesSerials() throws Exception {
+        KeyboxValidator.updateRevocationList(new StringReader(statusFile("00ABCDEF")));
+        assertEquals(2, KeyboxValidator.getRevokedCount());
+        assertTrue(KeyboxValidator.isRevoked(new BigInteger("abcdef", 16)));
+        assertTrue(KeyboxValidator.isRevoked(new BigInteger("c35747a084470c3135aeefe2b8d40cd6", 16)));
+        assertFalse(KeyboxValidator.isRevoked(BigInteger.TEN));
+    }
+
+    @Test
+    public void testValidChainPasses() throws Exception {
+        Map<String, CertHack.KeyBox> loaded = KeyboxLoader.load(new StringReader(XML));
+        X509Certificate leaf = (X509Certificate) loaded.get("EC").certificates().get(0);
+        KeyboxValidator.Result result = KeyboxValidator.check("EC", loaded.get("EC"), leaf.getNotBefore());
+        assertTrue(result.problems().toString(), result.ok());
+    }
+
+    @Test
+    public void testExpiredChainIsReported() throws Exception {
+        Map<String, CertHack.KeyBox> loaded = KeyboxLoader.load(new StringReader(XML));
+        X509Certificate leaf = (X509Certificate) loaded.get("EC").certificates().get(0);
+        Date after = new Date(leaf.getNotAfter().getTime() + 1000);
+        KeyboxValidator.Result result = KeyboxValidator.check("EC", loaded.get("EC"), after);
+        assertFalse(result.ok());
+        assertTrue(result.problems().get(0).contains("expired"));
+    }
+
+    @Test
+    public void testRevokedKeyboxIsNotLoaded() throws Exception {
+        Map<String, CertHack.KeyBox> loaded = KeyboxLoader.load(new StringReader(XML));
+        X509Certificate leaf = (X509Certificate) loaded.get("EC").certificates().get(0);
+        KeyboxValidator.updateRevocationList(new StringReader(statusFile(leaf.getSerialNumber().toString(16))));
+
+        CertHack.readFromXml(new StringReader(XML));
+        assertFalse(CertHack.canHack(0));
+        KeyboxValidator.Result result = KeyboxValidator.getLastResults().get("EC");
+        assertFalse(result.ok());
+        assertTrue(result.problems().get(0).contains("revoked"));
+    }
+}
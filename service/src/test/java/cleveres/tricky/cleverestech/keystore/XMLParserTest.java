@@ -0,0 +1,46 @@
+package cleveres.tricky.cleverestech.keystore;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+public class XMLParserTest {
+
+    private static final String XML =
+            "<Root><Keys><Key id=\"a\"><Value>1</Value></Key><Key id=\"b\"><Value>x</Value></Key></Keys></Root>";
+
+    @Test
+    public void testCompiledPathMatchesStringPath() throws Exception {
+        XMLParser parser = new XMLParser(new StringReader(XML));
+        XMLParser.Path path = XMLParser.compile("Root.Keys.Key[1]");
+        assertEquals("b", parser.find(path).attribute("id"));
+        assertEquals("b", parser.obtainPath("Root.Keys.Key[1]").get("id"));
+        assertEquals("x", parser.find(path.child("Value", 0)).text());
+        assertEquals(2, parser.getChildCount("Root.Keys", "Key"));
+    }
+
+    @Test
+    public void testChildIterationAndTypedAccessors() throws Exception {
+        XMLParser parser = new XMLParser(new StringReader(XML));
+        List<XMLParser.Node> keys = parser.root().child("Keys").children("Key");
+        assertEquals(2, keys.size());
+        assertEquals(Integer.valueOf(1), keys.get(0).childInt("Value"));
+        assertNull(keys.get(1).childInt("Value"));
+        assertNull(keys.get(0).childText("Missing"));
+        assertEquals(0, keys.get(0).children("Missing").size());
+    }
+
+    @Test
+    public void testMissingPathsReturnNull() throws Exception {
+        XMLParser parser = new XMLParser(new StringReader(XML));
+        assertNull(parser.find(XMLParser.compile("Root.Keys.Key[5]")));
+        assertNull(parser.find(XMLParser.compile("Other.Keys")));
+        assertEquals(0, parser.getChildCount("Root.Missing", "Key"));
+        assertThrows(RuntimeException.class, () -> parser.obtainPath("Root.Keys.Key[5]"));
+    }
+}
@@ -0,0 +1,64 @@
+package cleveres.tricky.cleverestech.rkp
+
+import cleveres.tricky.cleverestech.Logger
+import cleveres.tricky.cleverestech.keystore.CertHack
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import java.security.KeyPairGenerator
+import java.security.spec.ECGenParameterSpec
+
+class CoseValidatorTest {
+    @Before
+    fun setup() {
+        Logger.setImpl(object : Logger.LogImpl {
+            override fun d(tag: String, msg: String) { println("D/$tag: $msg") }
+            override fun e(tag: String, msg: String) { println("E/$tag: $msg") }
+            override fun e(tag: String, msg: String, t: Throwable?) { println("E/$tag: $msg"); t?.printStackTrace() }
+            override fun i(tag: String, msg: String) { println("I/$tag: $msg") }
+        })
+    }
+
+    private fun newKeyPair() = KeyPairGenerator.getInstance("EC").run {
+        initialize(ECGenParameterSpec("secp256r1"))
+        generateKeyPair()
+    }
+
+    @Test
+    fun testMacedKeyVerifies() {
+        val macKey = ByteArray(32) { 1 }
+        val keyPair = newKeyPair()
+        val maced = CertHack.generateMacedPublicKey(keyPair, macKey)!!
+
+        val parsed = CoseValidator.parseMacedPublicKey(maced)
+        assertTrue(CoseValidator.verifyMac(parsed, macKey))
+        assertFalse(CoseValidator.verifyMac(parsed, ByteArray(32) { 2 }))
+        assertTrue(CoseValidator.matchesPublicKey(parsed, keyPair.public))
+        assertFalse(CoseValidator.matchesPublicKey(parsed, newKeyPair().public))
+    }
+
+    @Test
+    fun testTamperedTagFails() {
+        val macKey = ByteArray(32) { 1 }
+        val maced = CertHack.generateMacedPublicKey(newKeyPair(), macKey)!!
+        maced[maced.size - 1] = (maced[maced.size - 1] + 1).toByte()
+        assertFalse(CoseValidator.verifyMac(CoseValidator.parseMacedPublicKey(maced), macKey))
+        assertFalse(LocalRkpProxy.validateMacedPublicKey(maced, macKey))
+    }
+
+    @Test
+    fun testMalformedBlobsAreRejected() {
+        assertFalse(LocalRkpProxy.validateMacedPublicKey("Hello".toByteArray(), ByteArray(32)))
+        assertFalse(LocalRkpProxy.validateMacedPublicKey(byteArrayOf(0x84.toByte()), ByteArray(32)))
+    }
+
+    @Test
+    fun testDeviceInfo() {
+        val info = CertHack.createDeviceInfoCbor("google", "Google", "p", "m", "d")!!
+        assertEquals(11, CoseValidator.validateDeviceInfo(info))
+        val truncated = info.copyOf(info.size - 1)
+        assertTrue(runCatching { CoseValidator.validateDeviceInfo(truncated) }.isFailure)
+    }
+}
@@ -0,0 +1,42 @@
+package cleveres.tricky.cleverestech.rkp
+
+import cleveres.tricky.cleverestech.Logger
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+class RkpKeyPoolTest {
+    @Before
+    fun setup() {
+        Logger.setImpl(object : Logger.LogImpl {
+            override fun d(tag: String, msg: String) { println("D/$tag: $msg") }
+            override fun e(tag: String, msg: String) { println("E/$tag: $msg") }
+            override fun e(tag: String, msg: String, t: Throwable?) { println("E/$tag: $msg"); t?.printStackTrace() }
+            override fun i(tag: String, msg: String) { println("I/$tag: $msg") }
+        })
+    }
+
+    private fun awaitDepth(min: Int) {
+        val deadline = System.currentTimeMillis() + 10_000
+        while (RkpKeyPool.depth() < min && System.currentTimeMillis() < deadline) Thread.sleep(20)
+    }
+
+    @Test
+    fun testPoolRefillsAndInvalidatesOnRotation() {
+        RkpKeyPool.take()
+        awaitDepth(1)
+        val key = RkpKeyPool.take()
+        assertNotNull(key)
+        assertEquals(LocalRkpProxy.keyEpoch, key!!.epoch)
+        assertEquals(0x84.toByte(), key.macedPublicKey[0])
+
+        LocalRkpProxy.rotateKey()
+        awaitDepth(1)
+        val rotated = RkpKeyPool.take()
+        assertNotNull(rotated)
+        assertEquals(LocalRkpProxy.keyEpoch, rotated!!.epoch)
+        assertTrue(rotated.epoch > key.epoch)
+    }
+}
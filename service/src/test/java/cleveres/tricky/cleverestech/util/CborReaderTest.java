@@ -0,0 +1,87 @@
+package cleveres.tricky.cleverestech.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CborReaderTest {
+
+    @Test
+    public void testRoundTrip() {
+        byte[] encoded = new CborWriter()
+                .writeArrayHeader(5)
+                .writeInt(Long.MIN_VALUE)
+                .writeInt(65536)
+                .writeBytes(new byte[]{1, 2, 3})
+                .writeText("MAC0")
+                .writeMapHeader(1).writeInt(-2).writeBool(true)
+                .toByteArray();
+
+        CborReader r = new CborReader(encoded);
+        assertEquals(5, r.readArrayHeader());
+        assertEquals(Long.MIN_VALUE, r.readInt());
+        assertEquals(65536, r.readInt());
+        assertArrayEquals(new byte[]{1, 2, 3}, r.readBytes());
+        assertTrue(r.readTextEquals("MAC0"));
+        assertEquals(1, r.readMapHeader());
+        assertEquals(-2, r.readInt());
+        assertTrue(r.readBool());
+        assertFalse(r.hasNext());
+    }
+
+    @Test
+    public void testSkipNested() {
+        byte[] encoded = new CborWriter()
+                .writeArrayHeader(2)
+                .writeMapHeader(2)
+                .writeText("a").writeArrayHeader(2).writeInt(1).writeBytes(new byte[300])
+                .writeInt(7).writeNull()
+                .writeInt(42)
+                .toByteArray();
+
+        CborReader r = new CborReader(encoded);
+        assertEquals(2, r.readArrayHeader());
+        r.skip();
+        assertEquals(42, r.readInt());
+        assertFalse(r.hasNext());
+    }
+
+    @Test
+    public void testBytesHeaderLeavesContentInPlace() {
+        byte[] encoded = new CborWriter().writeBytes(new byte[]{9, 8, 7}).writeInt(1).toByteArray();
+        CborReader r = new CborReader(encoded);
+        int len = r.readBytesHeader();
+        assertEquals(3, len);
+        assertEquals(9, encoded[r.position()]);
+        r.advance(len);
+        assertEquals(1, r.readInt());
+    }
+
+    @Test
+    public void testMalformedInputThrows() {
+        byte[][] inputs = {
+                {},
+                {(byte) 0x84, 0x01},                 // array of 4 with one item
+                {0x45, 0x01, 0x02},                  // bstr of 5 with 2 bytes
+                {(byte) 0x9f, 0x01, (byte) 0xff},    // indefinite length array
+                {(byte) 0x9b, 0x7f, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff},
+        };
+        for (byte[] input : inputs) {
+            try {
+                new CborReader(input).skip();
+                fail("expected failure for " + input.length + " bytes");
+            } catch (IllegalStateException expected) {
+                // ok
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testTypeMismatchThrows() {
+        new CborReader(new CborWriter().writeText("x").toByteArray()).readInt();
+    }
+}
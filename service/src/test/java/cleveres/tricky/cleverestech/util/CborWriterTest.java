@@ -0,0 +1,110 @@
+package cleveres.tricky.cleverestech.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class CborWriterTest {
+
+    private static final long[] INTS = {
+            0, 1, 23, 24, 255, 256, 65535, 65536, 0xFFFFFFFFL, 0x100000000L, Long.MAX_VALUE,
+            -1, -24, -25, -256, -257, -65536, -65537, Long.MIN_VALUE
+    };
+
+    @Test
+    public void testIntsMatchEncoder() {
+        CborWriter w = new CborWriter(16);
+        for (long v : INTS) {
+            assertArrayEquals("int " + v, CborEncoder.encode(v), w.reset().writeInt(v).toByteArray());
+        }
+    }
+
+    @Test
+    public void testStringsMatchEncoder() {
+        CborWriter w = new CborWriter(16);
+        for (int len : new int[]{0, 1, 23, 24, 255, 256, 70000}) {
+            byte[] bytes = new byte[len];
+            Arrays.fill(bytes, (byte) 0x5a);
+            assertArrayEquals(CborEncoder.encode(bytes), w.reset().writeBytes(bytes).toByteArray());
+            String text = new String(bytes) + "é";
+            assertArrayEquals(CborEncoder.encode(text), w.reset().writeText(text).toByteArray());
+        }
+        assertArrayEquals(CborEncoder.encode(true), w.reset().writeBool(true).toByteArray());
+        assertArrayEquals(CborEncoder.encode(false), w.reset().writeBool(false).toByteArray());
+        assertArrayEquals(CborEncoder.encode(null), w.reset().writeNull().toByteArray());
+    }
+
+    @Test
+    public void testContainersMatchEncoder() {
+        // [ "MAC0", h'a10105', h'', {1: 2, 3: 4, "a": 5} ]
+        Map<Object, Object> map = new HashMap<>();
+        map.put(1, 2);
+        map.put(3, 4);
+        map.put("a", 5);
+        List<Object> list = new ArrayList<>();
+        list.add("MAC0");
+        list.add(new byte[]{(byte) 0xa1, 0x01, 0x05});
+        list.add(new byte[0]);
+        list.add(map);
+
+        CborWriter w = new CborWriter(4);
+        w.writeArrayHeader(4)
+                .writeText("MAC0")
+                .writeBytes(new byte[]{(byte) 0xa1, 0x01, 0x05})
+                .writeBytes(new byte[0])
+                .writeMapHeader(3)
+                .writeInt(1).writeInt(2)
+                .writeInt(3).writeInt(4)
+                .writeText("a").writeInt(5);
+        assertArrayEquals(CborEncoder.encode(list), w.toByteArray());
+    }
+
+    @Test
+    public void testWriteRawEmbedsEncodedItems() {
+        List<Object> inner = new ArrayList<>();
+        inner.add(1);
+        inner.add("x");
+        List<Object> outer = new ArrayList<>();
+        outer.add(inner);
+        outer.add(inner);
+
+        byte[] encodedInner = CborEncoder.encode(inner);
+        CborWriter w = new CborWriter().writeArrayHeader(2).writeRaw(encodedInner);
+        CborWriter other = new CborWriter().writeRaw(encodedInner);
+        w.writeRaw(other);
+        assertArrayEquals(CborEncoder.encode(outer), w.toByteArray());
+    }
+
+    @Test
+    public void testCanonicalMapOrdersByEncodedKey() {
+        CborWriter v = new CborWriter();
+        CborWriter.CanonicalMap map = new CborWriter.CanonicalMap()
+                .put(-3, v.reset().writeInt(30).toByteArray())
+                .put("b", v.reset().writeInt(20).toByteArray())
+                .put(-1, v.reset().writeInt(10).toByteArray())
+                .put(3, v.reset().writeInt(-7).toByteArray())
+                .put(1, v.reset().writeInt(2).toByteArray());
+        byte[] out = map.writeTo(new CborWriter()).toByteArray();
+        // {1: 2, 3: -7, -1: 10, -3: 30, "b": 20}, the order RKP's COSE_Key expects
+        byte[] expected = {
+                (byte) 0xa5, 0x01, 0x02, 0x03, 0x26, 0x20, 0x0a, 0x22, 0x18, 0x1e, 0x61, 0x62, 0x14
+        };
+        assertArrayEquals(expected, out);
+    }
+
+    @Test
+    public void testResetReusesBuffer() {
+        CborWriter w = new CborWriter(16);
+        w.writeBytes(new byte[1000]);
+        w.reset().writeInt(7);
+        assertEquals(1, w.size());
+        assertArrayEquals(new byte[]{0x07}, w.toByteArray());
+    }
+}
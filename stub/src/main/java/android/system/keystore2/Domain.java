@@ -0,0 +1,9 @@
+package android.system.keystore2;
+
+public @interface Domain {
+    int APP = 0;
+    int GRANT = 1;
+    int SELINUX = 2;
+    int BLOB = 3;
+    int KEY_ID = 4;
+}